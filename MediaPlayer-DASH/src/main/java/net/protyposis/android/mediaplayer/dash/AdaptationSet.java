@@ -24,17 +24,41 @@ import java.util.List;
  */
 public class AdaptationSet {
 
+    String id;
     int group;
     String mimeType;
     int maxWidth;
     int maxHeight;
     float par; // picture aspect ratio (also called DAR - display aspect ratio)
+    String trickModeFor; // the id of the main adaptation set if this is a trick mode set, else null
+    int tileColumns = 1; // the thumbnail tile grid of an image set
+    int tileRows = 1;
     List<Representation> representations;
 
     AdaptationSet() {
         representations = new ArrayList<Representation>();
     }
 
+    /**
+     * Creates a copy of an adaptation set with a separate list of the same representations.
+     */
+    AdaptationSet(AdaptationSet adaptationSet) {
+        id = adaptationSet.id;
+        group = adaptationSet.group;
+        mimeType = adaptationSet.mimeType;
+        maxWidth = adaptationSet.maxWidth;
+        maxHeight = adaptationSet.maxHeight;
+        par = adaptationSet.par;
+        trickModeFor = adaptationSet.trickModeFor;
+        tileColumns = adaptationSet.tileColumns;
+        tileRows = adaptationSet.tileRows;
+        representations = new ArrayList<Representation>(adaptationSet.representations);
+    }
+
+    public String getId() {
+        return id;
+    }
+
     public int getGroup() {
         return group;
     }
@@ -55,14 +79,58 @@ public class AdaptationSet {
         return par > 0;
     }
 
+    /**
+     * Tells if this is a trick mode set (e.g. with I-frames only) that is meant for fast playback
+     * of another adaptation set instead of regular playback.
+     */
+    public boolean isTrickMode() {
+        return trickModeFor != null;
+    }
+
+    /**
+     * Returns the media type of the set, e.g. "video" or "audio", or null if it is unknown.
+     */
+    String getMediaType() {
+        String mime = mimeType;
+        if(mime == null && !representations.isEmpty()) {
+            mime = representations.get(0).mimeType;
+        }
+        if(mime == null) {
+            return null;
+        }
+        int separator = mime.indexOf('/');
+        return separator != -1 ? mime.substring(0, separator) : mime;
+    }
+
+    /**
+     * Returns the representation with the highest bandwidth within a limit, or the lowest
+     * representation if none is within the limit.
+     */
+    Representation getHighestRepresentationWithin(long maxBandwidth) {
+        Representation highest = null;
+        Representation lowest = null;
+        for(Representation representation : representations) {
+            if(representation.bandwidth <= maxBandwidth
+                    && (highest == null || representation.bandwidth > highest.bandwidth)) {
+                highest = representation;
+            }
+            if(lowest == null || representation.bandwidth < lowest.bandwidth) {
+                lowest = representation;
+            }
+        }
+        return highest != null ? highest : lowest;
+    }
+
     @Override
     public String toString() {
         return "AdaptationSet{" +
-                "group=" + group +
+                "id=" + id +
+                ", group=" + group +
                 ", mimeType='" + mimeType + '\'' +
                 ", maxWidth='" + maxWidth +
                 ", maxHeight='" + maxHeight +
                 ", par='" + par +
+                ", trickModeFor='" + trickModeFor +
                 //", representations=" + representations +
                 '}';
     }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the representations recommended by another adaptation logic within the bandwidth that a
+ * {@link BandwidthArbiter} allocates to the player. Each player that shares the network gets its
+ * own instance around its own adaptation logic, all with the same arbiter:
+ *
+ * <pre>
+ * BandwidthArbiter arbiter = new BandwidthArbiter();
+ * ArbitratedAdaptationLogic mainLogic = new ArbitratedAdaptationLogic(arbiter, new SimpleRateBasedAdaptationLogic(), 3);
+ * ArbitratedAdaptationLogic sideLogic = new ArbitratedAdaptationLogic(arbiter, new SimpleRateBasedAdaptationLogic(), 1);
+ * </pre>
+ *
+ * The share of a player is split among its adaptation sets: the bandwidth available to an
+ * adaptation set is the share minus the bandwidth of the current representations of the sets of
+ * the other media types (e.g. the audio set for the video set).
+ * The wrapped logic still decides within this limit, e.g. when its own measurement is lower.
+ */
+public class ArbitratedAdaptationLogic implements AdaptationLogic, RenderingHealthReceiver {
+
+    private static final String TAG = ArbitratedAdaptationLogic.class.getSimpleName();
+
+    private BandwidthArbiter mArbiter;
+    private AdaptationLogic mAdaptationLogic;
+    private float mPriority;
+    private Map<String, Representation> mCurrentRepresentations; // by media type
+
+    /**
+     * Creates an arbitrated logic around another adaptation logic.
+     *
+     * @param arbiter the arbiter shared with the other players
+     * @param adaptationLogic the logic whose recommendations are limited to the player's share
+     * @param priority the weight of the player's share, relative to the other players
+     */
+    public ArbitratedAdaptationLogic(BandwidthArbiter arbiter, AdaptationLogic adaptationLogic, float priority) {
+        if(priority <= 0) {
+            throw new IllegalArgumentException("priority must be positive");
+        }
+        mArbiter = arbiter;
+        mAdaptationLogic = adaptationLogic;
+        mPriority = priority;
+        mCurrentRepresentations = new HashMap<>();
+        mArbiter.register(this, priority);
+    }
+
+    public synchronized float getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Changes the weight of the player's share, e.g. when the player gains or loses the focus.
+     * The new share applies to the segments that are loaded from now on.
+     */
+    public synchronized void setPriority(float priority) {
+        if(priority <= 0) {
+            throw new IllegalArgumentException("priority must be positive");
+        }
+        mPriority = priority;
+        mArbiter.setPriority(this, priority);
+    }
+
+    /**
+     * Removes the player from the arbiter, so its share goes to the other players right away
+     * instead of after its inactivity timeout. Should be called when the player is released.
+     */
+    public void release() {
+        mArbiter.unregister(this);
+    }
+
+    @Override
+    public synchronized Representation initialize(AdaptationSet adaptationSet) {
+        return limit(adaptationSet, mAdaptationLogic.initialize(adaptationSet));
+    }
+
+    @Override
+    public synchronized void reportSegmentDownload(AdaptationSet adaptationSet, Representation representation,
+                                                   Segment segment, int byteSize, long downloadTimeMs) {
+        mArbiter.reportTransfer(this, byteSize, downloadTimeMs);
+        mAdaptationLogic.reportSegmentDownload(adaptationSet, representation, segment, byteSize, downloadTimeMs);
+    }
+
+    @Override
+    public synchronized Representation getRecommendedRepresentation(AdaptationSet adaptationSet) {
+        return limit(adaptationSet, mAdaptationLogic.getRecommendedRepresentation(adaptationSet));
+    }
+
+    @Override
+    public synchronized void reportRenderingHealth(AdaptationSet adaptationSet, Representation representation,
+                                                   int renderedFrames, int lateFrames, long durationMs) {
+        if(mAdaptationLogic instanceof RenderingHealthReceiver) {
+            ((RenderingHealthReceiver) mAdaptationLogic).reportRenderingHealth(
+                    adaptationSet, representation, renderedFrames, lateFrames, durationMs);
+        }
+    }
+
+    /**
+     * Limits a representation to the bandwidth available to the adaptation set. If the
+     * representation exceeds it, the highest lower representation that fits is chosen, or the
+     * lowest representation if none fits.
+     */
+    private Representation limit(AdaptationSet adaptationSet, Representation representation) {
+        /* Only one adaptation set of a type plays at a time, so keying by type replaces the
+         * representations of the previous period instead of adding up the sets of all periods. */
+        String mediaType = adaptationSet.getMediaType();
+        if(mediaType == null) {
+            mediaType = "";
+        }
+        long available = mArbiter.getShare(this);
+        if(available != Long.MAX_VALUE) {
+            for(Map.Entry<String, Representation> entry : mCurrentRepresentations.entrySet()) {
+                if(!entry.getKey().equals(mediaType)) {
+                    available -= entry.getValue().bandwidth;
+                }
+            }
+        }
+
+        Representation limited = representation;
+        if(representation.bandwidth > available) {
+            limited = adaptationSet.getHighestRepresentationWithin(available);
+            if(limited != representation) {
+                Log.d(TAG, "limiting " + representation.bandwidth + " to " + limited.bandwidth
+                        + " bps within a share of " + available + " bps");
+            }
+        }
+
+        mCurrentRepresentations.put(mediaType, limited);
+        return limited;
+    }
+}
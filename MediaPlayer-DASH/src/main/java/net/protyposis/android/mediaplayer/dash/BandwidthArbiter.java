@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares the network bandwidth among multiple players that stream at the same time, e.g. in a
+ * side-by-side comparison or a multi-view layout. Without coordination, the adaptation logic of
+ * each player measures only its own throughput, which depends on the downloads of the other
+ * players, so they keep switching up and down against each other.
+ *
+ * The arbiter estimates the capacity of the shared link from the segment downloads of all players
+ * and allocates it to the active players in proportion to their priorities, e.g. a higher
+ * priority for the focused view. Each player's adaptation logic is wrapped in an
+ * {@link ArbitratedAdaptationLogic}, which keeps its recommendations within the allocated share.
+ *
+ * A player counts as active while it downloads segments, so a paused or stopped player releases
+ * its share to the others after a while.
+ */
+public class BandwidthArbiter {
+
+    private static final long ESTIMATION_WINDOW_MS = 20000; // the transfers considered for the capacity estimate
+    private static final long ACTIVITY_TIMEOUT_MS = 15000; // a player without downloads for this time is inactive
+
+    private Map<ArbitratedAdaptationLogic, Session> mSessions;
+    private List<Transfer> mTransfers;
+
+    public BandwidthArbiter() {
+        mSessions = new HashMap<>();
+        mTransfers = new ArrayList<>();
+    }
+
+    synchronized void register(ArbitratedAdaptationLogic logic, float priority) {
+        Session session = new Session();
+        session.priority = priority;
+        session.lastActivity = SystemClock.elapsedRealtime();
+        mSessions.put(logic, session);
+    }
+
+    synchronized void unregister(ArbitratedAdaptationLogic logic) {
+        mSessions.remove(logic);
+    }
+
+    synchronized void setPriority(ArbitratedAdaptationLogic logic, float priority) {
+        Session session = mSessions.get(logic);
+        if(session != null) {
+            session.priority = priority;
+        }
+    }
+
+    /**
+     * Records a segment download of a player.
+     */
+    synchronized void reportTransfer(ArbitratedAdaptationLogic logic, int byteSize, long durationMs) {
+        long now = SystemClock.elapsedRealtime();
+        Session session = mSessions.get(logic);
+        if(session != null) {
+            session.lastActivity = now;
+        }
+        mTransfers.add(new Transfer(now - Math.max(1, durationMs), now, byteSize));
+        pruneTransfers(now);
+    }
+
+    /**
+     * Returns the estimated capacity of the link shared by all players.
+     *
+     * @return the capacity in bits per second, or 0 if there is no estimate yet
+     */
+    public synchronized long getEstimatedBandwidth() {
+        pruneTransfers(SystemClock.elapsedRealtime());
+        if(mTransfers.isEmpty()) {
+            return 0;
+        }
+
+        /* The transferred bytes divided by the time in which the link was busy. Concurrent
+         * transfers of different players overlap and count once, which accounts for the
+         * throughput they achieve together; idle times between transfers do not count. */
+        List<Transfer> transfers = new ArrayList<>(mTransfers);
+        Collections.sort(transfers, new Comparator<Transfer>() {
+            @Override
+            public int compare(Transfer lhs, Transfer rhs) {
+                return lhs.start < rhs.start ? -1 : (lhs.start == rhs.start ? 0 : 1);
+            }
+        });
+        long bytes = 0;
+        long busyMs = 0;
+        long busyUntil = Long.MIN_VALUE;
+        for(Transfer transfer : transfers) {
+            bytes += transfer.bytes;
+            if(transfer.start >= busyUntil) {
+                busyMs += transfer.end - transfer.start;
+                busyUntil = transfer.end;
+            } else if(transfer.end > busyUntil) {
+                busyMs += transfer.end - busyUntil;
+                busyUntil = transfer.end;
+            }
+        }
+        return bytes * 8 * 1000 / Math.max(1, busyMs);
+    }
+
+    /**
+     * Returns the bandwidth allocated to a player, which is its share of the estimated capacity
+     * by its priority among the active players.
+     *
+     * @return the bandwidth in bits per second, or {@link Long#MAX_VALUE} if there is no
+     *         estimate yet
+     */
+    synchronized long getShare(ArbitratedAdaptationLogic logic) {
+        Session session = mSessions.get(logic);
+        long capacity = getEstimatedBandwidth();
+        if(session == null || capacity == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        float priorities = 0;
+        for(Session s : mSessions.values()) {
+            if(s == session || now - s.lastActivity < ACTIVITY_TIMEOUT_MS) {
+                priorities += s.priority;
+            }
+        }
+        if(priorities <= 0) {
+            return capacity;
+        }
+        return (long) (capacity * (session.priority / priorities));
+    }
+
+    private void pruneTransfers(long now) {
+        Iterator<Transfer> iterator = mTransfers.iterator();
+        while(iterator.hasNext()) {
+            if(now - iterator.next().end > ESTIMATION_WINDOW_MS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Session {
+        private float priority;
+        private long lastActivity;
+    }
+
+    private static class Transfer {
+        private long start;
+        private long end;
+        private long bytes;
+
+        Transfer(long start, long end, long bytes) {
+            this.start = start;
+            this.end = end;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Orders the URLs of a segment on alternative base URLs (e.g. of multiple CDNs) by the observed
+ * performance of their hosts. Each host's latency and throughput are tracked as moving averages;
+ * hosts that failed are put last for a backoff time that grows with consecutive failures.
+ *
+ * Hosts without measurements keep their position from the MPD behind the measured hosts, so
+ * the first base URL is used until another host has proven to be faster, e.g. through a hedged
+ * request, or the first host fails.
+ */
+class BaseUrlSelector {
+
+    private static final String TAG = BaseUrlSelector.class.getSimpleName();
+
+    private static final double SMOOTHING_FACTOR = 0.3; // weight of a new measurement in the averages
+    private static final long REFERENCE_SIZE = 1024 * 1024; // the size the expected download time is compared at
+    private static final long FAILURE_BACKOFF_MS = 10000;
+    private static final long MAX_FAILURE_BACKOFF_MS = 5 * 60 * 1000;
+
+    private Map<String, HostStats> mHostStats = new HashMap<>();
+
+    /**
+     * Returns the URLs of a segment, ordered from the most to the least preferable host.
+     */
+    synchronized List<String> getUrls(Segment segment) {
+        List<String> urls = segment.getUrls();
+        if (urls.size() == 1) {
+            return urls;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        final Map<String, HostStats> stats = new HashMap<>();
+        for (String url : urls) {
+            stats.put(url, mHostStats.get(getHost(url)));
+        }
+
+        List<String> sortedUrls = new ArrayList<>(urls);
+        // The sort is stable, so urls of equally ranked hosts keep the order of the MPD
+        Collections.sort(sortedUrls, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                HostStats lhsStats = stats.get(lhs);
+                HostStats rhsStats = stats.get(rhs);
+                boolean lhsFailed = lhsStats != null && lhsStats.isBackingOff(now);
+                boolean rhsFailed = rhsStats != null && rhsStats.isBackingOff(now);
+                if (lhsFailed != rhsFailed) {
+                    return lhsFailed ? 1 : -1;
+                }
+                return Double.compare(getExpectedTime(lhsStats), getExpectedTime(rhsStats));
+            }
+        });
+        return sortedUrls;
+    }
+
+    /**
+     * Reports a successful request to a host.
+     *
+     * @param url the requested URL
+     * @param latencyMs the time from sending the request to receiving the response headers
+     * @param byteSize the size of the response body
+     * @param transferTimeMs the time it took to read the response body
+     */
+    synchronized void reportSuccess(String url, long latencyMs, long byteSize, long transferTimeMs) {
+        HostStats stats = getOrCreateStats(url);
+        stats.latencyMs = average(stats.latencyMs, latencyMs);
+        if (byteSize > 0) {
+            double bytesPerMs = (double) byteSize / Math.max(transferTimeMs, 1);
+            stats.bytesPerMs = average(stats.bytesPerMs, bytesPerMs);
+        }
+        stats.failures = 0;
+        stats.backoffUntil = 0;
+    }
+
+    /**
+     * Reports a failed request to a host, e.g. a connection error, a timeout, or an error status.
+     */
+    synchronized void reportFailure(String url) {
+        HostStats stats = getOrCreateStats(url);
+        stats.failures++;
+        long backoffMs = Math.min(FAILURE_BACKOFF_MS << Math.min(stats.failures - 1, 10), MAX_FAILURE_BACKOFF_MS);
+        stats.backoffUntil = SystemClock.elapsedRealtime() + backoffMs;
+        Log.d(TAG, "host " + getHost(url) + " failed " + stats.failures + "x, backing off for " + backoffMs + "ms");
+    }
+
+    private HostStats getOrCreateStats(String url) {
+        String host = getHost(url);
+        HostStats stats = mHostStats.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            mHostStats.put(host, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the time a host is expected to take for a request of the reference size, or the
+     * maximum for a host without measurements.
+     */
+    private static double getExpectedTime(HostStats stats) {
+        if (stats == null || stats.bytesPerMs <= 0) {
+            return Double.MAX_VALUE;
+        }
+        return stats.latencyMs + REFERENCE_SIZE / stats.bytesPerMs;
+    }
+
+    private static double average(double average, double value) {
+        return average <= 0 ? value : average + SMOOTHING_FACTOR * (value - average);
+    }
+
+    static String getHost(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        return httpUrl != null ? httpUrl.scheme() + "://" + httpUrl.host() + ":" + httpUrl.port() : url;
+    }
+
+    private static class HostStats {
+
+        private double latencyMs;
+        private double bytesPerMs;
+        private int failures; // consecutive failures
+        private long backoffUntil; // elapsed realtime until which the host is put last
+
+        private boolean isBackingOff(long now) {
+            return backoffUntil > now;
+        }
+    }
+}
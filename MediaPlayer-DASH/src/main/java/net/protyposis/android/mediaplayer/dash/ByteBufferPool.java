@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A pool of direct byte buffers that avoids the expensive allocation of new direct buffers for
+ * every segment. Buffer capacities are rounded up to a fixed granularity so buffers can be reused
+ * for segments of similar size.
+ */
+class ByteBufferPool {
+
+    private static final int CAPACITY_GRANULARITY = 64 * 1024;
+
+    private List<ByteBuffer> mFreeBuffers;
+    private long mFreeBytes;
+    private long mMaxFreeBytes;
+
+    /**
+     * @param maxFreeBytes the maximum size of all unused buffers kept in the pool
+     */
+    ByteBufferPool(long maxFreeBytes) {
+        mFreeBuffers = new LinkedList<>();
+        mMaxFreeBytes = maxFreeBytes;
+    }
+
+    /**
+     * Returns a cleared buffer with a limit of the requested size, either from the pool or a
+     * newly allocated one.
+     */
+    synchronized ByteBuffer acquire(int size) {
+        // Find the smallest fitting buffer, but do not waste more than half of a buffer
+        ByteBuffer bestBuffer = null;
+        for (ByteBuffer buffer : mFreeBuffers) {
+            if (buffer.capacity() >= size && buffer.capacity() <= size * 2
+                    && (bestBuffer == null || buffer.capacity() < bestBuffer.capacity())) {
+                bestBuffer = buffer;
+            }
+        }
+
+        if (bestBuffer != null) {
+            mFreeBuffers.remove(bestBuffer);
+            mFreeBytes -= bestBuffer.capacity();
+        } else {
+            int capacity = (size + CAPACITY_GRANULARITY - 1) / CAPACITY_GRANULARITY * CAPACITY_GRANULARITY;
+            bestBuffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        bestBuffer.clear();
+        bestBuffer.limit(size);
+        return bestBuffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. If the pool is full, the oldest buffers are dropped.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        mFreeBuffers.add(buffer);
+        mFreeBytes += buffer.capacity();
+        trimToSize(mMaxFreeBytes);
+    }
+
+    /**
+     * Drops unused buffers until the pool holds at most the given amount of bytes.
+     */
+    synchronized void trimToSize(long maxFreeBytes) {
+        Iterator<ByteBuffer> iterator = mFreeBuffers.iterator();
+        while (mFreeBytes > maxFreeBytes && iterator.hasNext()) {
+            mFreeBytes -= iterator.next().capacity();
+            iterator.remove();
+        }
+    }
+}
@@ -16,8 +16,6 @@
 
 package net.protyposis.android.mediaplayer.dash;
 
-import java.io.File;
-
 /**
  * Created by Mario on 03.09.2014.
  */
@@ -26,8 +24,11 @@ class CachedSegment {
     Segment segment;
     Representation representation;
     AdaptationSet adaptationSet;
-    File file;
+    SegmentData data;
     long ptsOffsetUs;
+    long[] syncSampleTimesUs; // the PTS of the sync samples in the segment, null if unknown
+    volatile long loadedBytes; // the bytes received so far while the segment is downloading
+    long deadline; // the elapsedRealtime when the segment is needed for playback, 0 if unknown
 
     CachedSegment(int number, Segment segment, Representation representation, AdaptationSet adaptationSet) {
         this.number = number;
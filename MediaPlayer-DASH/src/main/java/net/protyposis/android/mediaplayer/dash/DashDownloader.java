@@ -0,0 +1,426 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.net.Uri;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Downloads selected representations of a static MPD to local storage for offline playback.
+ *
+ * Segments are downloaded in parallel into a directory, each into its own file. Interrupted
+ * downloads are resumed by calling {@link #download(List)} again: completed segments are skipped
+ * and partially downloaded segments are continued with ranged requests. When all segments are
+ * downloaded, a local MPD that references the segment files is written, which can be played
+ * without network access through a {@link DashSource} with the URI of {@link #getManifestFile()}.
+ *
+ * Playback of a downloaded title goes through the same extractor path as streaming; segments are
+ * just read from local files instead of the network.
+ */
+public class DashDownloader {
+
+    private static final String TAG = DashDownloader.class.getSimpleName();
+
+    private static final String MANIFEST_FILE = "manifest.mpd";
+    private static final long TIMESCALE = 1000000; // microseconds
+
+    /**
+     * Receives the progress of a download.
+     */
+    public interface OnProgressListener {
+        /**
+         * Called from a download thread when a segment has been downloaded.
+         *
+         * @param completedSegments the number of segments that are completely downloaded
+         * @param totalSegments the total number of segments of the download
+         */
+        void onProgress(int completedSegments, int totalSegments);
+    }
+
+    private MPD mMPD;
+    private SegmentDownloader mSegmentDownloader;
+    private File mDirectory;
+    private int mParallelDownloads = 3;
+    private OnProgressListener mOnProgressListener;
+    private volatile boolean mCanceled;
+
+    /**
+     * Creates a downloader for an MPD.
+     *
+     * @param mpd the MPD to download from, see {@link DashParser}
+     * @param httpClient the http client for the segment requests, or null to use the shared
+     *                   client of {@link HttpClientProvider}
+     * @param headers additional http headers for the segment requests, or null
+     * @param directory the directory to store the title in, must not be used for other files
+     */
+    public DashDownloader(MPD mpd, OkHttpClient httpClient, Map<String, String> headers, File directory) {
+        if (mpd.isDynamic) {
+            throw new IllegalArgumentException("dynamic MPDs cannot be downloaded");
+        }
+        mMPD = mpd;
+        mSegmentDownloader = new SegmentDownloader(httpClient != null ? httpClient : HttpClientProvider.getHttpClient(), headers);
+        mDirectory = directory;
+    }
+
+    public DashDownloader(MPD mpd, File directory) {
+        this(mpd, null, null, directory);
+    }
+
+    /**
+     * Sets the number of segments that are downloaded in parallel. Default is 3.
+     */
+    public void setParallelDownloads(int parallelDownloads) {
+        mParallelDownloads = Math.max(parallelDownloads, 1);
+    }
+
+    public void setOnProgressListener(OnProgressListener listener) {
+        mOnProgressListener = listener;
+    }
+
+    /**
+     * Gets the local MPD file, which only exists when the download is complete.
+     *
+     * @return the local MPD file
+     */
+    public File getManifestFile() {
+        return new File(mDirectory, MANIFEST_FILE);
+    }
+
+    /**
+     * Tells if the title has been completely downloaded.
+     *
+     * @return true if the title can be played offline
+     */
+    public boolean isComplete() {
+        return getManifestFile().exists();
+    }
+
+    /**
+     * Downloads the segments of the selected representations and writes the local MPD. Blocks
+     * until the download is complete, fails, or is canceled; must therefore not be called on
+     * the main thread.
+     *
+     * @param representations the representations to download, e.g. one of the video and one of
+     *                        the audio adaptation set of each period
+     * @return the local MPD file
+     * @throws IOException if a segment cannot be downloaded or the download has been canceled;
+     *                     the download can then be resumed by calling this method again
+     */
+    public File download(List<Representation> representations) throws IOException {
+        mCanceled = false;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("cannot create directory " + mDirectory);
+        }
+
+        // Collect the download jobs, skipping segments that have been downloaded before
+        final List<DownloadJob> jobs = new ArrayList<>();
+        int totalSegments = 0;
+        for (Representation representation : representations) {
+            File representationDirectory = getRepresentationDirectory(representation);
+            if (!representationDirectory.isDirectory() && !representationDirectory.mkdirs()) {
+                throw new IOException("cannot create directory " + representationDirectory);
+            }
+
+            List<Segment> segments = new ArrayList<>();
+            segments.add(representation.initSegment);
+            segments.addAll(representation.segments);
+            for (int i = 0; i < segments.size(); i++) {
+                if (segments.get(i) == null) {
+                    continue; // thumbnail representations have no init segment
+                }
+                File file = getSegmentFile(representation, segments.get(i), i - 1);
+                if (!file.exists()) {
+                    jobs.add(new DownloadJob(segments.get(i), file));
+                }
+            }
+            totalSegments += segments.size();
+        }
+
+        final int total = totalSegments;
+        final AtomicInteger completed = new AtomicInteger(totalSegments - jobs.size());
+        Log.d(TAG, "downloading " + jobs.size() + " of " + total + " segments to " + mDirectory);
+
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelDownloads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(jobs.size());
+            for (final DownloadJob job : jobs) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if (mCanceled) {
+                            throw new IOException("download canceled");
+                        }
+                        mSegmentDownloader.downloadToFile(job.segment, job.file);
+                        if (mOnProgressListener != null) {
+                            mOnProgressListener.onProgress(completed.incrementAndGet(), total);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Stop the remaining jobs, the download can be resumed later
+                    mCanceled = true;
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                } catch (InterruptedException e) {
+                    mCanceled = true;
+                    throw new IOException("download interrupted", e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        writeManifest(representations);
+        Log.d(TAG, "download complete: " + getManifestFile());
+
+        return getManifestFile();
+    }
+
+    /**
+     * Cancels a running download. Segments that are currently being downloaded are finished
+     * (or kept as partial files), the remaining segments are skipped and {@link #download(List)}
+     * throws an exception.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Deletes the downloaded title, including partial downloads.
+     */
+    public void delete() {
+        getManifestFile().delete();
+        deleteRecursive(mDirectory);
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes a static MPD with a SegmentList per representation that references the local files.
+     * Only periods and adaptation sets that contain downloaded representations are written.
+     */
+    private void writeManifest(List<Representation> representations) throws IOException {
+        File manifestFile = getManifestFile();
+        File tempFile = new File(mDirectory, MANIFEST_FILE + ".tmp");
+
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            XmlSerializer serializer = Xml.newSerializer();
+            serializer.setOutput(out, "UTF-8");
+            serializer.startDocument("UTF-8", null);
+            serializer.startTag(null, "MPD");
+            serializer.attribute(null, "xmlns", "urn:mpeg:dash:schema:mpd:2011");
+            serializer.attribute(null, "profiles", "urn:mpeg:dash:profile:full:2011");
+            serializer.attribute(null, "type", "static");
+            serializer.attribute(null, "mediaPresentationDuration", formatTime(mMPD.mediaPresentationDurationUs));
+            serializer.attribute(null, "minBufferTime", formatTime(mMPD.minBufferTimeUs));
+
+            for (Period period : mMPD.periods) {
+                boolean periodStarted = false;
+                for (AdaptationSet adaptationSet : period.adaptationSets) {
+                    List<Representation> downloaded = new ArrayList<>();
+                    for (Representation representation : adaptationSet.representations) {
+                        if (representations.contains(representation)) {
+                            downloaded.add(representation);
+                        }
+                    }
+                    if (downloaded.isEmpty()) {
+                        continue;
+                    }
+
+                    if (!periodStarted) {
+                        serializer.startTag(null, "Period");
+                        if (period.id != null) {
+                            serializer.attribute(null, "id", period.id);
+                        }
+                        serializer.attribute(null, "start", formatTime(period.startUs));
+                        serializer.attribute(null, "duration", formatTime(period.durationUs));
+                        periodStarted = true;
+                    }
+
+                    serializer.startTag(null, "AdaptationSet");
+                    serializer.attribute(null, "group", String.valueOf(adaptationSet.group));
+                    if (adaptationSet.mimeType != null) {
+                        serializer.attribute(null, "mimeType", adaptationSet.mimeType);
+                    }
+                    if (adaptationSet.hasMaxDimensions()) {
+                        serializer.attribute(null, "maxWidth", String.valueOf(adaptationSet.maxWidth));
+                        serializer.attribute(null, "maxHeight", String.valueOf(adaptationSet.maxHeight));
+                    }
+                    if (adaptationSet.hasPAR()) {
+                        serializer.attribute(null, "par", formatRatio(adaptationSet.par));
+                    }
+
+                    for (Representation representation : downloaded) {
+                        writeRepresentation(serializer, representation);
+                    }
+
+                    serializer.endTag(null, "AdaptationSet");
+                }
+                if (periodStarted) {
+                    serializer.endTag(null, "Period");
+                }
+            }
+
+            serializer.endTag(null, "MPD");
+            serializer.endDocument();
+            serializer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(manifestFile)) {
+            tempFile.delete();
+            throw new IOException("cannot rename " + tempFile);
+        }
+    }
+
+    private void writeRepresentation(XmlSerializer serializer, Representation representation) throws IOException {
+        serializer.startTag(null, "Representation");
+        serializer.attribute(null, "id", representation.id);
+        serializer.attribute(null, "mimeType", representation.mimeType);
+        if (representation.codec != null) {
+            serializer.attribute(null, "codecs", representation.codec);
+        }
+        if (representation.width > 0 && representation.height > 0) {
+            serializer.attribute(null, "width", String.valueOf(representation.width));
+            serializer.attribute(null, "height", String.valueOf(representation.height));
+        }
+        if (representation.hasSAR()) {
+            serializer.attribute(null, "sar", formatRatio(representation.sar));
+        }
+        serializer.attribute(null, "bandwidth", String.valueOf(representation.bandwidth));
+
+        if (representation.tileColumns > 1 || representation.tileRows > 1) {
+            serializer.startTag(null, "EssentialProperty");
+            serializer.attribute(null, "schemeIdUri", "http://dashif.org/thumbnail_tile");
+            serializer.attribute(null, "value", representation.tileColumns + "x" + representation.tileRows);
+            serializer.endTag(null, "EssentialProperty");
+        }
+
+        serializer.startTag(null, "SegmentList");
+        serializer.attribute(null, "timescale", String.valueOf(TIMESCALE));
+        serializer.attribute(null, "duration", String.valueOf(representation.segmentDurationUs));
+
+        if (representation.initSegment != null) {
+            serializer.startTag(null, "Initialization");
+            serializer.attribute(null, "sourceURL", getRelativePath(
+                    getSegmentFile(representation, representation.initSegment, -1)));
+            serializer.endTag(null, "Initialization");
+        }
+
+        for (int i = 0; i < representation.segments.size(); i++) {
+            serializer.startTag(null, "SegmentURL");
+            serializer.attribute(null, "media", getRelativePath(
+                    getSegmentFile(representation, representation.segments.get(i), i)));
+            serializer.endTag(null, "SegmentURL");
+        }
+
+        serializer.endTag(null, "SegmentList");
+        serializer.endTag(null, "Representation");
+    }
+
+    /**
+     * Returns the directory of a representation, which is unique across all periods.
+     */
+    private File getRepresentationDirectory(Representation representation) {
+        int periodIndex = 0;
+        for (int i = 0; i < mMPD.periods.size(); i++) {
+            for (AdaptationSet adaptationSet : mMPD.periods.get(i).adaptationSets) {
+                if (adaptationSet.representations.contains(representation)) {
+                    periodIndex = i;
+                }
+            }
+        }
+        // remove all special chars to get a valid filename
+        return new File(mDirectory, periodIndex + "-" + representation.id.replaceAll("\\W+", ""));
+    }
+
+    /**
+     * Returns the local file of a segment. The file extension of the segment URL is retained,
+     * because the extractor derives the container format from it.
+     *
+     * @param number the segment number, -1 for the init segment
+     */
+    private File getSegmentFile(Representation representation, Segment segment, int number) {
+        String name = Uri.parse(segment.media).getLastPathSegment();
+        String extension = "";
+        if (name != null && name.lastIndexOf('.') > 0) {
+            extension = name.substring(name.lastIndexOf('.')).replaceAll("[^\\w.]+", "");
+        }
+        return new File(getRepresentationDirectory(representation),
+                (number < 0 ? "init" : String.valueOf(number)) + extension);
+    }
+
+    private String getRelativePath(File file) {
+        return file.getParentFile().getName() + "/" + file.getName();
+    }
+
+    private static String formatTime(long timeUs) {
+        return String.format(Locale.US, "PT%.6fS", timeUs / 1000000d);
+    }
+
+    private static String formatRatio(float ratio) {
+        return Math.round(ratio * 1000) + ":1000";
+    }
+
+    private static class DownloadJob {
+
+        private Segment segment;
+        private File file;
+
+        DownloadJob(Segment segment, File file) {
+            this.segment = segment;
+            this.file = file;
+        }
+    }
+}
@@ -19,34 +19,41 @@ package net.protyposis.android.mediaplayer.dash;
 import android.content.Context;
 import android.media.MediaFormat;
 import android.os.Build;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
 import android.os.SystemClock;
 import android.util.Log;
 
 import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
 import com.coremedia.iso.boxes.Container;
 import com.coremedia.iso.boxes.TrackBox;
 import com.googlecode.mp4parser.MemoryDataSourceImpl;
 import com.googlecode.mp4parser.authoring.Movie;
 import com.googlecode.mp4parser.authoring.Mp4TrackImpl;
+import com.googlecode.mp4parser.authoring.Track;
 import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
 import com.googlecode.mp4parser.boxes.threegpp26244.SegmentIndexBox;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.protyposis.android.mediaplayer.DefaultLoadControl;
+import net.protyposis.android.mediaplayer.LoadControl;
 import net.protyposis.android.mediaplayer.MediaExtractor;
 
-import okhttp3.Call;
-import okhttp3.Response;
 import okio.BufferedSink;
 import okio.ByteString;
 import okio.Okio;
@@ -65,7 +72,34 @@ public class DashMediaExtractor extends MediaExtractor {
 
     private static final String TAG = DashMediaExtractor.class.getSimpleName();
 
-    private static volatile int sInstanceCount = 0;
+    private static final AtomicInteger sInstanceCount = new AtomicInteger();
+
+    /**
+     * The playback speed from which on the trick mode set is used, if the adaptation set has one.
+     */
+    private static final float TRICK_MODE_MIN_SPEED = 4f;
+
+    /**
+     * The interval in which an idle extractor checks if the load control wants to restart loading.
+     */
+    private static final long LOAD_CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * The policy that decides which used segments are kept in the segment cache.
+     */
+    public enum CachePolicy {
+        /**
+         * Keeps the least recently used segments. A linear playback or a long seek replaces
+         * all cached segments.
+         */
+        LRU,
+
+        /**
+         * Keeps the most frequently and recently used segments (Window TinyLFU), so segments
+         * that are repeatedly jumped back to are not flushed by a linear playback or a long seek.
+         */
+        TINY_LFU
+    }
 
     private Context mContext;
     private MPD mMPD;
@@ -73,22 +107,42 @@ public class DashMediaExtractor extends MediaExtractor {
     private AdaptationLogic mAdaptationLogic;
     private AdaptationSet mAdaptationSet;
     private Representation mRepresentation;
-    private long mMinBufferTimeUs;
+    private long mMinBufferTimeUs; // the buffer required by the MPD, which is kept regardless of the load control
+    private volatile LoadControl mLoadControl = DefaultLoadControl.DEFAULT;
+    private volatile boolean mLoadingIdle; // true after the load control has stopped loading, until it restarts loading
+    private ScheduledFuture<?> mLoadCheck; // periodically checks if an idle load should restart
     private boolean mRepresentationSwitched;
-    private int mCurrentSegment;
+    private volatile int mCurrentSegment;
     private List<Integer> mSelectedTracks;
     private Map<Representation, ByteString> mInitSegments;
     private Map<Integer, CachedSegment> mFutureCache; // the cache for upcoming segments
-    private SegmentLruCache mUsedCache; // cache for used or in use segments
+    private Map<Integer, CachedSegment> mLoadingSegments; // upcoming segments in transfer or processing
+    private SegmentCache mUsedCache; // cache for used or in use segments
+    private CachePolicy mCachePolicy = CachePolicy.TINY_LFU;
+    private SegmentCacheManager mCacheManager; // enforces the process-wide budget of all used caches
     private int mUsedCacheSize = 100 * 1024 * 1024; // 100MB by default
     private boolean mMp4Mode;
     private long mSegmentPTSOffsetUs;
-
-    private HandlerThread mSegmentProcessingThread;
-    private HandlerThread mSegmentSwitchingThread;
-    private Handler mSegmentProcessingHandler;
-    private Handler mSegmentSwitchingHandler;
+    private long[] mSegmentSyncSampleTimesUs; // sync sample index of the current segment, can be null
+    private SegmentStore mSegmentStore;
+    private boolean mSegmentStoreAcquired;
+    private SegmentData mCurrentSegmentData; // the data of the segment that is currently set as data source
+    private boolean mFastSeekEnabled;
+    private boolean mFastSeekPending; // true while the target segment of a seek is loaded
+    private long mPeriodStartUs = -1; // the presentation time of the period start, -1 for single-period playback
+    private long mPeriodDurationUs; // the duration of the period of the adaptation set, 0 if unknown
+    private AdaptationSet mTrickModeSet; // the trick mode set for fast playback, can be null
+    private volatile boolean mTrickModeActive;
+    private volatile boolean mTrickModeChanged; // true until the buffered segments are switched to the new mode
+    private RepresentationFilter mRepresentationFilter; // the filter applied by the adaptation logic, can be null
+
+    private Executor mSegmentProcessingExecutor; // shared by all extractors, processes in parallel
+    private Executor mSegmentSwitchingExecutor; // executes the switches of this extractor in order
     private SyncBarrier<IOException> mSegmentSwitchingBarrier;
+    private volatile boolean mReleased;
+    private final Object mPreparedSegmentLock = new Object();
+    private PreparedSegment mPreparedSegment; // the next segment, ready to be switched to
+    private boolean mPreparingSegment; // true while the next segment is being prepared
 
     public DashMediaExtractor() {
         // nothing to do here
@@ -97,21 +151,38 @@ public class DashMediaExtractor extends MediaExtractor {
     public final void setDataSource(Context context, MPD mpd, SegmentDownloader segmentDownloader, AdaptationSet adaptationSet,
                                     AdaptationLogic adaptationLogic)
             throws IOException {
+        boolean instanceCounted = false;
         try {
             mContext = context;
             mMPD = mpd;
             mSegmentDownloader = segmentDownloader;
             mAdaptationSet = adaptationSet;
             mAdaptationLogic = adaptationLogic;
-            mRepresentation = adaptationLogic.initialize(mAdaptationSet);
-            mMinBufferTimeUs = Math.max(mMPD.minBufferTimeUs, 10 * 1000000L); // 10 secs min buffer time; NOTE: make sure this is above MediaPlayer's low buffering water mark
+            // The extractors of a source share the adaptation logic and may be created in parallel
+            synchronized (adaptationLogic) {
+                mRepresentation = adaptationLogic.initialize(mAdaptationSet);
+            }
+            mMinBufferTimeUs = mMPD.minBufferTimeUs;
             mCurrentSegment = -1;
             mSelectedTracks = new ArrayList<>();
             mInitSegments = new ConcurrentHashMap<>(mAdaptationSet.representations.size());
             mFutureCache = new ConcurrentHashMap<>();
-            mUsedCache = new SegmentLruCache(mUsedCacheSize == 0 ? 1 : mUsedCacheSize);
+            mLoadingSegments = new ConcurrentHashMap<>();
+            int usedCacheSize = mUsedCacheSize == 0 ? 1 : mUsedCacheSize;
+            mUsedCache = mCachePolicy == CachePolicy.LRU
+                    ? new SegmentLruCache(usedCacheSize) : new TinyLfuSegmentCache(usedCacheSize);
+            mUsedCache.setWeight(mRepresentation.bandwidth);
+            mCacheManager = SegmentCacheManager.getInstance(context);
+            mCacheManager.register(mUsedCache);
             mMp4Mode = mRepresentation.mimeType.equals("video/mp4") || mRepresentation.initSegment.media.endsWith(".mp4");
             mSegmentPTSOffsetUs = 0;
+            mTrickModeSet = findTrickModeSet();
+            mPeriodDurationUs = findPeriodDuration();
+            if(mSegmentStore == null) {
+                mSegmentStore = new SegmentStore(mContext, SegmentStore.DEFAULT_MAX_MEMORY_SIZE, SegmentStore.DEFAULT_RING_FILE_SIZE);
+            }
+            mSegmentStore.acquire();
+            mSegmentStoreAcquired = true;
 
             /* If the extractor previously crashed and could not gracefully finish, some old temp files
              * that will never be used again might be around, so just delete all of them and avoid the
@@ -119,29 +190,34 @@ public class DashMediaExtractor extends MediaExtractor {
              * Only clean at startup of the first instance, else newer ones delete cache files of
              * running ones.
              */
-            if (sInstanceCount++ == 0) {
+            boolean firstInstance = sInstanceCount.getAndIncrement() == 0;
+            instanceCounted = true;
+            if (firstInstance) {
                 clearTempDir(mContext);
             }
 
-            if(mSegmentProcessingThread != null) {
-                mSegmentProcessingThread.quit();
-            }
-            if(mSegmentSwitchingThread != null) {
-                mSegmentSwitchingThread.quit();
-            }
-
-            mSegmentProcessingThread = new HandlerThread("DashMediaExtractor-SegmentProcessor");
-            mSegmentProcessingThread.start();
-            mSegmentProcessingHandler = new Handler(mSegmentProcessingThread.getLooper(), mHandlerCallback);
-
-            mSegmentSwitchingThread = new HandlerThread("DashMediaExtractor-SegmentSwitcher");
-            mSegmentSwitchingThread.start();
-            mSegmentSwitchingHandler = new Handler(mSegmentSwitchingThread.getLooper(), mHandlerCallback);
+            mSegmentProcessingExecutor = SegmentExecutors.getProcessingExecutor();
+            mSegmentSwitchingExecutor = SegmentExecutors.newSwitchingExecutor();
             mSegmentSwitchingBarrier = new SyncBarrier<>();
+            mReleased = false;
+            mLoadCheck = SegmentExecutors.getTimer().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    // The buffer drains during playback, check if the load control wants to restart loading
+                    if(mLoadingIdle && !mReleased) {
+                        refillFutureCacheAsync();
+                    }
+                }
+            }, LOAD_CHECK_INTERVAL_MS, LOAD_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
 
             initOnWorkerThread(getNextSegment());
         } catch (Exception e) {
             Log.e(TAG, "failed to set data source");
+            // The caller does not get the extractor, so undo the registrations right away
+            release();
+            if (instanceCounted) {
+                sInstanceCount.decrementAndGet();
+            }
             throw new IOException("failed to set data source", e);
         }
     }
@@ -180,6 +256,119 @@ public class DashMediaExtractor extends MediaExtractor {
         }
     }
 
+    /**
+     * Gets the policy of the segment cache.
+     *
+     * @return the segment cache policy
+     */
+    public CachePolicy getCachePolicy() {
+        return mCachePolicy;
+    }
+
+    /**
+     * Sets the policy of the segment cache. Default policy is {@link CachePolicy#TINY_LFU}.
+     * The policy must be set before setting the data source, which is when the cache is created.
+     *
+     * @param cachePolicy the segment cache policy
+     */
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        mCachePolicy = cachePolicy;
+    }
+
+    /**
+     * Tells if fast seeking is enabled.
+     *
+     * @return true if fast seeking is enabled
+     */
+    public boolean isFastSeekEnabled() {
+        return mFastSeekEnabled;
+    }
+
+    /**
+     * Enables or disables fast seeking. When enabled, the target segment of a seek to a position
+     * that is not buffered is loaded from the representation with the lowest bitrate, so it can be
+     * rendered as soon as possible, and the following segments are loaded in the representation
+     * recommended by the adaptation logic. Fast seeking is disabled by default.
+     *
+     * @param enabled true to enable fast seeking
+     */
+    public void setFastSeekEnabled(boolean enabled) {
+        mFastSeekEnabled = enabled;
+    }
+
+    /**
+     * Sets the store that holds the processed segments for playback. Must be called before
+     * setting the data source; if no store is set, a store with a default memory budget is
+     * created. Sharing a store between extractors shares its memory budget.
+     */
+    void setSegmentStore(SegmentStore segmentStore) {
+        mSegmentStore = segmentStore;
+    }
+
+    /**
+     * Sets the representation filter that the adaptation logic applies, which receives the
+     * viewport size of this extractor.
+     */
+    void setRepresentationFilter(RepresentationFilter representationFilter) {
+        mRepresentationFilter = representationFilter;
+    }
+
+    /**
+     * Sets the start time of the period that the adaptation set belongs to, which makes the
+     * sample times of this extractor relative to the start of the presentation instead of the
+     * start of the period. Must be called before setting the data source of a multi-period MPD.
+     */
+    void setPeriodStartUs(long periodStartUs) {
+        mPeriodStartUs = periodStartUs;
+    }
+
+    /**
+     * Switches to the trick mode set of the adaptation set, if it has one, when the playback speed
+     * is at least {@link #TRICK_MODE_MIN_SPEED}, and back to the regular representations when the
+     * speed drops below. The switch applies to the segments that are loaded after the current one.
+     */
+    @Override
+    public void setPlaybackSpeed(float speed) {
+        boolean trickModeActive = mTrickModeSet != null && speed >= TRICK_MODE_MIN_SPEED;
+        if(trickModeActive != mTrickModeActive) {
+            Log.d(TAG, "trick mode " + (trickModeActive ? "on" : "off") + " @ speed " + speed);
+            mTrickModeActive = trickModeActive;
+            mTrickModeChanged = true;
+        }
+    }
+
+    /**
+     * Passes the viewport size to the representation filter, so representations far above the
+     * viewport size are not loaded from the next segment on.
+     */
+    @Override
+    public void setViewportSize(int width, int height) {
+        if(mRepresentationFilter != null) {
+            mRepresentationFilter.setViewportSize(width, height);
+        }
+    }
+
+    /**
+     * Sets the load control that decides how many segments are buffered ahead. The MPD's minimum
+     * buffer time is always buffered. Takes effect with the next segment.
+     */
+    @Override
+    public void setLoadControl(LoadControl loadControl) {
+        mLoadControl = loadControl;
+    }
+
+    /**
+     * Passes the rendering stats of the current representation to the adaptation logic, if it is
+     * a {@link RenderingHealthReceiver}.
+     */
+    @Override
+    public void reportRenderingStats(int renderedFrames, int lateFrames, long durationMs) {
+        if(mAdaptationLogic instanceof RenderingHealthReceiver) {
+            ((RenderingHealthReceiver) mAdaptationLogic).reportRenderingHealth(
+                    mAdaptationSet, mRepresentation, renderedFrames, lateFrames, durationMs);
+        }
+    }
+
     @Override
     public MediaFormat getTrackFormat(int index) {
         MediaFormat mediaFormat = super.getTrackFormat(index);
@@ -261,6 +450,16 @@ public class DashMediaExtractor extends MediaExtractor {
     private boolean switchToNextSegment() throws IOException {
         Integer next = getNextSegment();
         if(next != null) {
+            PreparedSegment preparedSegment = takePreparedSegment(next);
+            if(preparedSegment != null) {
+                /* The next segment has been set up ahead of time in a separate extractor, which
+                 * is swapped in without waiting for the worker thread. The housekeeping that
+                 * follows a switch can block on I/O and is left to the worker thread. */
+                activate(preparedSegment);
+                handleSegmentActivatedAsync(preparedSegment.cachedSegment);
+                return true;
+            }
+
             /* Since it seems that an extractor cannot be reused by setting another data source,
              * a new instance needs to be created and used. */
             renewExtractor();
@@ -276,7 +475,44 @@ public class DashMediaExtractor extends MediaExtractor {
 
     @Override
     public long getCachedDuration() {
-        return mFutureCache.size() * mRepresentation.segmentDurationUs;
+        /* The playable duration ahead of the current position, which consists of the remainder of
+         * the current segment and the consecutive buffered segments following it. Segments in
+         * transfer do not count because they cannot be played until they are complete. */
+        int currentSegment = mCurrentSegment;
+        long cachedDurationUs = currentSegment < 0 ? 0 : getRemainingSegmentDuration(currentSegment);
+        for(int i = currentSegment + 1; i < mRepresentation.segments.size(); i++) {
+            if(getBufferedSegment(i) == null) {
+                break;
+            }
+            cachedDurationUs += getSegmentDuration(i);
+        }
+        return cachedDurationUs;
+    }
+
+    @Override
+    public long getCachedBytes() {
+        /* The size of all data held for upcoming playback: the unread part of the current segment
+         * (estimated by its played time), the buffered segments, and the received data of segments
+         * in transfer. */
+        long cachedBytes = 0;
+        int currentSegment = mCurrentSegment;
+        SegmentData currentSegmentData = mCurrentSegmentData;
+        if(currentSegment >= 0 && currentSegmentData != null) {
+            cachedBytes += (long)((double)currentSegmentData.getSize()
+                    * getRemainingSegmentDuration(currentSegment) / getSegmentDuration(currentSegment));
+        }
+        for(CachedSegment cachedSegment : mFutureCache.values()) {
+            cachedBytes += cachedSegment.data.getSize();
+        }
+        synchronized (mPreparedSegmentLock) {
+            if(mPreparedSegment != null) {
+                cachedBytes += mPreparedSegment.cachedSegment.data.getSize();
+            }
+        }
+        for(CachedSegment cachedSegment : mLoadingSegments.values()) {
+            cachedBytes += cachedSegment.loadedBytes;
+        }
+        return cachedBytes;
     }
 
     @Override
@@ -286,7 +522,7 @@ public class DashMediaExtractor extends MediaExtractor {
          * or of the last segment is currently played back.
          */
         int lastSegmentNumber = mRepresentation.segments.size() - 1;
-        return mFutureCache.containsKey(lastSegmentNumber)
+        return getBufferedSegment(lastSegmentNumber) != null
                 || mCurrentSegment >= lastSegmentNumber;
     }
 
@@ -303,18 +539,45 @@ public class DashMediaExtractor extends MediaExtractor {
 
     @Override
     public void seekTo(long timeUs, int mode) throws IOException {
-        int targetSegmentIndex = Math.min((int) (timeUs / mRepresentation.segmentDurationUs), mRepresentation.segments.size() - 1);
+        long periodTimeUs = mPeriodStartUs == -1 ? timeUs : Math.max(timeUs - mPeriodStartUs, 0);
+        int targetSegmentIndex = Math.min((int) (periodTimeUs / mRepresentation.segmentDurationUs), mRepresentation.segments.size() - 1);
         Log.d(TAG, "seek to " + timeUs + " @ segment " + targetSegmentIndex);
         if(targetSegmentIndex == mCurrentSegment) {
-            /* Because the DASH segments do not contain seeking cues, the position in the current
-             * segment needs to be reset to the start. Else, seeks are always progressing, never
-             * going back in time. */
-            super.seekTo(0, mode);
+            long syncSampleTimeUs = findSyncSampleTime(timeUs, mode);
+            if(syncSampleTimeUs != -1) {
+                // Seek directly to the sync sample instead of decoding from the segment start
+                super.seekTo(syncSampleTimeUs - mSegmentPTSOffsetUs, SEEK_TO_PREVIOUS_SYNC);
+            }
+            if(syncSampleTimeUs == -1 || getSampleTime() > Math.max(timeUs, syncSampleTimeUs)) {
+                /* Because the DASH segments do not contain seeking cues, the position in the current
+                 * segment needs to be reset to the start. Else, seeks are always progressing, never
+                 * going back in time. */
+                super.seekTo(0, mode);
+            }
         } else {
-            invalidateFutureCache();
+            // Keep the buffered and requested segments that are still ahead of the seek target
+            mCurrentSegment = targetSegmentIndex - 1; // makes a prepared segment return to the cache if still needed
+            PreparedSegment preparedSegment;
+            synchronized (mPreparedSegmentLock) {
+                preparedSegment = mPreparedSegment;
+                if(preparedSegment != null && preparedSegment.cachedSegment.number == targetSegmentIndex) {
+                    preparedSegment = null; // the seek target is ready, the init below switches to it
+                } else {
+                    mPreparedSegment = null;
+                }
+            }
+            if(preparedSegment != null) {
+                discard(preparedSegment);
+            }
+            invalidateFutureCache(targetSegmentIndex, targetSegmentIndex + getSegmentsToBuffer());
             renewExtractor();
             mCurrentSegment = targetSegmentIndex;
-            initOnWorkerThread(targetSegmentIndex);
+            mFastSeekPending = mFastSeekEnabled;
+            try {
+                initOnWorkerThread(targetSegmentIndex);
+            } finally {
+                mFastSeekPending = false;
+            }
             super.seekTo(timeUs - mSegmentPTSOffsetUs, mode);
         }
     }
@@ -322,14 +585,30 @@ public class DashMediaExtractor extends MediaExtractor {
     @Override
     public void release() {
         super.release();
-        if(mSegmentProcessingThread != null) {
-            mSegmentProcessingThread.quit();
+        mReleased = true; // pending segment processing and switching tasks are dropped
+        takePreparedSegment(-1);
+        if(mFutureCache != null) {
+            invalidateFutureCache();
         }
-        if(mSegmentSwitchingThread != null) {
-            mSegmentSwitchingThread.quit();
+        releaseCurrentSegmentData();
+        if(mUsedCache != null) {
+            mUsedCache.evictAll();
+            Log.d(TAG, "segment cache hits " + mUsedCache.getHitCount() + ", misses " + mUsedCache.getMissCount());
+            if(mCacheManager != null) {
+                mCacheManager.unregister(mUsedCache);
+            }
+        }
+        if(mSegmentDownloader != null) {
+            mSegmentDownloader.flushDiskCache();
+        }
+        if(mLoadCheck != null) {
+            mLoadCheck.cancel(false);
+            mLoadCheck = null;
+        }
+        if(mSegmentStoreAcquired) {
+            mSegmentStore.release(); // closes the ring file if no other extractor uses the store
+            mSegmentStoreAcquired = false;
         }
-        invalidateFutureCache();
-        mUsedCache.evictAll();
     }
 
     /**
@@ -346,15 +625,20 @@ public class DashMediaExtractor extends MediaExtractor {
         return false;
     }
 
-    private void initOnWorkerThread(int segmentNr) throws IOException {
-        if (!mSegmentSwitchingThread.isAlive()) {
+    private void initOnWorkerThread(final int segmentNr) throws IOException {
+        if (mReleased) {
             // This can (should) only happen when releasing the extractor
-            Log.d(TAG, "dropping init, thread is gone");
+            Log.d(TAG, "dropping init, extractor is released");
             return;
         }
 
-        // Send the init command to the handler thread...
-        mSegmentSwitchingHandler.sendMessage(mSegmentSwitchingHandler.obtainMessage(MESSAGE_SEGMENT_INIT, segmentNr, 0));
+        // Send the init command to the switching executor...
+        mSegmentSwitchingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                handleSegmentInit(segmentNr);
+            }
+        });
         // ... and block until it's done
         IOException e = mSegmentSwitchingBarrier.doWait();
 
@@ -365,15 +649,37 @@ public class DashMediaExtractor extends MediaExtractor {
     }
 
     private void init(Integer segmentNr) throws IOException {
+        PreparedSegment preparedSegment = takePreparedSegment(segmentNr);
+        if(preparedSegment == null) {
+            preparedSegment = prepare(loadSegment(segmentNr));
+        }
+        activate(preparedSegment);
+        handleSegmentActivated(preparedSegment.cachedSegment);
+    }
+
+    /**
+     * Returns the pinned cached segment, blocking until it is downloaded if necessary.
+     */
+    private CachedSegment loadSegment(int segmentNr) throws IOException {
         // Check for segment in caches, and execute blocking download if missing
         // First, check the future cache, without a seek the chance is much higher of finding it there
+        // A cached segment is pinned right away, so its storage cannot be reclaimed while it is used;
+        // if it has already been reclaimed (e.g. overwritten in a ring file), it counts as missing.
         CachedSegment cachedSegment = mFutureCache.remove(segmentNr);
+        if(cachedSegment != null && !cachedSegment.data.pin()) {
+            cachedSegment = null;
+        }
         if(cachedSegment == null) {
             // Second, check the already used cache, maybe we had a seek and the segment is already there
-            cachedSegment = mUsedCache.get(segmentNr);
+            cachedSegment = mUsedCache.get(segmentNr, getCacheLookupOrder());
+            if(cachedSegment != null && !cachedSegment.data.pin()) {
+                mUsedCache.remove(new SegmentCache.Key(cachedSegment.representation, segmentNr));
+                cachedSegment = null;
+            }
             if(cachedSegment == null) {
                 // Third, check if a request is already active
-                boolean downloading = mSegmentDownloader.isDownloading(mAdaptationSet, segmentNr);
+                boolean downloading = mLoadingSegments.containsKey(segmentNr)
+                        || mSegmentDownloader.isDownloading(mAdaptationSet, segmentNr);
                 /* TODO add synchronization to the whole caching code
                  * E.g., a request could have finished between this mFutureCacheRequests call and
                  * the previous mUsedCache call, whose result is missed.
@@ -382,6 +688,11 @@ public class DashMediaExtractor extends MediaExtractor {
                     synchronized (mFutureCache) {
                         try {
                             while((cachedSegment = mFutureCache.remove(segmentNr)) == null) {
+                                if(!mLoadingSegments.containsKey(segmentNr)) {
+                                    // The request has failed after all retries, or finished just now
+                                    cachedSegment = mFutureCache.remove(segmentNr);
+                                    break;
+                                }
                                 Log.d(TAG, "waiting for request to finish " + segmentNr);
                                 mFutureCache.wait();
                             }
@@ -389,24 +700,62 @@ public class DashMediaExtractor extends MediaExtractor {
                             e.printStackTrace();
                         }
                     }
-                } else {
+                }
+                if(cachedSegment == null) {
                     // Fourth, least and worst alternative: blocking download of segment
-                    cachedSegment = downloadFile(segmentNr);
+                    // After a fast seek, load the lowest bitrate to render the target as soon as possible
+                    Representation representation = mRepresentation;
+                    if(mTrickModeActive) {
+                        representation = getTrickModeRepresentation();
+                    } else if(mFastSeekPending) {
+                        representation = getLowestRepresentation();
+                    } else if(isTrickModeRepresentation(mRepresentation)) {
+                        representation = mAdaptationLogic.getRecommendedRepresentation(mAdaptationSet);
+                    }
+                    cachedSegment = downloadFile(segmentNr, representation);
+                }
+                if(!cachedSegment.data.pin()) {
+                    throw new IOException("segment " + segmentNr + " has been reclaimed before use");
                 }
             }
         }
 
+        return cachedSegment;
+    }
+
+    /**
+     * Sets a pinned cached segment as data source of a separate extractor, which can be set up
+     * ahead of time, while the current segment is still read.
+     */
+    private PreparedSegment prepare(CachedSegment cachedSegment) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            cachedSegment.data.setAsDataSource(extractor);
+        } catch (IOException e) {
+            extractor.release();
+            cachedSegment.data.unpin();
+            throw e;
+        }
+        return new PreparedSegment(cachedSegment, extractor);
+    }
+
+    /**
+     * Switches to a prepared segment. This does not block and can be called on the playback
+     * thread at a segment boundary; it must be followed by {@link #handleSegmentActivated}.
+     */
+    private void activate(PreparedSegment preparedSegment) {
+        CachedSegment cachedSegment = preparedSegment.cachedSegment;
+
         mSegmentPTSOffsetUs = cachedSegment.ptsOffsetUs;
-        setDataSource(cachedSegment.file.getPath());
+        mSegmentSyncSampleTimesUs = cachedSegment.syncSampleTimesUs;
 
-        // If the cache size is smaller than the segment, the segment file will not be cached but
-        // deleted immediately (the cache will remove it immediately because it cannot hold it,
-        // and thereby delete it). This does not matter, because if we set the cache size that small,
-        // we are not interested in caching segments anyway. It's not a problem when a segment gets
-        // deleted here, because it has already been set as data source above and as long as the
-        // extractor has a reference to the file, it stays accessible.
-        // It is important that the deletion happens after the data source is set!
-        mUsedCache.put(segmentNr, cachedSegment);
+        // Switch to the segment's extractor, which releases the previous segment's extractor,
+        // so its data is not used any more
+        takeDataSource(preparedSegment.extractor);
+        releaseCurrentSegmentData();
+
+        // The data stays pinned while it is set as data source, else it could be freed by a cache eviction
+        mCurrentSegmentData = cachedSegment.data;
 
         // Reselect tracks at reinitialization for a successive segment
         if(!mSelectedTracks.isEmpty()) {
@@ -421,13 +770,214 @@ public class DashMediaExtractor extends MediaExtractor {
             Log.d(TAG, "representation switch: " + mRepresentation + " -> " + cachedSegment.representation);
             mRepresentationSwitched = true;
             mRepresentation = cachedSegment.representation;
+            mUsedCache.setWeight(mRepresentation.bandwidth);
         }
+    }
+
+    /**
+     * Executes {@link #handleSegmentActivated} on the switching executor.
+     */
+    private void handleSegmentActivatedAsync(final CachedSegment cachedSegment) {
+        mSegmentSwitchingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mReleased) {
+                    handleSegmentActivated(cachedSegment);
+                } else {
+                    // Not cached, so it must be deleted here to free its storage
+                    cachedSegment.data.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Does the housekeeping after a segment switch: caches the activated segment, and refills
+     * the future cache. This can block on file I/O and must not run on the playback thread.
+     */
+    private void handleSegmentActivated(CachedSegment cachedSegment) {
+        int segmentNr = cachedSegment.number;
 
-        // Switch future caching to the currently best representation
-        Representation recommendedRepresentation = mAdaptationLogic.getRecommendedRepresentation(mAdaptationSet);
+        // If the cache size is smaller than the segment, the segment will not be cached but
+        // deleted immediately (the cache will remove it immediately because it cannot hold it,
+        // and thereby delete it). This does not matter, because if we set the cache size that small,
+        // we are not interested in caching segments anyway. It's not a problem when a segment gets
+        // deleted here, because it is pinned above and its storage is only freed when it is unpinned
+        // after the extractor has switched to another segment.
+        mUsedCache.put(new SegmentCache.Key(cachedSegment.representation, segmentNr), cachedSegment);
+        mCacheManager.enforceBudget();
+
+        // Drop the buffered segments of the previous mode after a trick mode switch
+        if(mTrickModeChanged) {
+            mTrickModeChanged = false;
+            invalidateFutureCache();
+        }
+
+        refillFutureCache();
+
+        // Set up the next segment in the background if it is already buffered
+        prepareSegmentAsync(segmentNr + 1);
+    }
+
+    /**
+     * Fills the future cache with the currently best representation.
+     */
+    private void refillFutureCache() {
+        if(mCurrentSegment < 0) {
+            return; // not initialized yet
+        }
+        Representation recommendedRepresentation = mTrickModeActive
+                ? getTrickModeRepresentation()
+                : mAdaptationLogic.getRecommendedRepresentation(mAdaptationSet);
         fillFutureCache(recommendedRepresentation);
     }
 
+    /**
+     * Executes {@link #refillFutureCache()} on the switching executor, because it can read
+     * segments from local storage.
+     */
+    private void refillFutureCacheAsync() {
+        mSegmentSwitchingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!mReleased) {
+                    refillFutureCache();
+                }
+            }
+        });
+    }
+
+    /**
+     * Prepares a segment on the switching executor, if it is buffered in the future cache, so
+     * the extractor can switch to it without blocking. The preparation never waits for a
+     * download; if the segment is not buffered yet, it is prepared when it arrives.
+     */
+    private void prepareSegmentAsync(final int segmentNr) {
+        if(segmentNr >= mRepresentation.segments.size()) {
+            return;
+        }
+        synchronized (mPreparedSegmentLock) {
+            if(mPreparingSegment || mPreparedSegment != null || mReleased) {
+                return;
+            }
+            mPreparingSegment = true;
+        }
+
+        mSegmentSwitchingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PreparedSegment preparedSegment = null;
+                CachedSegment cachedSegment = mFutureCache.remove(segmentNr);
+                if(cachedSegment != null && cachedSegment.data.pin()) {
+                    try {
+                        preparedSegment = prepare(cachedSegment);
+                    } catch (IOException e) {
+                        Log.w(TAG, "failed to prepare segment " + segmentNr, e);
+                    }
+                }
+
+                synchronized (mPreparedSegmentLock) {
+                    mPreparingSegment = false;
+                    if(preparedSegment != null && segmentNr == mCurrentSegment + 1 && !mReleased) {
+                        mPreparedSegment = preparedSegment;
+                        Log.d(TAG, "prepared segment " + segmentNr);
+                        return;
+                    }
+                }
+
+                if(preparedSegment != null) {
+                    // The playback has moved on in the meantime
+                    discard(preparedSegment);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a buffered upcoming segment, which is either waiting in the future cache or
+     * already prepared, or null if the segment is not buffered.
+     */
+    private CachedSegment getBufferedSegment(int segmentNr) {
+        CachedSegment cachedSegment = mFutureCache.get(segmentNr);
+        if(cachedSegment == null) {
+            synchronized (mPreparedSegmentLock) {
+                if(mPreparedSegment != null && mPreparedSegment.cachedSegment.number == segmentNr) {
+                    cachedSegment = mPreparedSegment.cachedSegment;
+                }
+            }
+        }
+        return cachedSegment;
+    }
+
+    /**
+     * Returns the duration of a segment. All segments have the nominal segment duration except the
+     * last one, which ends with the period and is usually shorter.
+     */
+    private long getSegmentDuration(int segmentNr) {
+        long segmentDurationUs = mRepresentation.segmentDurationUs;
+        if(mPeriodDurationUs > 0) {
+            segmentDurationUs = Math.min(segmentDurationUs, mPeriodDurationUs - segmentNr * segmentDurationUs);
+        }
+        return Math.max(segmentDurationUs, 1);
+    }
+
+    /**
+     * Returns the duration of a segment that is left to be read from the current sample on.
+     */
+    private long getRemainingSegmentDuration(int segmentNr) {
+        long sampleTimeUs = getSampleTime();
+        long segmentDurationUs = getSegmentDuration(segmentNr);
+        if(sampleTimeUs == -1) {
+            return 0; // the end of the segment has been reached
+        }
+        long segmentStartUs = (mPeriodStartUs == -1 ? 0 : mPeriodStartUs) + segmentNr * mRepresentation.segmentDurationUs;
+        return Math.max(0, Math.min(segmentDurationUs, segmentStartUs + segmentDurationUs - sampleTimeUs));
+    }
+
+    /**
+     * Returns the duration of the period that contains the adaptation set, or 0 if it is unknown.
+     */
+    private long findPeriodDuration() {
+        for(Period period : mMPD.periods) {
+            if(period.adaptationSets.contains(mAdaptationSet)) {
+                // The last (or only) period lasts until the end of the presentation
+                return period.durationUs > 0 ? period.durationUs : mMPD.mediaPresentationDurationUs - period.startUs;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the prepared segment if it is the requested segment, else discards it.
+     */
+    private PreparedSegment takePreparedSegment(int segmentNr) {
+        PreparedSegment preparedSegment;
+        synchronized (mPreparedSegmentLock) {
+            preparedSegment = mPreparedSegment;
+            mPreparedSegment = null;
+        }
+        if(preparedSegment != null && preparedSegment.cachedSegment.number != segmentNr) {
+            discard(preparedSegment);
+            preparedSegment = null;
+        }
+        return preparedSegment;
+    }
+
+    /**
+     * Releases a prepared segment that is not used. Its data is still valid and returned to the
+     * future cache if it is ahead of the current segment.
+     */
+    private void discard(PreparedSegment preparedSegment) {
+        CachedSegment cachedSegment = preparedSegment.cachedSegment;
+        preparedSegment.extractor.release();
+        if(cachedSegment.number > mCurrentSegment && !mReleased) {
+            mFutureCache.put(cachedSegment.number, cachedSegment);
+        } else {
+            cachedSegment.data.delete();
+        }
+        cachedSegment.data.unpin();
+    }
+
     private Integer getNextSegment() {
         mCurrentSegment++;
 
@@ -439,30 +989,35 @@ public class DashMediaExtractor extends MediaExtractor {
     }
 
     /**
-     * Blocking download of a segment.
+     * Blocking download of a segment of a representation.
      */
-    private CachedSegment downloadFile(Integer segmentNr) throws IOException {
+    private CachedSegment downloadFile(Integer segmentNr, Representation representation) throws IOException {
         // At the first call, download the initialization segments, and reuse them later.
         if(mInitSegments.isEmpty()) {
-            for(Representation representation : mAdaptationSet.representations) {
-                long startTime = SystemClock.elapsedRealtime();
-                Response response = mSegmentDownloader.downloadBlocking(representation.initSegment, SegmentDownloader.INITSEGMENT);
-                ByteString segmentData = response.body().source().readByteString();
-                mInitSegments.put(representation, segmentData);
-                mAdaptationLogic.reportSegmentDownload(mAdaptationSet, representation, representation.segments.get(segmentNr), segmentData.size(), SystemClock.elapsedRealtime() - startTime);
-                Log.d(TAG, "init " + representation.initSegment.toString());
+            for(Representation initRepresentation : getAllRepresentations()) {
+                byte[] segmentData = mSegmentDownloader.getLocalData(initRepresentation.initSegment);
+                if(segmentData == null) {
+                    long startTime = SystemClock.elapsedRealtime();
+                    segmentData = mSegmentDownloader.downloadBlocking(initRepresentation.initSegment, SegmentDownloader.INITSEGMENT);
+                    mAdaptationLogic.reportSegmentDownload(mAdaptationSet, initRepresentation, initRepresentation.segments.get(segmentNr), segmentData.length, SystemClock.elapsedRealtime() - startTime);
+                }
+                mInitSegments.put(initRepresentation, ByteString.of(segmentData));
+                Log.d(TAG, "init " + initRepresentation.initSegment.toString());
             }
         }
 
-        Segment segment = mRepresentation.segments.get(segmentNr);
+        Segment segment = representation.segments.get(segmentNr);
 
-        long startTime = SystemClock.elapsedRealtime();
-        Response response = mSegmentDownloader.downloadBlocking(segment, segmentNr);
-        byte[] segmentData = response.body().bytes();
-        mAdaptationLogic.reportSegmentDownload(mAdaptationSet, mRepresentation, segment, segmentData.length, SystemClock.elapsedRealtime() - startTime);
-        CachedSegment cachedSegment = new CachedSegment(segmentNr, segment, mRepresentation, mAdaptationSet);
+        // Segments from the disk cache or local storage are not reported because they say nothing about the network
+        byte[] segmentData = mSegmentDownloader.getLocalData(segment);
+        if(segmentData == null) {
+            long startTime = SystemClock.elapsedRealtime();
+            segmentData = mSegmentDownloader.downloadBlocking(segment, segmentNr);
+            mAdaptationLogic.reportSegmentDownload(mAdaptationSet, representation, segment, segmentData.length, SystemClock.elapsedRealtime() - startTime);
+        }
+        CachedSegment cachedSegment = new CachedSegment(segmentNr, segment, representation, mAdaptationSet);
         handleSegment(segmentData, cachedSegment);
-        Log.d(TAG, "sync dl " + segmentNr + " " + segment.toString() + " -> " + cachedSegment.file.getPath());
+        Log.d(TAG, "sync dl " + segmentNr + " " + segment.toString() + " -> " + cachedSegment.data);
 
         return cachedSegment;
     }
@@ -471,14 +1026,166 @@ public class DashMediaExtractor extends MediaExtractor {
      * Makes async segment requests to fill the cache up to a certain level.
      */
     private synchronized void fillFutureCache(Representation representation) {
-        int segmentsToBuffer = (int)Math.ceil((double)mMinBufferTimeUs / mRepresentation.segmentDurationUs);
-        for(int i = mCurrentSegment + 1; i < Math.min(mCurrentSegment + 1 + segmentsToBuffer, mRepresentation.segments.size()); i++) {
-            if(!mFutureCache.containsKey(i) && !mSegmentDownloader.isDownloading(mAdaptationSet, i)) {
-                Segment segment = representation.segments.get(i);
-                CachedSegment cachedSegment = new CachedSegment(i, segment, representation, mAdaptationSet); // segment could be accessed through representation by i
-                mSegmentDownloader.downloadAsync(cachedSegment, mSegmentDownloadCallback);
+        int segmentsToBuffer = getSegmentsToBuffer();
+        int lastSegment = Math.min(mCurrentSegment + segmentsToBuffer, mRepresentation.segments.size() - 1);
+
+        // The current segment has just been started, so it is counted as a whole
+        long bufferedDurationUs = mCurrentSegment < 0 ? 0 : getSegmentDuration(mCurrentSegment);
+        long bufferedBytes = mCurrentSegmentData != null ? mCurrentSegmentData.getSize() : 0;
+        // The played part of the current segment, to calculate when the following segments are needed
+        long playedDurationUs = mCurrentSegment < 0 ? 0 : bufferedDurationUs - getRemainingSegmentDuration(mCurrentSegment);
+
+        if(mLoadingIdle) {
+            /* After a burst, loading is idle until the load control decides that the buffer,
+             * including the segments that are still loading, has drained far enough. */
+            long idleBufferedDurationUs = bufferedDurationUs;
+            long idleBufferedBytes = bufferedBytes;
+            for(int i = mCurrentSegment + 1; i <= lastSegment; i++) {
+                CachedSegment bufferedSegment = getBufferedSegment(i);
+                if(bufferedSegment != null) {
+                    idleBufferedBytes += bufferedSegment.data.getSize();
+                } else if(mLoadingSegments.containsKey(i)) {
+                    idleBufferedBytes += estimateSegmentSize(representation, i);
+                } else {
+                    break;
+                }
+                idleBufferedDurationUs += getSegmentDuration(i);
+            }
+            if(idleBufferedDurationUs >= mMinBufferTimeUs
+                    && !mLoadControl.shouldStartLoading(idleBufferedDurationUs, idleBufferedBytes)) {
+                return;
+            }
+            Log.d(TAG, "loading burst from " + idleBufferedDurationUs + "us");
+            mLoadingIdle = false;
+        }
+
+        // Collect the segments to request them together, so contiguous ranges can be coalesced
+        List<CachedSegment> segmentsToLoad = new ArrayList<>();
+        boolean limited = false;
+
+        for(int i = mCurrentSegment + 1; i <= lastSegment; i++) {
+            if(bufferedDurationUs >= mMinBufferTimeUs
+                    && !mLoadControl.shouldContinueLoading(bufferedDurationUs, bufferedBytes)) {
+                limited = true;
+                break;
+            }
+
+            CachedSegment bufferedSegment = getBufferedSegment(i);
+            if(bufferedSegment != null) {
+                bufferedBytes += bufferedSegment.data.getSize();
+            } else {
+                if(!mLoadingSegments.containsKey(i) && !mSegmentDownloader.isDownloading(mAdaptationSet, i)) {
+                    Segment segment = representation.segments.get(i);
+                    CachedSegment cachedSegment = new CachedSegment(i, segment, representation, mAdaptationSet); // segment could be accessed through representation by i
+                    cachedSegment.deadline = SystemClock.elapsedRealtime() + (bufferedDurationUs - playedDurationUs) / 1000;
+                    mLoadingSegments.put(i, cachedSegment);
+                    segmentsToLoad.add(cachedSegment);
+                }
+                bufferedBytes += estimateSegmentSize(representation, i);
             }
+            bufferedDurationUs += getSegmentDuration(i);
+        }
+
+        // Loading stays idle only if the load control has stopped it, not at the end of the
+        // buffering window or the stream
+        mLoadingIdle = limited;
+
+        if(!segmentsToLoad.isEmpty()) {
+            mSegmentDownloader.downloadAsync(segmentsToLoad, mSegmentDownloadCallback);
+        }
+    }
+
+    /**
+     * Estimates the size of a segment that is not loaded yet from the bitrate of its representation.
+     */
+    private long estimateSegmentSize(Representation representation, int segmentNr) {
+        return representation.bandwidth / 8 * getSegmentDuration(segmentNr) / 1000000;
+    }
+
+    /**
+     * Returns the representation with the lowest bitrate, which loads fastest.
+     */
+    private Representation getLowestRepresentation() {
+        Representation lowest = mRepresentation;
+        for(Representation representation : mAdaptationSet.representations) {
+            if(representation.bandwidth < lowest.bandwidth) {
+                lowest = representation;
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * Returns the representation of the trick mode set with the highest bitrate that does not
+     * exceed the bitrate of the current regular representation, or the lowest if all exceed it.
+     * Trick mode sets have a low frame rate, so their representations usually have a lower
+     * bitrate than the regular representations of the same resolution.
+     */
+    private Representation getTrickModeRepresentation() {
+        long maxBandwidth = isTrickModeRepresentation(mRepresentation)
+                ? mAdaptationLogic.getRecommendedRepresentation(mAdaptationSet).bandwidth
+                : mRepresentation.bandwidth;
+        Representation best = null;
+        Representation lowest = null;
+        for(Representation representation : mTrickModeSet.representations) {
+            if(representation.bandwidth <= maxBandwidth
+                    && (best == null || representation.bandwidth > best.bandwidth)) {
+                best = representation;
+            }
+            if(lowest == null || representation.bandwidth < lowest.bandwidth) {
+                lowest = representation;
+            }
+        }
+        return best != null ? best : lowest;
+    }
+
+    /**
+     * Finds the trick mode set of the adaptation set. Since segments are addressed by their
+     * number, a trick mode set is only usable if its segments align with the regular segments.
+     */
+    private AdaptationSet findTrickModeSet() {
+        for(Period period : mMPD.periods) {
+            if(!period.adaptationSets.contains(mAdaptationSet)) {
+                continue;
+            }
+            AdaptationSet trickModeSet = period.getTrickModeSet(mAdaptationSet);
+            if(trickModeSet == null || trickModeSet.representations.isEmpty()) {
+                return null;
+            }
+            for(Representation representation : trickModeSet.representations) {
+                if(representation.segmentDurationUs != mRepresentation.segmentDurationUs
+                        || representation.segments.size() != mRepresentation.segments.size()) {
+                    Log.w(TAG, "ignoring trick mode set with unaligned segments " + trickModeSet);
+                    return null;
+                }
+            }
+            Log.d(TAG, "trick mode set " + trickModeSet);
+            return trickModeSet;
+        }
+        return null;
+    }
+
+    private boolean isTrickModeRepresentation(Representation representation) {
+        return mTrickModeSet != null && mTrickModeSet.representations.contains(representation);
+    }
+
+    /**
+     * Returns the regular representations and the representations of the trick mode set.
+     */
+    private List<Representation> getAllRepresentations() {
+        List<Representation> representations = new ArrayList<>(mAdaptationSet.representations);
+        if(mTrickModeSet != null) {
+            representations.addAll(mTrickModeSet.representations);
         }
+        return representations;
+    }
+
+    /**
+     * Returns the maximum number of segments that are buffered ahead of the current segment.
+     */
+    private int getSegmentsToBuffer() {
+        long maxBufferTimeUs = Math.max(mMinBufferTimeUs, mLoadControl.getMaxBufferDuration());
+        return (int)Math.ceil((double)maxBufferTimeUs / mRepresentation.segmentDurationUs);
     }
 
     /**
@@ -487,39 +1194,95 @@ public class DashMediaExtractor extends MediaExtractor {
     private synchronized void invalidateFutureCache() {
         // cancel and remove requests
         mSegmentDownloader.cancelDownloads(mAdaptationSet);
+        mLoadingSegments.clear();
 
-        // delete and remove files
+        // delete and remove segments
         for(Integer segmentNumber : mFutureCache.keySet()) {
-            mFutureCache.get(segmentNumber).file.delete();
+            mFutureCache.get(segmentNumber).data.delete();
         }
         mFutureCache.clear();
     }
 
     /**
-     * http://developer.android.com/training/basics/data-storage/files.html
+     * Partially invalidates the cache by cancelling the pending requests and deleting the buffered
+     * segments outside of a range of segments, which are not needed any more, e.g. after a seek.
+     *
+     * @param fromSegmentNr the first segment to keep
+     * @param toSegmentNr the last segment to keep
      */
-    private File getTempFile(Context context, String fileName) {
-        File file = null;
-        try {
-            fileName = fileName.replaceAll("\\W+", ""); // remove all special chars to get a valid filename
-            file = File.createTempFile(fileName, null, context.getCacheDir());
-        } catch (IOException e) {
-            // Error while creating file
+    private synchronized void invalidateFutureCache(int fromSegmentNr, int toSegmentNr) {
+        // cancel and remove requests
+        mSegmentDownloader.cancelDownloads(mAdaptationSet, fromSegmentNr, toSegmentNr);
+        Iterator<Integer> loadingIterator = mLoadingSegments.keySet().iterator();
+        while(loadingIterator.hasNext()) {
+            int segmentNr = loadingIterator.next();
+            if(segmentNr < fromSegmentNr || segmentNr > toSegmentNr) {
+                loadingIterator.remove();
+            }
+        }
+
+        // delete and remove segments
+        Iterator<Map.Entry<Integer, CachedSegment>> iterator = mFutureCache.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Integer, CachedSegment> entry = iterator.next();
+            if(entry.getKey() < fromSegmentNr || entry.getKey() > toSegmentNr) {
+                entry.getValue().data.delete();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the representations to look up a segment in the used cache, starting with the
+     * current representation.
+     */
+    private List<Representation> getCacheLookupOrder() {
+        List<Representation> representations = new ArrayList<>(mAdaptationSet.representations.size());
+        // Trick mode segments are only used during fast playback, regular segments always
+        if(mTrickModeActive || !isTrickModeRepresentation(mRepresentation)) {
+            representations.add(mRepresentation);
+        }
+        for(Representation representation : mAdaptationSet.representations) {
+            if(representation != mRepresentation) {
+                representations.add(representation);
+            }
+        }
+        if(mTrickModeActive) {
+            for(Representation representation : mTrickModeSet.representations) {
+                if(representation != mRepresentation) {
+                    representations.add(representation);
+                }
+            }
+        }
+        return representations;
+    }
+
+    /**
+     * Unpins the data of the segment that has been set as data source, after the extractor
+     * that used it has been renewed or released.
+     */
+    private void releaseCurrentSegmentData() {
+        if(mCurrentSegmentData != null) {
+            mCurrentSegmentData.unpin();
+            mCurrentSegmentData = null;
         }
-        return file;
     }
 
     private void clearTempDir(Context context) {
         for(File file : context.getCacheDir().listFiles()) {
-            file.delete();
+            // Skip directories, they contain persistent caches (e.g. the SegmentDiskCache)
+            if(file.isFile()) {
+                file.delete();
+            }
         }
     }
 
     /**
-     * Handles a segment by merging it with the init segment into a temporary file.
+     * Handles a segment by merging it with the init segment and storing it in the segment store.
      */
-    private void handleSegment(byte[] mediaSegment, CachedSegment cachedSegment) throws IOException {
-        File segmentFile = getTempFile(mContext, "seg" + cachedSegment.representation.id + "-" + cachedSegment.segment.range + "");
+    private void handleSegment(final byte[] mediaSegment, CachedSegment cachedSegment) throws IOException {
+        String segmentName = "seg" + cachedSegment.representation.id + "-" + cachedSegment.segment.range + "";
+        final ByteString initSegment = mInitSegments.get(cachedSegment.representation);
         long segmentPTSOffsetUs = 0;
 
         if(mMp4Mode) {
@@ -527,14 +1290,20 @@ public class DashMediaExtractor extends MediaExtractor {
              * does not support the fragmented MP4 container format. Each segment therefore needs
              * to be joined with the init fragment and converted to a "conventional" unfragmented MP4
              * container file. */
-            IsoFile baseIsoFile = new IsoFile(new MemoryDataSourceImpl(mInitSegments.get(cachedSegment.representation).asByteBuffer()));
+            IsoFile baseIsoFile = new IsoFile(new MemoryDataSourceImpl(initSegment.asByteBuffer()));
             IsoFile fragment = new IsoFile(new MemoryDataSourceImpl(mediaSegment));
 
             /* The PTS in a converted MP4 always start at 0, so we read the offset from the segment
              * index box and work with it at the necessary places to adjust the local PTS to global
              * PTS concerning the whole stream. */
             List<SegmentIndexBox> segmentIndexBoxes = fragment.getBoxes(SegmentIndexBox.class);
-            if(segmentIndexBoxes.size() > 0) {
+            if(mPeriodStartUs != -1) {
+                /* In a multi-period presentation, the media timeline of each period can start
+                 * anywhere (e.g. at the presentationTimeOffset of an inserted ad), so the segment
+                 * index is not usable and the PTS offset is calculated from the period start. */
+                segmentPTSOffsetUs = mPeriodStartUs + cachedSegment.number * cachedSegment.representation.segmentDurationUs;
+            }
+            else if(segmentIndexBoxes.size() > 0) {
                 SegmentIndexBox sidx = segmentIndexBoxes.get(0);
                 segmentPTSOffsetUs = (long) ((double) sidx.getEarliestPresentationTime() / sidx.getTimeScale() * 1000000);
             }
@@ -546,99 +1315,225 @@ public class DashMediaExtractor extends MediaExtractor {
 
             Movie mp4Segment = new Movie();
             for(TrackBox trackBox : baseIsoFile.getMovieBox().getBoxes(TrackBox.class)) {
-                mp4Segment.addTrack(new Mp4TrackImpl(null, trackBox, fragment));
+                Mp4TrackImpl track = new Mp4TrackImpl(null, trackBox, fragment);
+                mp4Segment.addTrack(track);
+
+                // Index the sync samples from the track runs for seeking within the segment
+                if(cachedSegment.syncSampleTimesUs == null) {
+                    cachedSegment.syncSampleTimesUs = getSyncSampleTimes(track, segmentPTSOffsetUs);
+                }
+            }
+            final Container mp4SegmentContainer = new DefaultMp4Builder().build(mp4Segment); // always create new instance to avoid memory leaks!
+            long mp4SegmentSize = 0;
+            for(Box box : mp4SegmentContainer.getBoxes()) {
+                mp4SegmentSize += box.getSize();
             }
-            Container mp4SegmentContainer = new DefaultMp4Builder().build(mp4Segment); // always create new instance to avoid memory leaks!
-            FileOutputStream fos = new FileOutputStream(segmentFile, false);
-            mp4SegmentContainer.writeContainer(fos.getChannel());
-            fos.close();
+            cachedSegment.data = mSegmentStore.store(segmentName, mp4SegmentSize, new SegmentStore.SegmentWriter() {
+                @Override
+                public void writeTo(WritableByteChannel channel) throws IOException {
+                    mp4SegmentContainer.writeContainer(channel);
+                }
+            });
         } else {
-            // merge init and media segments into file
-            BufferedSink segmentFileSink = Okio.buffer(Okio.sink(segmentFile));
-            segmentFileSink.write(mInitSegments.get(cachedSegment.representation));
-            segmentFileSink.write(mediaSegment);
-            segmentFileSink.close();
+            // The media timeline of a non-MP4 segment is expected to start at the period start
+            segmentPTSOffsetUs = mPeriodStartUs == -1 ? 0 : mPeriodStartUs;
+
+            // merge init and media segments
+            cachedSegment.data = mSegmentStore.store(segmentName, initSegment.size() + mediaSegment.length, new SegmentStore.SegmentWriter() {
+                @Override
+                public void writeTo(WritableByteChannel channel) throws IOException {
+                    BufferedSink segmentSink = Okio.buffer(Okio.sink(Channels.newOutputStream(channel)));
+                    segmentSink.write(initSegment);
+                    segmentSink.write(mediaSegment);
+                    segmentSink.flush();
+                }
+            });
         }
 
-        cachedSegment.file = segmentFile;
         cachedSegment.ptsOffsetUs = segmentPTSOffsetUs;
     }
 
-    private static final int MESSAGE_SEGMENT_DOWNLOADED = 1;
-    private static final int MESSAGE_SEGMENT_INIT = 2;
-
-    private Handler.Callback mHandlerCallback = new Handler.Callback() {
+    /**
+     * Calculates the PTS of the sync samples of a track from its sample durations and composition
+     * time offsets.
+     *
+     * @param ptsOffsetUs the PTS of the track start
+     * @return the PTS of the sync samples in ascending order, or null if the track has no samples
+     */
+    private static long[] getSyncSampleTimes(Track track, long ptsOffsetUs) {
+        long[] sampleDurations = track.getSampleDurations();
+        if(sampleDurations.length == 0) {
+            return null;
+        }
 
-        @Override
-        public boolean handleMessage(Message msg) {
-            switch (msg.what) {
-                case MESSAGE_SEGMENT_DOWNLOADED:
-                    handleSegmentDownloaded((SegmentDownloader.DownloadFinishedArgs) msg.obj);
-                    return true;
+        long timescale = track.getTrackMetaData().getTimescale();
+        long[] syncSamples = track.getSyncSamples(); // 1-based sample numbers, null if all samples are sync samples
+
+        // Expand the run-length encoded composition time offsets to one offset per sample
+        int[] compositionOffsets = new int[sampleDurations.length];
+        List<CompositionTimeToSample.Entry> compositionTimeEntries = track.getCompositionTimeEntries();
+        if(compositionTimeEntries != null) {
+            int sample = 0;
+            for(CompositionTimeToSample.Entry entry : compositionTimeEntries) {
+                for(int i = 0; i < entry.getCount() && sample < compositionOffsets.length; i++) {
+                    compositionOffsets[sample++] = entry.getOffset();
+                }
+            }
+        }
 
-                case MESSAGE_SEGMENT_INIT:
-                    handleSegmentInit(msg.arg1);
-                    return true;
+        int syncSampleCount = syncSamples != null ? syncSamples.length : sampleDurations.length;
+        long[] syncSampleTimesUs = new long[syncSampleCount];
+        int syncSampleIndex = 0;
+        long decodingTime = 0;
+        for(int i = 0; i < sampleDurations.length && syncSampleIndex < syncSampleCount; i++) {
+            if(syncSamples == null || syncSamples[syncSampleIndex] == i + 1) {
+                long presentationTime = decodingTime + compositionOffsets[i];
+                syncSampleTimesUs[syncSampleIndex++] = ptsOffsetUs + presentationTime * 1000000 / timescale;
             }
+            decodingTime += sampleDurations[i];
+        }
 
-            return false;
+        Arrays.sort(syncSampleTimesUs, 0, syncSampleIndex);
+        return Arrays.copyOf(syncSampleTimesUs, syncSampleIndex);
+    }
+
+    /**
+     * Looks up the sync sample for a seek in the sync sample index of the current segment.
+     *
+     * @param timeUs the seek target time
+     * @param mode the seek mode, one of the SEEK_TO_* constants
+     * @return the PTS of the sync sample, or -1 if the index is not available
+     */
+    private long findSyncSampleTime(long timeUs, int mode) {
+        long[] times = mSegmentSyncSampleTimesUs;
+        if(times == null || times.length == 0) {
+            return -1;
         }
 
-        private void handleSegmentDownloaded(SegmentDownloader.DownloadFinishedArgs args) {
-            try {
-                handleSegment(args.data, args.cachedSegment);
+        int index = Arrays.binarySearch(times, timeUs);
+        if(index >= 0) {
+            return times[index]; // exact match
+        }
+
+        int next = -index - 1; // insertion point, the first sync sample after the target
+        int previous = next - 1;
+        if(previous < 0) {
+            return times[0];
+        } else if(next >= times.length) {
+            return times[previous];
+        }
+
+        if(mode == SEEK_TO_NEXT_SYNC) {
+            return times[next];
+        } else if(mode == SEEK_TO_CLOSEST_SYNC) {
+            return timeUs - times[previous] <= times[next] - timeUs ? times[previous] : times[next];
+        }
+        return times[previous];
+    }
 
+    private void handleSegmentDownloaded(SegmentDownloader.DownloadFinishedArgs args) {
+        try {
+            if(!args.local) {
                 mAdaptationLogic.reportSegmentDownload(mAdaptationSet, args.cachedSegment.representation,
                         args.cachedSegment.segment, args.data.length, args.duration);
+            }
 
-                mFutureCache.put(args.cachedSegment.number, args.cachedSegment);
+            if(args.cachedSegment.number < mCurrentSegment) {
+                // A seek has passed the segment while it was downloading, it won't be needed
+                Log.d(TAG, "dropping passed segment " + args.cachedSegment.number);
+                mLoadingSegments.remove(args.cachedSegment.number);
+                return;
+            }
 
-                Log.d(TAG, "async cached " + args.cachedSegment.number + " "
-                        + args.cachedSegment.segment.toString() + " -> " + args.cachedSegment.file.getPath());
+            handleSegment(args.data, args.cachedSegment);
 
-                synchronized (mFutureCache) {
-                    mFutureCache.notify();
-                }
-            } catch (IOException | NullPointerException | IndexOutOfBoundsException e) {
-                // TODO handle error?
-                // TODO find out why isoparser sometimes throws a NPE or IOOBE
-                Log.e(TAG, "segment download failed", e);
+            mFutureCache.put(args.cachedSegment.number, args.cachedSegment);
+            mLoadingSegments.remove(args.cachedSegment.number);
+
+            Log.d(TAG, "async cached " + args.cachedSegment.number + " "
+                    + args.cachedSegment.segment.toString() + " -> " + args.cachedSegment.data);
+
+            synchronized (mFutureCache) {
+                mFutureCache.notify();
             }
+
+            if(args.cachedSegment.number == mCurrentSegment + 1) {
+                prepareSegmentAsync(args.cachedSegment.number);
+            }
+
+            // Continue loading up to the load control's limit, also while playback is paused
+            refillFutureCacheAsync();
+        } catch (IOException | NullPointerException | IndexOutOfBoundsException e) {
+            // TODO handle error?
+            // TODO find out why isoparser sometimes throws a NPE or IOOBE
+            Log.e(TAG, "segment download failed", e);
+            handleSegmentFailed(args.cachedSegment.number);
         }
+    }
 
-        private void handleSegmentInit(int segmentNr) {
-            IOException exception = null;
+    /**
+     * Wakes up a segment switch that waits for a failed segment, so it can download it itself.
+     */
+    private void handleSegmentFailed(int segmentNr) {
+        mLoadingSegments.remove(segmentNr);
+        synchronized (mFutureCache) {
+            mFutureCache.notify();
+        }
+    }
 
-            try {
-                init(segmentNr);
-            } catch (IOException e) {
-                exception = e;
-            }
+    private void handleSegmentInit(int segmentNr) {
+        IOException exception = null;
 
-            mSegmentSwitchingBarrier.doNotify(exception);
+        try {
+            init(segmentNr);
+        } catch (IOException e) {
+            exception = e;
         }
-    };
+
+        mSegmentSwitchingBarrier.doNotify(exception);
+    }
 
     private SegmentDownloader.SegmentDownloadCallback mSegmentDownloadCallback = new SegmentDownloader.SegmentDownloadCallback() {
 
         @Override
         public void onFailure(CachedSegment cachedSegment, IOException e) {
             Log.e(TAG, "onFailure " + cachedSegment.number, e);
+            handleSegmentFailed(cachedSegment.number);
         }
 
         @Override
-        public void onSuccess(SegmentDownloader.DownloadFinishedArgs args) throws IOException {
-            if (!mSegmentProcessingThread.isAlive()) {
+        public void onSuccess(final SegmentDownloader.DownloadFinishedArgs args) throws IOException {
+            if (mReleased) {
                 // This can (should) only happen when releasing the extractor
-                Log.d(TAG, "dropping downloaded segment, thread is gone");
+                Log.d(TAG, "dropping downloaded segment, extractor is released");
                 return;
             }
 
-            mSegmentProcessingHandler.sendMessage(mSegmentProcessingHandler.obtainMessage(
-                    MESSAGE_SEGMENT_DOWNLOADED, args));
+            mSegmentProcessingExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mReleased) {
+                        handleSegmentDownloaded(args);
+                    }
+                }
+            });
         }
     };
 
+    /**
+     * A segment that has been set as data source of a separate extractor.
+     */
+    private static class PreparedSegment {
+
+        private final CachedSegment cachedSegment; // pinned while prepared
+        private final MediaExtractor extractor;
+
+        PreparedSegment(CachedSegment cachedSegment, MediaExtractor extractor) {
+            this.cachedSegment = cachedSegment;
+            this.extractor = extractor;
+        }
+    }
+
     private class SyncBarrier<T> {
 
         private Object monitor = new Object();
@@ -23,6 +23,7 @@ import android.util.Xml;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
@@ -31,6 +32,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -51,6 +53,19 @@ public class DashParser {
 
     private static final String TAG = DashParser.class.getSimpleName();
 
+    /**
+     * The scheme of the EssentialProperty that marks a trick mode adaptation set, whose value
+     * is the id of the adaptation set that it is meant for (DASH-IF IOP).
+     */
+    private static final String TRICKMODE_SCHEME = "http://dashif.org/guidelines/trickmode";
+
+    /**
+     * The schemes of the EssentialProperty that specifies the tile grid of a thumbnail image
+     * adaptation set or representation, whose value is the grid size as "columns x rows".
+     */
+    private static final String THUMBNAIL_TILE_SCHEME = "http://dashif.org/thumbnail_tile";
+    private static final String THUMBNAIL_TILE_SCHEME_LEGACY = "http://dashif.org/guidelines/thumbnail_tile";
+
     private static Pattern PATTERN_TIME = Pattern.compile("PT((\\d+)H)?((\\d+)M)?((\\d+(\\.\\d+)?)S)");
     private static Pattern PATTERN_TEMPLATE = Pattern.compile("\\$(\\w+)(%0\\d+d)?\\$");
     private static DateFormat ISO8601UTC;
@@ -92,8 +107,8 @@ public class DashParser {
 
         long presentationTimeOffsetUs;
         long timescale;
-        String init;
-        String media;
+        String init; // relative to the base URLs of the representation, or absolute
+        String media; // relative to the base URLs of the representation, or absolute
         long duration;
         int startNumber;
         List<SegmentTimelineEntry> timeline = new ArrayList<>();
@@ -129,6 +144,22 @@ public class DashParser {
 
         Uri uri = source.getUri();
 
+        // Determine this MPD's default BaseURL by removing the last path segment (which is the MPD file)
+        Uri baseUrl = Uri.parse(uri.toString().substring(0, uri.toString().lastIndexOf("/") + 1));
+
+        // Parse local MPDs (e.g. of downloaded titles, see DashDownloader) without the http client
+        if("file".equals(uri.getScheme())) {
+            try {
+                return parse(new FileInputStream(uri.getPath()), baseUrl);
+            } catch (IOException e) {
+                Log.e(TAG, "error reading the MPD", e);
+                throw new DashParserException("error reading the MPD", e);
+            } catch (XmlPullParserException e) {
+                Log.e(TAG, "error parsing the MPD", e);
+                throw new DashParserException("error parsing the MPD", e);
+            }
+        }
+
         Request.Builder request = new Request.Builder()
                 .url(uri.toString())
                 .headers(headers.build());
@@ -139,14 +170,14 @@ public class DashParser {
                 throw new IOException("error requesting the MPD");
             }
 
-            // Determine this MPD's default BaseURL by removing the last path segment (which is the MPD file)
-            Uri baseUrl = Uri.parse(uri.toString().substring(0, uri.toString().lastIndexOf("/") + 1));
-
             // Get the current datetime from the server for live stream time syncing
             serverDate = response.headers().getDate("Date");
 
             // Parse the MPD file
             mpd = parse(response.body().byteStream(), baseUrl);
+
+            // Warm up the connections to the segment hosts while the player is set up
+            HttpClientProvider.preconnect(httpClient, mpd, source.getHeaders());
         } catch (IOException e) {
             Log.e(TAG, "error downloading the MPD", e);
             throw new DashParserException("error downloading the MPD", e);
@@ -166,7 +197,7 @@ public class DashParser {
      * @throws android.os.NetworkOnMainThreadException if executed on the main thread
      */
     public MPD parse(UriSource source) throws DashParserException {
-        return parse(source, new OkHttpClient());
+        return parse(source, HttpClientProvider.getHttpClient());
     }
 
     private MPD parse(InputStream in, Uri baseUrl) throws XmlPullParserException, IOException, DashParserException {
@@ -177,6 +208,9 @@ public class DashParser {
 
             MPD mpd = new MPD();
             Period currentPeriod = null;
+            List<Uri> documentBaseUrls = Collections.singletonList(baseUrl);
+            List<Uri> mpdBaseUrls = null; // the MPD's own base URLs, null if there are none
+            List<Uri> periodBaseUrls = null; // the period's own base URLs, null if inherited
 
             int type = 0;
             while((type = parser.next()) >= 0) {
@@ -211,14 +245,39 @@ public class DashParser {
                     } else if(tagName.equals("Period")) {
                         currentPeriod = new Period();
                         currentPeriod.id = getAttributeValue(parser, "id");
-                        currentPeriod.startUs = getAttributeValueTime(parser, "start");
+                        if(getAttributeValue(parser, "start") == null && !mpd.periods.isEmpty()) {
+                            // Without a start time, a period directly follows the previous period
+                            Period previousPeriod = mpd.periods.get(mpd.periods.size() - 1);
+                            if(previousPeriod.durationUs <= 0) {
+                                // Without a duration, the previous period ends with its segments
+                                previousPeriod.durationUs = getSegmentsDurationUs(previousPeriod);
+                            }
+                            currentPeriod.startUs = previousPeriod.startUs + previousPeriod.durationUs;
+                            if(previousPeriod.durationUs <= 0 || (mpd.mediaPresentationDurationUs > 0
+                                    && currentPeriod.startUs >= mpd.mediaPresentationDurationUs)) {
+                                // Overlapping periods would play with colliding timestamps
+                                throw new DashParserException("cannot determine the start of period " + currentPeriod.id);
+                            }
+                        } else {
+                            currentPeriod.startUs = getAttributeValueTime(parser, "start");
+                        }
                         currentPeriod.durationUs = getAttributeValueTime(parser, "duration");
                         currentPeriod.bitstreamSwitching = getAttributeValueBoolean(parser, "bitstreamSwitching");
+                        periodBaseUrls = null;
                     } else if(tagName.equals("BaseURL")) {
-                        baseUrl = extendUrl(baseUrl, parser.nextText());
-                        Log.d(TAG, "base url: " + baseUrl);
+                        String url = parser.nextText();
+                        if(currentPeriod == null) {
+                            mpdBaseUrls = addBaseUrl(mpdBaseUrls, documentBaseUrls, url);
+                            Log.d(TAG, "base urls: " + mpdBaseUrls);
+                        } else {
+                            periodBaseUrls = addBaseUrl(periodBaseUrls,
+                                    mpdBaseUrls != null ? mpdBaseUrls : documentBaseUrls, url);
+                            Log.d(TAG, "period base urls: " + periodBaseUrls);
+                        }
                     } else if(tagName.equals("AdaptationSet")) {
-                        currentPeriod.adaptationSets.add(readAdaptationSet(mpd, currentPeriod, baseUrl, parser));
+                        List<Uri> baseUrls = periodBaseUrls != null ? periodBaseUrls
+                                : mpdBaseUrls != null ? mpdBaseUrls : documentBaseUrls;
+                        currentPeriod.adaptationSets.add(readAdaptationSet(mpd, currentPeriod, baseUrls, parser));
                     }
                 } else if(type == XmlPullParser.END_TAG) {
                     String tagName = parser.getName();
@@ -239,10 +298,13 @@ public class DashParser {
         }
     }
 
-    private AdaptationSet readAdaptationSet(MPD mpd, Period period, Uri baseUrl, XmlPullParser parser)
+    private AdaptationSet readAdaptationSet(MPD mpd, Period period, List<Uri> parentBaseUrls, XmlPullParser parser)
             throws XmlPullParserException, IOException, DashParserException {
         AdaptationSet adaptationSet = new AdaptationSet();
+        List<Uri> ownBaseUrls = null; // the set's own base URLs, null if inherited
+        List<Uri> baseUrls = parentBaseUrls;
 
+        adaptationSet.id = getAttributeValue(parser, "id");
         adaptationSet.group = getAttributeValueInt(parser, "group");
         adaptationSet.mimeType = getAttributeValue(parser, "mimeType");
         adaptationSet.maxWidth = getAttributeValueInt(parser, "maxWidth");
@@ -257,11 +319,24 @@ public class DashParser {
                 String tagName = parser.getName();
 
                 if(tagName.equals("SegmentTemplate")) {
-                    segmentTemplate = readSegmentTemplate(parser, baseUrl, null);
+                    segmentTemplate = readSegmentTemplate(parser, null);
+                } else if(tagName.equals("BaseURL")) {
+                    ownBaseUrls = addBaseUrl(ownBaseUrls, parentBaseUrls, parser.nextText());
+                    baseUrls = ownBaseUrls;
+                    Log.d(TAG, "adaptation set base urls: " + baseUrls);
+                } else if(tagName.equals("EssentialProperty")) {
+                    String schemeIdUri = getAttributeValue(parser, "schemeIdUri");
+                    if(TRICKMODE_SCHEME.equals(schemeIdUri)) {
+                        adaptationSet.trickModeFor = getAttributeValue(parser, "value");
+                    } else if(isThumbnailTileScheme(schemeIdUri)) {
+                        int[] tiles = parseTiles(getAttributeValue(parser, "value"));
+                        adaptationSet.tileColumns = tiles[0];
+                        adaptationSet.tileRows = tiles[1];
+                    }
                 } else if(tagName.equals("Representation")) {
                     try {
                         adaptationSet.representations.add(readRepresentation(
-                                mpd, period, adaptationSet, baseUrl, parser, segmentTemplate));
+                                mpd, period, adaptationSet, baseUrls, parser, segmentTemplate));
                     } catch (Exception e) {
                         Log.e(TAG, "error reading representation: " + e.getMessage(), e);
                     }
@@ -278,10 +353,12 @@ public class DashParser {
     }
 
     private Representation readRepresentation(MPD mpd, Period period, AdaptationSet adaptationSet,
-                                              Uri baseUrl, XmlPullParser parser,
+                                              List<Uri> parentBaseUrls, XmlPullParser parser,
                                               SegmentTemplate segmentTemplate)
             throws XmlPullParserException, IOException, DashParserException {
         Representation representation = new Representation();
+        List<Uri> ownBaseUrls = null; // the representation's own base URLs, null if inherited
+        List<Uri> baseUrls = parentBaseUrls;
 
         representation.id = getAttributeValue(parser, "id");
         representation.codec = getAttributeValue(parser, "codecs");
@@ -290,6 +367,11 @@ public class DashParser {
             representation.width = getAttributeValueInt(parser, "width");
             representation.height = getAttributeValueInt(parser, "height");
             representation.sar = getAttributeValueRatio(parser, "sar");
+        } else if(representation.mimeType.startsWith("image/")) {
+            representation.width = getAttributeValueInt(parser, "width");
+            representation.height = getAttributeValueInt(parser, "height");
+            representation.tileColumns = adaptationSet.tileColumns;
+            representation.tileRows = adaptationSet.tileRows;
         }
         representation.bandwidth = getAttributeValueInt(parser, "bandwidth");
 
@@ -302,9 +384,7 @@ public class DashParser {
                     String sourceURL = getAttributeValue(parser, "sourceURL");
                     String range = getAttributeValue(parser, "range");
 
-                    sourceURL = sourceURL != null ? extendUrl(baseUrl, sourceURL).toString() : baseUrl.toString();
-
-                    representation.initSegment = new Segment(sourceURL, range);
+                    representation.initSegment = createSegment(baseUrls, sourceURL, range);
                     Log.d(TAG, "Initialization: " + representation.initSegment.toString());
                 } else if(tagName.equals("SegmentList")) {
                     long timescale = getAttributeValueLong(parser, "timescale", 1);
@@ -315,9 +395,7 @@ public class DashParser {
                     String mediaRange = getAttributeValue(parser, "mediaRange");
                     String indexRange = getAttributeValue(parser, "indexRange");
 
-                    media = media != null ? extendUrl(baseUrl, media).toString() : baseUrl.toString();
-
-                    representation.segments.add(new Segment(media, mediaRange));
+                    representation.segments.add(createSegment(baseUrls, media, mediaRange));
 
                     if(indexRange != null) {
                         Log.v(TAG, "skipping unsupported indexRange in SegmentURL");
@@ -329,12 +407,19 @@ public class DashParser {
                     }
                 } else if(tagName.equals("SegmentTemplate")) {
                     // Overwrite passed template with newly parsed one
-                    segmentTemplate = readSegmentTemplate(parser, baseUrl, segmentTemplate);
+                    segmentTemplate = readSegmentTemplate(parser, segmentTemplate);
                 } else if(tagName.equals("BaseURL")) {
-                    baseUrl = extendUrl(baseUrl, parser.nextText());
-                    Log.d(TAG, "new base url: " + baseUrl);
+                    ownBaseUrls = addBaseUrl(ownBaseUrls, parentBaseUrls, parser.nextText());
+                    baseUrls = ownBaseUrls;
+                    Log.d(TAG, "new base urls: " + baseUrls);
                 } else if(tagName.equals("RepresentationIndex")) {
                     throw new DashParserException("RepresentationIndex is not supported yet");
+                } else if(tagName.equals("EssentialProperty")) {
+                    if(isThumbnailTileScheme(getAttributeValue(parser, "schemeIdUri"))) {
+                        int[] tiles = parseTiles(getAttributeValue(parser, "value"));
+                        representation.tileColumns = tiles[0];
+                        representation.tileRows = tiles[1];
+                    }
                 }
             } else if(type == XmlPullParser.END_TAG) {
                 if(tagName.equals("Representation")) {
@@ -370,24 +455,28 @@ public class DashParser {
 
                                 representation.segmentDurationUs = calculateUs(current.d, segmentTemplate.timescale);
 
-                                // init segment
-                                String processedInitUrl = processMediaUrl(
-                                        segmentTemplate.init, representation.id, null, representation.bandwidth, null);
-                                representation.initSegment = new Segment(processedInitUrl);
+                                // init segment (thumbnail images do not have one)
+                                if(segmentTemplate.init != null) {
+                                    String processedInitUrl = processMediaUrl(
+                                            segmentTemplate.init, representation.id, null, representation.bandwidth, null);
+                                    representation.initSegment = createSegment(baseUrls, processedInitUrl, null);
+                                }
 
                                 // media segments
                                 long time = current.t;
                                 for (int number = segmentTemplate.startNumber; number < repeat + 1; number++) {
                                     String processedMediaUrl = processMediaUrl(
                                             segmentTemplate.media, representation.id, number, representation.bandwidth, time);
-                                    representation.segments.add(new Segment(processedMediaUrl));
+                                    representation.segments.add(createSegment(baseUrls, processedMediaUrl, null));
                                     time += current.d;
                                 }
                             }
                         }
                         else {
                             representation.segmentDurationUs = segmentTemplate.calculateDurationUs();
-                            int numSegments = (int) Math.ceil((double) mpd.mediaPresentationDurationUs / representation.segmentDurationUs);
+                            // The template covers the period, which for the last (or only) period lasts until the end of the presentation
+                            long periodDurationUs = period.durationUs > 0 ? period.durationUs : mpd.mediaPresentationDurationUs - period.startUs;
+                            int numSegments = (int) Math.ceil((double) periodDurationUs / representation.segmentDurationUs);
                             int dynamicStartNumberOffset = 0;
 
                             if(mpd.isDynamic) {
@@ -426,16 +515,18 @@ public class DashParser {
                                 dynamicStartNumberOffset = (int)(availabilityDeltaTimeUs / representation.segmentDurationUs);
                             }
 
-                            // init segment
-                            String processedInitUrl = processMediaUrl(
-                                    segmentTemplate.init, representation.id, null, representation.bandwidth, null);
-                            representation.initSegment = new Segment(processedInitUrl);
+                            // init segment (thumbnail images do not have one)
+                            if(segmentTemplate.init != null) {
+                                String processedInitUrl = processMediaUrl(
+                                        segmentTemplate.init, representation.id, null, representation.bandwidth, null);
+                                representation.initSegment = createSegment(baseUrls, processedInitUrl, null);
+                            }
 
                             // media segments
                             for (int i = segmentTemplate.startNumber + dynamicStartNumberOffset; i < segmentTemplate.startNumber + dynamicStartNumberOffset + numSegments; i++) {
                                 String processedMediaUrl = processMediaUrl(
                                         segmentTemplate.media, representation.id, i, representation.bandwidth, null);
-                                representation.segments.add(new Segment(processedMediaUrl));
+                                representation.segments.add(createSegment(baseUrls, processedMediaUrl, null));
                             }
                         }
                     }
@@ -482,7 +573,7 @@ public class DashParser {
         }
     }
 
-    private SegmentTemplate readSegmentTemplate(XmlPullParser parser, Uri baseUrl, SegmentTemplate parent)
+    private SegmentTemplate readSegmentTemplate(XmlPullParser parser, SegmentTemplate parent)
             throws IOException, XmlPullParserException, DashParserException {
         SegmentTemplate st = new SegmentTemplate();
 
@@ -496,14 +587,14 @@ public class DashParser {
 
         String initialization = getAttributeValue(parser, "initialization");
         if(initialization != null) {
-            st.init = extendUrl(baseUrl, initialization).toString();
+            st.init = initialization;
         } else if(parent != null) {
             st.init = parent.init;
         }
 
         String media = getAttributeValue(parser, "media");
         if(media != null) {
-            st.media = extendUrl(baseUrl, media).toString();
+            st.media = media;
         } else if(parent != null) {
             st.media = parent.media;
         }
@@ -574,6 +665,66 @@ public class DashParser {
         return -1;
     }
 
+    /**
+     * Adds the URL of a BaseURL element to the base URLs of an element. The first BaseURL of an
+     * element replaces the inherited base URLs, each further one adds an alternative (e.g. the
+     * URL of another CDN). A relative URL is resolved against each of the inherited base URLs.
+     *
+     * @param baseUrls the element's own base URLs, or null if it has none yet
+     * @param parentBaseUrls the base URLs inherited from the parent element
+     * @param url the URL of the BaseURL element
+     * @return the element's base URLs
+     */
+    private static List<Uri> addBaseUrl(List<Uri> baseUrls, List<Uri> parentBaseUrls, String url) {
+        if(baseUrls == null) {
+            baseUrls = new ArrayList<>();
+        }
+        for(Uri parentBaseUrl : parentBaseUrls) {
+            Uri baseUrl = extendUrl(parentBaseUrl, url.trim());
+            if(!baseUrls.contains(baseUrl)) {
+                baseUrls.add(baseUrl);
+            }
+        }
+        return baseUrls;
+    }
+
+    /**
+     * Returns the duration of the longest adaptation set of a period as covered by its segments,
+     * or 0 if it is unknown.
+     */
+    private static long getSegmentsDurationUs(Period period) {
+        long durationUs = 0;
+        for(AdaptationSet adaptationSet : period.adaptationSets) {
+            if(!adaptationSet.representations.isEmpty()) {
+                Representation representation = adaptationSet.representations.get(0);
+                durationUs = Math.max(durationUs, representation.segments.size() * representation.segmentDurationUs);
+            }
+        }
+        return durationUs;
+    }
+
+    /**
+     * Creates a segment whose URL is resolved against the first of the base URLs. If the URL is
+     * relative and there are alternative base URLs (e.g. of multiple CDNs), the relative path is
+     * kept, so the segment can also be requested from the alternatives.
+     *
+     * @param baseUrls the base URLs in the order of the MPD
+     * @param url the relative or absolute URL of the segment, or null if it is the base URL itself
+     * @param range the byte range of the segment, or null
+     */
+    private static Segment createSegment(List<Uri> baseUrls, String url, String range) {
+        Uri baseUrl = baseUrls.get(0);
+        Segment segment = new Segment(url != null ? extendUrl(baseUrl, url).toString() : baseUrl.toString(), range);
+        if(baseUrls.size() > 1) {
+            String path = url != null ? url.replace(" ", "%20") : "";
+            if(Uri.parse(path).isRelative()) {
+                segment.path = path;
+                segment.baseUrls = baseUrls;
+            }
+        }
+        return segment;
+    }
+
     /**
      * Extends an URL with an extended path if the extension is relative, or replaces the entire URL
      * with the extension if it is absolute.
@@ -649,6 +800,25 @@ public class DashParser {
         return 0;
     }
 
+    private static boolean isThumbnailTileScheme(String schemeIdUri) {
+        return THUMBNAIL_TILE_SCHEME.equals(schemeIdUri) || THUMBNAIL_TILE_SCHEME_LEGACY.equals(schemeIdUri);
+    }
+
+    /**
+     * Parses a thumbnail tile grid (e.g. "10x1") into the number of columns and rows.
+     */
+    private static int[] parseTiles(String value) throws DashParserException {
+        String[] values = value != null ? value.split("x") : new String[0];
+        try {
+            if(values.length == 2) {
+                return new int[] { Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()) };
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new DashParserException("invalid thumbnail tile grid: " + value);
+    }
+
     private static boolean getAttributeValueBoolean(XmlPullParser parser, String name) {
         String value = getAttributeValue(parser, name, "false");
         return value.equals("true");
@@ -18,9 +18,14 @@ package net.protyposis.android.mediaplayer.dash;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import net.protyposis.android.mediaplayer.MediaExtractor;
 import net.protyposis.android.mediaplayer.UriSource;
@@ -29,11 +34,35 @@ import okhttp3.OkHttpClient;
 
 public class DashSource extends UriSource {
 
+    private static final String TAG = DashSource.class.getSimpleName();
+
+    /**
+     * The time after which an extractor that has been created in advance is released if it has
+     * not been requested, e.g. when the player only uses the extractor of one type.
+     */
+    private static final long PENDING_EXTRACTOR_TIMEOUT_MS = 10000;
+
     private OkHttpClient mHttpClient;
     private SegmentDownloader mSegmentDownloader;
     private AdaptationLogic mAdaptationLogic;
     private MPD mMPD;
     private int mCacheSizeInBytes = 100 * 1024 * 1024;
+    private SegmentDiskCache mDiskCache;
+    private long mMemoryStoreSizeInBytes = SegmentStore.DEFAULT_MAX_MEMORY_SIZE;
+    private boolean mFastSeekEnabled;
+    private DashMediaExtractor.CachePolicy mCachePolicy = DashMediaExtractor.CachePolicy.TINY_LFU;
+    private long mRingFileSizeInBytes = SegmentStore.DEFAULT_RING_FILE_SIZE;
+    private SegmentStore mSegmentStore;
+    private RepresentationFilter mRepresentationFilter = new RepresentationFilter();
+    private FilteringAdaptationLogic mFilteringAdaptationLogic;
+    private boolean mDecoderLagCappingEnabled;
+    private BandwidthArbiter mBandwidthArbiter;
+    private float mBandwidthPriority = 1;
+    private volatile ArbitratedAdaptationLogic mArbitratedAdaptationLogic;
+    private PendingExtractor mPendingExtractor; // created in parallel, waiting to be requested
+    private String mPendingExtractorMime;
+    private long mHedgedRequestDelayMs;
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
 
     public DashSource(Context context, Uri uri, OkHttpClient httpClient, Map<String, String> headers, AdaptationLogic adaptationLogic) {
         super(context, uri, headers);
@@ -69,13 +98,16 @@ public class DashSource extends UriSource {
     }
 
     private void initHttpClient() {
-        // Create a http client instance if there is none yet
+        // Use the shared http client if there is none yet
         if(mHttpClient == null) {
-            mHttpClient = new OkHttpClient();
+            mHttpClient = HttpClientProvider.getHttpClient();
         }
         // Create a segment downloader if there is none yet
         if(mSegmentDownloader == null) {
             mSegmentDownloader = new SegmentDownloader(mHttpClient, getHeaders());
+            mSegmentDownloader.setDiskCache(mDiskCache);
+            mSegmentDownloader.setHedgingDelay(mHedgedRequestDelayMs);
+            mSegmentDownloader.setRetryPolicy(mRetryPolicy);
         }
     }
 
@@ -107,7 +139,9 @@ public class DashSource extends UriSource {
      * created, i.e. before the DashSource is set as a data source (e.g. in MediaPlayer or VideoView).
      *
      * If this source has separate video and audio extractors, the used storage size may be twice
-     * the configured cache size because each extractor has its own cache.
+     * the configured cache size because each extractor has its own cache. The total size of the
+     * caches of all extractors in the process is additionally limited by the
+     * {@link SegmentCacheManager} budget.
      *
      * If the size of the cache is smaller than the segments, segments are not cached and caching
      * is therefore disabled.
@@ -118,26 +152,477 @@ public class DashSource extends UriSource {
         mCacheSizeInBytes = sizeInBytes;
     }
 
-    @Override
-    public MediaExtractor getVideoExtractor() throws IOException {
-        initHttpClient(); // in case init() has not been called
+    /**
+     * Gets the policy of the segment cache.
+     *
+     * @return the segment cache policy
+     */
+    public DashMediaExtractor.CachePolicy getCachePolicy() {
+        return mCachePolicy;
+    }
+
+    /**
+     * Sets the policy of the segment cache. Default policy is
+     * {@link DashMediaExtractor.CachePolicy#TINY_LFU}. This only has an effect before the
+     * extractors are created, i.e. before the DashSource is set as a data source.
+     *
+     * @param cachePolicy the segment cache policy
+     */
+    public void setCachePolicy(DashMediaExtractor.CachePolicy cachePolicy) {
+        mCachePolicy = cachePolicy;
+    }
+
+    /**
+     * Tells if fast seeking is enabled.
+     *
+     * @return true if fast seeking is enabled
+     */
+    public boolean isFastSeekEnabled() {
+        return mFastSeekEnabled;
+    }
+
+    /**
+     * Enables or disables fast seeking, see {@link DashMediaExtractor#setFastSeekEnabled(boolean)}.
+     * This only has an effect before the extractors are created, i.e. before the DashSource is set
+     * as a data source.
+     *
+     * @param enabled true to enable fast seeking
+     */
+    public void setFastSeekEnabled(boolean enabled) {
+        mFastSeekEnabled = enabled;
+    }
+
+    /**
+     * Gets the delay after which a pending segment request is hedged to an alternative base URL.
+     *
+     * @return the hedging delay in milliseconds, 0 if hedging is disabled
+     */
+    public long getHedgedRequestDelay() {
+        return mHedgedRequestDelayMs;
+    }
+
+    /**
+     * Sets the delay after which a segment request that has not received a response yet is
+     * hedged with a second request to an alternative base URL, if the MPD specifies multiple
+     * BaseURLs (e.g. multiple CDNs). The first response is used and the other request canceled.
+     * This trades additional requests for lower tail latency. Hedging is disabled by default;
+     * failed requests are always retried at the alternative base URLs.
+     *
+     * @param delayMs the hedging delay in milliseconds, 0 to disable hedging
+     */
+    public void setHedgedRequestDelay(long delayMs) {
+        if (delayMs < 0) {
+            throw new IllegalArgumentException("delay must not be negative");
+        }
+        mHedgedRequestDelayMs = delayMs;
+        if(mSegmentDownloader != null) {
+            mSegmentDownloader.setHedgingDelay(delayMs);
+        }
+    }
+
+    /**
+     * Gets the policy for retrying failed segment requests.
+     *
+     * @return the retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Sets the policy for retrying failed segment requests, see {@link RetryPolicy}. Interrupted
+     * transfers are resumed from the received data. Default is {@link RetryPolicy#DEFAULT}.
+     *
+     * @param retryPolicy the retry policy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retry policy must be set");
+        }
+        mRetryPolicy = retryPolicy;
+        if(mSegmentDownloader != null) {
+            mSegmentDownloader.setRetryPolicy(retryPolicy);
+        }
+    }
+
+    /**
+     * Gets the persistent segment cache.
+     *
+     * @return the persistent segment cache, or null if none is set
+     */
+    public SegmentDiskCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    /**
+     * Sets a persistent segment cache that keeps downloaded segments across playback sessions.
+     * Segments found in this cache are not downloaded again, e.g. when replaying a title or when
+     * seeking back into an already watched region after the in-memory segment cache has
+     * evicted them. Persistent caching is disabled by default.
+     *
+     * The same cache instance should be passed to all sources, see {@link SegmentDiskCache}.
+     *
+     * @param diskCache the persistent cache, or null to disable persistent caching
+     */
+    public void setDiskCache(SegmentDiskCache diskCache) {
+        mDiskCache = diskCache;
+        if(mSegmentDownloader != null) {
+            mSegmentDownloader.setDiskCache(diskCache);
+        }
+    }
+
+    /**
+     * Gets the memory budget for processed segments that are ready for playback. Default size is
+     * 32 megabytes.
+     *
+     * @return the memory budget in bytes
+     */
+    public long getMemoryStoreSize() {
+        return mMemoryStoreSizeInBytes;
+    }
+
+    /**
+     * Sets the memory budget for processed segments that are ready for playback. Segments within
+     * the budget are held in memory instead of temporary files, which avoids a file system round
+     * trip for every segment. This only works on Android 6.0 (API 23) and later; on older versions,
+     * and for segments that exceed the budget, temporary files are used. The budget is shared by
+     * the video and audio extractors of this source.
+     *
+     * This only has an effect before the extractors are created, i.e. before the DashSource is set
+     * as a data source (e.g. in MediaPlayer or VideoView).
+     *
+     * @param sizeInBytes the memory budget in bytes, 0 to always use temporary files
+     */
+    public void setMemoryStoreSize(long sizeInBytes) {
+        mMemoryStoreSizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Gets the size of the ring file that stores processed segments which are not held in memory.
+     * Default size is 64 megabytes.
+     *
+     * @return the size of the ring file in bytes
+     */
+    public long getRingFileSize() {
+        return mRingFileSizeInBytes;
+    }
+
+    /**
+     * Sets the size of the ring file that stores processed segments which are not held in memory.
+     * The file is allocated once and shared by the video and audio extractors of this source; when
+     * it is full, new segments overwrite the oldest unused segments, which then need to be
+     * downloaded again if they are needed later. The ring file should therefore be at least as
+     * large as the buffered segments of both extractors.
+     *
+     * This only has an effect before the extractors are created, i.e. before the DashSource is set
+     * as a data source (e.g. in MediaPlayer or VideoView).
+     *
+     * @param sizeInBytes the size of the ring file in bytes (at most 2GB), 0 to store each segment
+     *                    in a temporary file
+     */
+    public void setRingFileSize(long sizeInBytes) {
+        mRingFileSizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Gets the filter that excludes video representations before the adaptation logic chooses
+     * among them, e.g. representations that the device cannot decode or that are far larger than
+     * the view. The filter can be configured at any time.
+     *
+     * @return the representation filter
+     */
+    public RepresentationFilter getRepresentationFilter() {
+        return mRepresentationFilter;
+    }
+
+    /**
+     * Tells if the recommendations of the adaptation logic are capped when the decoder lags.
+     *
+     * @return true if decoder lag capping is enabled
+     */
+    public boolean isDecoderLagCappingEnabled() {
+        return mDecoderLagCappingEnabled;
+    }
+
+    /**
+     * Enables or disables capping the recommended representations when the decoder cannot keep up
+     * with them, see {@link DecoderLagCappingLogic}. This only has an effect before the extractors
+     * are created, i.e. before the DashSource is set as a data source.
+     *
+     * @param enabled true to enable decoder lag capping
+     */
+    public void setDecoderLagCappingEnabled(boolean enabled) {
+        mDecoderLagCappingEnabled = enabled;
+    }
+
+    /**
+     * Gets the arbiter that shares the bandwidth with other players.
+     *
+     * @return the bandwidth arbiter, null if the source does not share the bandwidth
+     */
+    public BandwidthArbiter getBandwidthArbiter() {
+        return mBandwidthArbiter;
+    }
+
+    /**
+     * Sets an arbiter that shares the bandwidth among this and other players, see
+     * {@link ArbitratedAdaptationLogic}. The sources of all players that stream at the same time
+     * must be given the same arbiter. This only has an effect before the extractors are created,
+     * i.e. before the DashSource is set as a data source.
+     *
+     * @param arbiter the arbiter shared with the other players, null to not share the bandwidth
+     * @param priority the weight of this player's share, relative to the other players
+     */
+    public synchronized void setBandwidthArbiter(BandwidthArbiter arbiter, float priority) {
+        if(priority <= 0) {
+            throw new IllegalArgumentException("priority must be positive");
+        }
+        mBandwidthArbiter = arbiter;
+        mBandwidthPriority = priority;
+    }
+
+    /**
+     * Changes the weight of this player's share of the bandwidth, e.g. when the player gains or
+     * loses the focus. Can be called at any time.
+     *
+     * @param priority the weight of this player's share, relative to the other players
+     */
+    public synchronized void setBandwidthPriority(float priority) {
+        if(priority <= 0) {
+            throw new IllegalArgumentException("priority must be positive");
+        }
+        mBandwidthPriority = priority;
+        if(mArbitratedAdaptationLogic != null) {
+            mArbitratedAdaptationLogic.setPriority(priority);
+        }
+    }
+
+    private void initAdaptationLogic() {
+        if(mFilteringAdaptationLogic == null) {
+            AdaptationLogic adaptationLogic = mAdaptationLogic;
+            if(mBandwidthArbiter != null) {
+                mArbitratedAdaptationLogic = new ArbitratedAdaptationLogic(
+                        mBandwidthArbiter, adaptationLogic, mBandwidthPriority);
+                adaptationLogic = mArbitratedAdaptationLogic;
+            }
+            if(mDecoderLagCappingEnabled) {
+                adaptationLogic = new DecoderLagCappingLogic(adaptationLogic);
+            }
+            mFilteringAdaptationLogic = new FilteringAdaptationLogic(adaptationLogic, mRepresentationFilter);
+        }
+    }
+
+    private void initSegmentStore() {
+        if(mSegmentStore == null) {
+            mSegmentStore = new SegmentStore(getContext(), mMemoryStoreSizeInBytes, mRingFileSizeInBytes);
+        }
+    }
+
+    /**
+     * Creates and initializes an extractor for an adaptation set of a period.
+     */
+    DashMediaExtractor createExtractor(Period period, AdaptationSet adaptationSet) throws IOException {
         DashMediaExtractor mediaExtractor = new DashMediaExtractor();
         mediaExtractor.setCacheSize(mCacheSizeInBytes);
-        mediaExtractor.setDataSource(getContext(), mMPD, mSegmentDownloader, mMPD.getFirstPeriod().getFirstVideoSet(), mAdaptationLogic);
+        mediaExtractor.setCachePolicy(mCachePolicy);
+        mediaExtractor.setFastSeekEnabled(mFastSeekEnabled);
+        mediaExtractor.setSegmentStore(mSegmentStore);
+        mediaExtractor.setRepresentationFilter(mRepresentationFilter);
+        if(mMPD.periods.size() > 1) {
+            mediaExtractor.setPeriodStartUs(period.startUs);
+        }
+        mediaExtractor.setDataSource(getContext(), mMPD, mSegmentDownloader, adaptationSet, mFilteringAdaptationLogic);
         return mediaExtractor;
     }
 
-    @Override
-    public MediaExtractor getAudioExtractor() throws IOException {
+    /**
+     * Creates an extractor for the first adaptation set of a type. For a multi-period MPD, the
+     * extractor plays all periods in sequence, which requires every period to contain an
+     * adaptation set of the type.
+     */
+    private MediaExtractor createExtractor(final String mime) throws IOException {
         initHttpClient(); // in case init() has not been called
-        AdaptationSet audioSet = mMPD.getFirstPeriod().getFirstAudioSet();
-        if(audioSet != null){
-            DashMediaExtractor mediaExtractor = new DashMediaExtractor();
-            mediaExtractor.setCacheSize(mCacheSizeInBytes);
-            mediaExtractor.setDataSource(getContext(), mMPD, mSegmentDownloader, audioSet, mAdaptationLogic);
-            return mediaExtractor;
-        } else {
+        initAdaptationLogic();
+        initSegmentStore();
+        if(mMPD.getFirstPeriod().getFirstSetOfType(mime) == null) {
             return null;
         }
+        if(mMPD.periods.size() == 1) {
+            Period period = mMPD.getFirstPeriod();
+            return createExtractor(period, period.getFirstSetOfType(mime));
+        }
+        return new MultiPeriodExtractor(mMPD, new MultiPeriodExtractor.ExtractorFactory() {
+            @Override
+            public DashMediaExtractor createExtractor(Period period) throws IOException {
+                AdaptationSet adaptationSet = period.getFirstSetOfType(mime);
+                if(adaptationSet == null) {
+                    throw new IOException("period " + period.id + " has no " + mime + " adaptation set");
+                }
+                return DashSource.this.createExtractor(period, adaptationSet);
+            }
+        });
+    }
+
+    /**
+     * Returns an extractor for a type. The player requests the video and audio extractors one
+     * after the other, and the initialization of each mostly waits for the download of its init
+     * and first media segments. Therefore, when one extractor is requested, the extractor of the
+     * other type is created in parallel, and handed out when it is requested next.
+     */
+    private synchronized MediaExtractor getExtractor(String mime, String otherMime) throws IOException {
+        PendingExtractor pendingExtractor = mPendingExtractor;
+        if(pendingExtractor != null && mime.equals(mPendingExtractorMime)) {
+            mPendingExtractor = null;
+            return pendingExtractor.join();
+        }
+
+        if(pendingExtractor == null) {
+            // Initialize the shared components before they are accessed from two threads
+            initHttpClient();
+            initAdaptationLogic();
+            initSegmentStore();
+            mPendingExtractor = startExtractorCreation(otherMime);
+            mPendingExtractorMime = otherMime;
+        }
+
+        try {
+            return createExtractor(mime);
+        } catch (IOException | RuntimeException e) {
+            // The other extractor will not be requested when this one fails
+            releasePendingExtractor();
+            throw e;
+        }
+    }
+
+    private PendingExtractor startExtractorCreation(final String mime) {
+        PendingExtractor task = new PendingExtractor(new Callable<MediaExtractor>() {
+            @Override
+            public MediaExtractor call() throws Exception {
+                return createExtractor(mime);
+            }
+        });
+        SegmentExecutors.getPreparationExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * Releases an extractor created in advance if it is still not requested.
+     */
+    private void expirePendingExtractor(PendingExtractor task) {
+        synchronized (this) {
+            if(mPendingExtractor != task) {
+                return; // requested or released in the meantime
+            }
+            mPendingExtractor = null;
+            Log.d(TAG, "releasing unrequested " + mPendingExtractorMime + " extractor");
+            mPendingExtractorMime = null;
+        }
+        task.release();
+    }
+
+    private void releasePendingExtractor() {
+        if(mPendingExtractor != null) {
+            mPendingExtractor.release();
+            mPendingExtractor = null;
+            mPendingExtractorMime = null;
+        }
+    }
+
+    /**
+     * Releases the extractor that has been created in advance but not been requested, e.g. when
+     * only the video or audio extractor is used. Such an extractor is released automatically a
+     * few seconds after its creation, this releases it right away. The extractors that have been
+     * handed out must be released by their users.
+     *
+     * If the source shares the bandwidth through a {@link BandwidthArbiter}, it is also removed
+     * from the arbiter, so its share goes to the other players right away. Call this when the
+     * playback has ended; otherwise the share is freed after the inactivity timeout of the arbiter.
+     */
+    public synchronized void release() {
+        releasePendingExtractor();
+        if(mArbitratedAdaptationLogic != null) {
+            mArbitratedAdaptationLogic.release();
+        }
+    }
+
+    /**
+     * The creation of an extractor in a background thread. When it is released, the extractor is
+     * released as soon as its creation has finished. A created extractor expires if it is not
+     * requested within {@link #PENDING_EXTRACTOR_TIMEOUT_MS}.
+     */
+    private class PendingExtractor extends FutureTask<MediaExtractor> {
+
+        PendingExtractor(Callable<MediaExtractor> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void set(MediaExtractor extractor) {
+            super.set(extractor);
+            // If the task has been cancelled before, the result is discarded and never released
+            if(isCancelled() && extractor != null) {
+                extractor.release();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if(!isCancelled()) {
+                SegmentExecutors.getTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Releasing blocks on I/O, which must not hold up the timer
+                        SegmentExecutors.getPreparationExecutor().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                expirePendingExtractor(PendingExtractor.this);
+                            }
+                        });
+                    }
+                }, PENDING_EXTRACTOR_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        MediaExtractor join() throws IOException {
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while creating extractor", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("cannot create extractor", cause);
+            }
+        }
+
+        void release() {
+            // Do not interrupt the creation, it would leave the extractor partially initialized
+            if(cancel(false)) {
+                return;
+            }
+            // The creation has already finished
+            try {
+                MediaExtractor extractor = join();
+                if(extractor != null) {
+                    extractor.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                // nothing to release
+            }
+        }
+    }
+
+    @Override
+    public MediaExtractor getVideoExtractor() throws IOException {
+        return getExtractor("video/", "audio/");
+    }
+
+    @Override
+    public MediaExtractor getAudioExtractor() throws IOException {
+        return getExtractor("audio/", "video/");
     }
 }
\ No newline at end of file
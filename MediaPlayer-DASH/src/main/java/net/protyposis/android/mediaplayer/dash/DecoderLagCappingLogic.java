@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caps the representations recommended by another adaptation logic when the decoder cannot keep
+ * up with the recommended representation.
+ *
+ * When a configurable share of the rendered frames is late in several consecutive rendering
+ * windows, the bandwidth of the following representations is capped below the representation
+ * that lags. The cap is lifted after a long period without lag, so a temporary load on the device
+ * (e.g. a background task) does not limit the quality for the rest of the playback.
+ */
+public class DecoderLagCappingLogic implements AdaptationLogic, RenderingHealthReceiver {
+
+    private static final String TAG = DecoderLagCappingLogic.class.getSimpleName();
+
+    private AdaptationLogic mAdaptationLogic;
+    private float mMaxLateFrameRatio = 0.1f;
+    private int mLagWindows = 3;
+    private int mRecoveryWindows = 30;
+    private Map<AdaptationSet, CapState> mStateMap;
+
+    /**
+     * Creates a capping logic around another adaptation logic.
+     *
+     * @param adaptationLogic the logic whose recommendations are capped
+     */
+    public DecoderLagCappingLogic(AdaptationLogic adaptationLogic) {
+        mAdaptationLogic = adaptationLogic;
+        mStateMap = new HashMap<>();
+    }
+
+    /**
+     * Sets the share of late frames in a rendering window above which the window counts as
+     * lagging. Default is 0.1 (10%).
+     */
+    public synchronized void setMaxLateFrameRatio(float maxLateFrameRatio) {
+        mMaxLateFrameRatio = maxLateFrameRatio;
+    }
+
+    /**
+     * Sets the number of consecutive lagging windows after which the representation is capped,
+     * and the number of consecutive windows without lag after which the cap is lifted. Defaults
+     * are 3 and 30; the player reports a window about every 2 seconds.
+     */
+    public synchronized void setWindows(int lagWindows, int recoveryWindows) {
+        mLagWindows = Math.max(1, lagWindows);
+        mRecoveryWindows = Math.max(1, recoveryWindows);
+    }
+
+    private CapState getState(AdaptationSet adaptationSet) {
+        CapState state = mStateMap.get(adaptationSet);
+        if(state == null) {
+            state = new CapState();
+            mStateMap.put(adaptationSet, state);
+        }
+        return state;
+    }
+
+    @Override
+    public synchronized Representation initialize(AdaptationSet adaptationSet) {
+        return cap(adaptationSet, mAdaptationLogic.initialize(adaptationSet));
+    }
+
+    @Override
+    public synchronized void reportSegmentDownload(AdaptationSet adaptationSet, Representation representation,
+                                                   Segment segment, int byteSize, long downloadTimeMs) {
+        mAdaptationLogic.reportSegmentDownload(adaptationSet, representation, segment, byteSize, downloadTimeMs);
+    }
+
+    @Override
+    public synchronized Representation getRecommendedRepresentation(AdaptationSet adaptationSet) {
+        return cap(adaptationSet, mAdaptationLogic.getRecommendedRepresentation(adaptationSet));
+    }
+
+    @Override
+    public synchronized void reportRenderingHealth(AdaptationSet adaptationSet, Representation representation,
+                                                   int renderedFrames, int lateFrames, long durationMs) {
+        if(mAdaptationLogic instanceof RenderingHealthReceiver) {
+            ((RenderingHealthReceiver) mAdaptationLogic).reportRenderingHealth(
+                    adaptationSet, representation, renderedFrames, lateFrames, durationMs);
+        }
+
+        if(renderedFrames == 0) {
+            return;
+        }
+
+        CapState state = getState(adaptationSet);
+        if((float) lateFrames / renderedFrames > mMaxLateFrameRatio) {
+            state.healthyWindows = 0;
+            if(++state.lagWindows >= mLagWindows && representation.bandwidth <= state.maxBandwidth) {
+                state.maxBandwidth = getNextLowerBandwidth(adaptationSet, representation);
+                state.lagWindows = 0;
+                Log.d(TAG, "decoder lags at " + representation + ", capping at " + state.maxBandwidth + " bps");
+            }
+        } else {
+            state.lagWindows = 0;
+            if(state.maxBandwidth != Integer.MAX_VALUE && ++state.healthyWindows >= mRecoveryWindows) {
+                state.maxBandwidth = Integer.MAX_VALUE;
+                state.healthyWindows = 0;
+                Log.d(TAG, "decoder recovered, removing cap");
+            }
+        }
+    }
+
+    /**
+     * Returns the bandwidth of the next lower representation, or the bandwidth of the
+     * representation itself if it is the lowest.
+     */
+    private static int getNextLowerBandwidth(AdaptationSet adaptationSet, Representation representation) {
+        int bandwidth = -1;
+        for(Representation r : adaptationSet.representations) {
+            if(r.bandwidth < representation.bandwidth && r.bandwidth > bandwidth) {
+                bandwidth = r.bandwidth;
+            }
+        }
+        return bandwidth != -1 ? bandwidth : representation.bandwidth;
+    }
+
+    /**
+     * Returns the recommended representation, or the best representation within the cap if the
+     * recommendation exceeds it.
+     */
+    private Representation cap(AdaptationSet adaptationSet, Representation recommended) {
+        CapState state = getState(adaptationSet);
+        if(recommended.bandwidth <= state.maxBandwidth) {
+            return recommended;
+        }
+        return adaptationSet.getHighestRepresentationWithin(state.maxBandwidth);
+    }
+
+    private static class CapState {
+        private int maxBandwidth = Integer.MAX_VALUE;
+        private int lagWindows;
+        private int healthyWindows;
+    }
+}
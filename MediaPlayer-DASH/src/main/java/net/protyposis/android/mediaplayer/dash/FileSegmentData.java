@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.protyposis.android.mediaplayer.MediaExtractor;
+
+/**
+ * Segment data stored in a temporary file.
+ */
+class FileSegmentData extends SegmentData {
+
+    private File mFile;
+    private long mSize;
+
+    FileSegmentData(File file, long size) {
+        mFile = file;
+        mSize = size;
+    }
+
+    @Override
+    long getSize() {
+        return mSize;
+    }
+
+    @Override
+    void setAsDataSource(MediaExtractor extractor) throws IOException {
+        extractor.setDataSource(mFile.getPath());
+    }
+
+    @Override
+    protected void free() {
+        mFile.delete();
+    }
+
+    @Override
+    public String toString() {
+        return mFile.getPath();
+    }
+}
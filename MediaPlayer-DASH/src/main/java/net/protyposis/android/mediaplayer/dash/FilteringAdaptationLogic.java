@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Applies a {@link RepresentationFilter} before another adaptation logic, which therefore only
+ * chooses among the representations that pass the filter.
+ *
+ * The wrapped logic sees a filtered copy of each adaptation set. The copy of a set stays the same
+ * instance when the filter changes and only its representations are updated, so the wrapped
+ * logic keeps its per-set state.
+ */
+class FilteringAdaptationLogic implements AdaptationLogic, RenderingHealthReceiver {
+
+    private AdaptationLogic mAdaptationLogic;
+    private RepresentationFilter mFilter;
+    private Map<AdaptationSet, FilteredSet> mFilteredSets;
+
+    FilteringAdaptationLogic(AdaptationLogic adaptationLogic, RepresentationFilter filter) {
+        mAdaptationLogic = adaptationLogic;
+        mFilter = filter;
+        mFilteredSets = new HashMap<>();
+    }
+
+    RepresentationFilter getFilter() {
+        return mFilter;
+    }
+
+    @Override
+    public synchronized Representation initialize(AdaptationSet adaptationSet) {
+        return mAdaptationLogic.initialize(getFilteredSet(adaptationSet));
+    }
+
+    @Override
+    public synchronized void reportSegmentDownload(AdaptationSet adaptationSet, Representation representation,
+                                                   Segment segment, int byteSize, long downloadTimeMs) {
+        mAdaptationLogic.reportSegmentDownload(getFilteredSet(adaptationSet),
+                representation, segment, byteSize, downloadTimeMs);
+    }
+
+    @Override
+    public synchronized Representation getRecommendedRepresentation(AdaptationSet adaptationSet) {
+        return mAdaptationLogic.getRecommendedRepresentation(getFilteredSet(adaptationSet));
+    }
+
+    @Override
+    public synchronized void reportRenderingHealth(AdaptationSet adaptationSet, Representation representation,
+                                                   int renderedFrames, int lateFrames, long durationMs) {
+        if(mAdaptationLogic instanceof RenderingHealthReceiver) {
+            ((RenderingHealthReceiver) mAdaptationLogic).reportRenderingHealth(
+                    getFilteredSet(adaptationSet), representation, renderedFrames, lateFrames, durationMs);
+        }
+    }
+
+    private AdaptationSet getFilteredSet(AdaptationSet adaptationSet) {
+        FilteredSet filteredSet = mFilteredSets.get(adaptationSet);
+        if(filteredSet == null) {
+            filteredSet = new FilteredSet(new AdaptationSet(adaptationSet));
+            mFilteredSets.put(adaptationSet, filteredSet);
+        }
+        int version = mFilter.getVersion();
+        if(filteredSet.version != version) {
+            filteredSet.adaptationSet.representations.clear();
+            filteredSet.adaptationSet.representations.addAll(mFilter.filter(adaptationSet.representations));
+            // Keep the ascending bandwidth order that the logics expect (and may have established)
+            Collections.sort(filteredSet.adaptationSet.representations, new Comparator<Representation>() {
+                @Override
+                public int compare(Representation lhs, Representation rhs) {
+                    return lhs.bandwidth - rhs.bandwidth;
+                }
+            });
+            filteredSet.version = version;
+        }
+        return filteredSet.adaptationSet;
+    }
+
+    private static class FilteredSet {
+
+        private AdaptationSet adaptationSet;
+        private int version = -1;
+
+        FilteredSet(AdaptationSet adaptationSet) {
+            this.adaptationSet = adaptationSet;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+/**
+ * A count-min sketch that estimates the access frequencies of keys with 4-bit counters, four of
+ * which are incremented per key. To let the sketch adapt to changing access patterns, all
+ * counters are halved after a number of increments that is proportional to the sketch size.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private long[] mTable; // 16 counters per long
+    private int mCounterMask;
+    private int mSampleSize;
+    private int mAdditions;
+
+    /**
+     * @param expectedKeys the expected number of keys to keep track of
+     */
+    FrequencySketch(int expectedKeys) {
+        int size = Integer.highestOneBit(Math.max(expectedKeys, 4) - 1) << 1; // next power of two
+        mTable = new long[size];
+        mCounterMask = size * 16 - 1;
+        mSampleSize = 10 * size * 16 / 4;
+    }
+
+    /**
+     * Returns the estimated number of accesses of a key, at most 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            frequency = Math.min(frequency, (int) ((mTable[index >>> 4] >>> ((index & 15) << 2)) & 0xF));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of a key.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int slot = index >>> 4;
+            int shift = (index & 15) << 2;
+            if (((mTable[slot] >>> shift) & 0xF) < MAX_COUNT) {
+                mTable[slot] += 1L << shift;
+                added = true;
+            }
+        }
+
+        if (added && ++mAdditions == mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves all counters, which ages the recorded frequencies.
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mAdditions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & mCounterMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Provides the process-wide http client that DASH components use when no client is passed to
+ * them. Sharing a client shares its connection pool, so manifest and segment requests of all
+ * players reuse established connections instead of paying for new TCP and TLS handshakes.
+ */
+public class HttpClientProvider {
+
+    private static final String TAG = HttpClientProvider.class.getSimpleName();
+
+    /**
+     * The idle connections kept in the pool. A player typically talks to a few hosts (manifest,
+     * video and audio segments) with up to three parallel segment requests each.
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    /**
+     * The default dispatcher allows only 5 requests per host, which the segment requests of
+     * multiple extractors and players on the same CDN host can exceed.
+     */
+    private static final int MAX_REQUESTS = 64;
+    private static final int MAX_REQUESTS_PER_HOST = 16;
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long READ_TIMEOUT_SECONDS = 20;
+
+    private static OkHttpClient sHttpClient;
+
+    private HttpClientProvider() {
+        // static class
+    }
+
+    /**
+     * Gets the shared http client, which is created on the first call.
+     *
+     * @return the shared http client
+     */
+    public static synchronized OkHttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(MAX_REQUESTS);
+            dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+            sHttpClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                    .dispatcher(dispatcher)
+                    .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .build();
+        }
+        return sHttpClient;
+    }
+
+    /**
+     * Replaces the shared http client, e.g. with a client derived from the app's own client
+     * through {@link OkHttpClient#newBuilder()}, which shares the app's connection pool.
+     * Components that have already been created keep the previous client.
+     *
+     * @param httpClient the http client to share
+     */
+    public static synchronized void setHttpClient(OkHttpClient httpClient) {
+        if (httpClient == null) {
+            throw new IllegalArgumentException("http client must be set");
+        }
+        sHttpClient = httpClient;
+    }
+
+    /**
+     * Opens connections to the segment hosts of an MPD in the background, so the first segment
+     * requests do not wait for connection setup. Each host is connected with a HEAD request for
+     * one of its segments; the connection then stays in the pool of the client. For a host that is
+     * already connected, e.g. the host of the MPD, the request just reuses the pooled connection.
+     *
+     * @param httpClient the client whose pool receives the connections
+     * @param mpd the MPD whose segment hosts are connected
+     * @param headers additional http headers for the requests, or null
+     */
+    static void preconnect(OkHttpClient httpClient, MPD mpd, Map<String, String> headers) {
+        Set<String> hosts = new HashSet<>();
+
+        for (Period period : mpd.periods) {
+            for (AdaptationSet adaptationSet : period.adaptationSets) {
+                for (Representation representation : adaptationSet.representations) {
+                    Segment segment = representation.initSegment != null ? representation.initSegment
+                            : representation.hasSegments() ? representation.segments.get(0) : null;
+                    if (segment == null) {
+                        continue;
+                    }
+
+                    HttpUrl url = HttpUrl.parse(segment.media);
+                    if (url == null || !hosts.add(url.scheme() + "://" + url.host() + ":" + url.port())) {
+                        continue; // not a http url (e.g. a local file), or host already connected
+                    }
+
+                    Request.Builder request = new Request.Builder().url(url).head();
+                    if (headers != null) {
+                        for (String name : headers.keySet()) {
+                            request.addHeader(name, headers.get(name));
+                        }
+                    }
+
+                    Log.d(TAG, "preconnecting " + url.host());
+                    httpClient.newCall(request.build()).enqueue(new Callback() {
+                        @Override
+                        public void onFailure(Call call, IOException e) {
+                            Log.w(TAG, "preconnect failed", e);
+                        }
+
+                        @Override
+                        public void onResponse(Call call, Response response) throws IOException {
+                            response.close(); // releases the connection back to the pool
+                        }
+                    });
+                }
+            }
+        }
+    }
+}
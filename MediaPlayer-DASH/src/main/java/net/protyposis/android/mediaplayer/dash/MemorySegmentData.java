@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.protyposis.android.mediaplayer.MediaExtractor;
+
+/**
+ * Segment data stored in a (pooled) memory buffer, which is passed to the extractor through a
+ * {@link MediaDataSource} and therefore requires API 23.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class MemorySegmentData extends SegmentData {
+
+    private SegmentStore mStore;
+    private ByteBuffer mBuffer;
+    private int mSize;
+
+    /**
+     * @param store the store that the buffer is returned to when the data is freed
+     * @param buffer the buffer holding the data from position zero to its limit
+     */
+    MemorySegmentData(SegmentStore store, ByteBuffer buffer) {
+        mStore = store;
+        mBuffer = buffer;
+        mSize = buffer.limit();
+    }
+
+    @Override
+    long getSize() {
+        return mSize;
+    }
+
+    @Override
+    void setAsDataSource(MediaExtractor extractor) throws IOException {
+        extractor.setDataSource(new BufferDataSource(mBuffer.duplicate()));
+    }
+
+    @Override
+    protected void free() {
+        mStore.releaseBuffer(mBuffer);
+        mBuffer = null;
+    }
+
+    @Override
+    public String toString() {
+        return "memory[" + mSize + "]";
+    }
+
+    private static class BufferDataSource extends MediaDataSource {
+
+        private ByteBuffer mBuffer;
+
+        BufferDataSource(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            if (position >= mBuffer.limit()) {
+                return -1; // EOS
+            }
+            int count = Math.min(size, mBuffer.limit() - (int) position);
+            mBuffer.position((int) position);
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long getSize() throws IOException {
+            return mBuffer.limit();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The buffer is released through the segment data, nothing to do here
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import net.protyposis.android.mediaplayer.LoadControl;
+import net.protyposis.android.mediaplayer.MediaExtractor;
+
+/**
+ * Plays the adaptation sets of consecutive periods of a multi-period MPD as one continuous stream.
+ *
+ * Each period is extracted by its own {@link DashMediaExtractor}. When the current extractor has
+ * buffered the end of its period, the extractor of the next period is created in the background,
+ * which downloads its init segments and first segment, so the switch at the period boundary
+ * does not stall playback. If the track format of the next period equals the current format, the
+ * switch is not signalled as a format change and the decoder keeps its codec; else the decoder
+ * reinitializes its codec for the new period.
+ */
+class MultiPeriodExtractor extends MediaExtractor {
+
+    private static final String TAG = MultiPeriodExtractor.class.getSimpleName();
+
+    /**
+     * Creates and initializes the extractor of an adaptation set of a period.
+     */
+    interface ExtractorFactory {
+        DashMediaExtractor createExtractor(Period period) throws IOException;
+    }
+
+    private MPD mMPD;
+    private ExtractorFactory mExtractorFactory;
+    private List<Integer> mSelectedTracks;
+    private int mCurrentPeriod;
+    private DashMediaExtractor mCurrentExtractor;
+    private PeriodLoader mNextPeriodLoader; // guarded by this, also accessed by the buffering checks
+    private boolean mPeriodFormatChanged;
+    private volatile float mPlaybackSpeed = 1f;
+    private volatile LoadControl mLoadControl; // null until set
+
+    MultiPeriodExtractor(MPD mpd, ExtractorFactory extractorFactory) throws IOException {
+        mMPD = mpd;
+        mExtractorFactory = extractorFactory;
+        mSelectedTracks = new ArrayList<>();
+        mCurrentPeriod = 0;
+        mCurrentExtractor = extractorFactory.createExtractor(mpd.periods.get(0));
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mCurrentExtractor.getTrackCount();
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public Map<UUID, byte[]> getPsshInfo() {
+        return mCurrentExtractor.getPsshInfo();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        MediaFormat mediaFormat = mCurrentExtractor.getTrackFormat(index);
+        // Return the duration of the whole presentation instead of the period
+        mediaFormat.setLong(MediaFormat.KEY_DURATION, mMPD.mediaPresentationDurationUs);
+        return mediaFormat;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mCurrentExtractor.selectTrack(index);
+        mSelectedTracks.add(index); // save track selection for the extractors of the next periods
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        mCurrentExtractor.unselectTrack(index);
+        mSelectedTracks.remove(Integer.valueOf(index));
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) throws IOException {
+        int targetPeriod = getPeriodIndex(timeUs);
+        if(targetPeriod != mCurrentPeriod) {
+            Log.d(TAG, "seek to " + timeUs + " @ period " + targetPeriod);
+            DashMediaExtractor extractor = null;
+            PeriodLoader nextPeriodLoader = takeNextPeriodLoader();
+            if(nextPeriodLoader != null) {
+                if(nextPeriodLoader.mPeriod == targetPeriod) {
+                    extractor = nextPeriodLoader.await();
+                } else {
+                    nextPeriodLoader.cancel();
+                }
+            }
+            if(extractor == null) {
+                extractor = mExtractorFactory.createExtractor(mMPD.periods.get(targetPeriod));
+            }
+            switchToPeriod(targetPeriod, extractor);
+        }
+        mCurrentExtractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public boolean advance() {
+        boolean advanced = mCurrentExtractor.advance();
+        preloadNextPeriodIfBuffered();
+        return advanced;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer byteBuf, int offset) {
+        int size = mCurrentExtractor.readSampleData(byteBuf, offset);
+        if(size == -1 && switchToNextPeriod()) {
+            /* Same as with a representation switch in the DashMediaExtractor, the decoder needs
+             * a chance to reinitialize before it is fed with data of the new format. */
+            if(mPeriodFormatChanged) {
+                return 0;
+            } else {
+                return mCurrentExtractor.readSampleData(byteBuf, offset);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        int index = mCurrentExtractor.getSampleTrackIndex();
+        if(index == -1 && switchToNextPeriod()) {
+            return mCurrentExtractor.getSampleTrackIndex();
+        }
+        return index;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mCurrentExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mCurrentExtractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+        return mCurrentExtractor.getSampleCryptoInfo(info);
+    }
+
+    @Override
+    public long getCachedDuration() {
+        preloadNextPeriodIfBuffered();
+        long cachedDurationUs = mCurrentExtractor.getCachedDuration();
+        PeriodLoader nextPeriodLoader = getNextPeriodLoader();
+        if(nextPeriodLoader != null) {
+            DashMediaExtractor nextExtractor = nextPeriodLoader.getExtractorIfDone();
+            if(nextExtractor != null) {
+                cachedDurationUs += nextExtractor.getCachedDuration();
+            }
+        }
+        return cachedDurationUs;
+    }
+
+    @Override
+    public long getCachedBytes() {
+        long cachedBytes = mCurrentExtractor.getCachedBytes();
+        PeriodLoader nextPeriodLoader = getNextPeriodLoader();
+        if(nextPeriodLoader != null) {
+            DashMediaExtractor nextExtractor = nextPeriodLoader.getExtractorIfDone();
+            if(nextExtractor != null) {
+                cachedBytes += nextExtractor.getCachedBytes();
+            }
+        }
+        return cachedBytes;
+    }
+
+    @Override
+    public boolean hasCacheReachedEndOfStream() {
+        return mCurrentPeriod == mMPD.periods.size() - 1
+                && mCurrentExtractor.hasCacheReachedEndOfStream();
+    }
+
+    @Override
+    public void setPlaybackSpeed(float speed) {
+        mPlaybackSpeed = speed; // for the extractors of the next periods
+        mCurrentExtractor.setPlaybackSpeed(speed);
+    }
+
+    @Override
+    public void setLoadControl(LoadControl loadControl) {
+        mLoadControl = loadControl; // for the extractors of the next periods
+        mCurrentExtractor.setLoadControl(loadControl);
+    }
+
+    @Override
+    public void setViewportSize(int width, int height) {
+        // The filter is shared by the extractors of all periods
+        mCurrentExtractor.setViewportSize(width, height);
+    }
+
+    @Override
+    public void reportRenderingStats(int renderedFrames, int lateFrames, long durationMs) {
+        mCurrentExtractor.reportRenderingStats(renderedFrames, lateFrames, durationMs);
+    }
+
+    @Override
+    public boolean hasTrackFormatChanged() {
+        // Call the current extractor in any case to reset its flag
+        boolean changed = mCurrentExtractor.hasTrackFormatChanged();
+        if(mPeriodFormatChanged) {
+            mPeriodFormatChanged = false;
+            return true;
+        }
+        return changed;
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        PeriodLoader nextPeriodLoader = takeNextPeriodLoader();
+        if(nextPeriodLoader != null) {
+            nextPeriodLoader.cancel();
+        }
+        mCurrentExtractor.release();
+    }
+
+    /**
+     * Returns the index of the period that contains the specified presentation time.
+     */
+    private int getPeriodIndex(long timeUs) {
+        int index = 0;
+        for(int i = 1; i < mMPD.periods.size(); i++) {
+            if(mMPD.periods.get(i).startUs <= timeUs) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Starts loading the extractor of the next period once the current period is buffered
+     * until its end.
+     */
+    private synchronized void preloadNextPeriodIfBuffered() {
+        if(mNextPeriodLoader == null
+                && mCurrentPeriod < mMPD.periods.size() - 1
+                && mCurrentExtractor.hasCacheReachedEndOfStream()) {
+            Log.d(TAG, "preloading period " + (mCurrentPeriod + 1));
+            mNextPeriodLoader = new PeriodLoader(mCurrentPeriod + 1);
+        }
+    }
+
+    private synchronized PeriodLoader getNextPeriodLoader() {
+        return mNextPeriodLoader;
+    }
+
+    /**
+     * Returns the loader of the next period and removes it, or null if there is none.
+     */
+    private synchronized PeriodLoader takeNextPeriodLoader() {
+        PeriodLoader nextPeriodLoader = mNextPeriodLoader;
+        mNextPeriodLoader = null;
+        return nextPeriodLoader;
+    }
+
+    /**
+     * Tries to switch to the next period and returns true if there is one, false if the
+     * current period is the last one.
+     */
+    private boolean switchToNextPeriod() {
+        if(mCurrentPeriod == mMPD.periods.size() - 1) {
+            return false;
+        }
+
+        preloadNextPeriodIfBuffered();
+        PeriodLoader nextPeriodLoader = takeNextPeriodLoader();
+        if(nextPeriodLoader == null) {
+            // The end of the period has been reached before it was completely buffered
+            nextPeriodLoader = new PeriodLoader(mCurrentPeriod + 1);
+        }
+
+        try {
+            DashMediaExtractor extractor = nextPeriodLoader.await();
+            switchToPeriod(mCurrentPeriod + 1, extractor);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "period switching failed", e);
+            return false;
+        }
+    }
+
+    private void switchToPeriod(int period, DashMediaExtractor extractor) {
+        for(int index : mSelectedTracks) {
+            if(index < extractor.getTrackCount()) {
+                extractor.selectTrack(index);
+            }
+        }
+
+        extractor.setPlaybackSpeed(mPlaybackSpeed);
+        if(mLoadControl != null) {
+            extractor.setLoadControl(mLoadControl);
+        }
+
+        mPeriodFormatChanged = hasFormatChanged(mCurrentExtractor, extractor);
+        Log.d(TAG, "switching to period " + period + (mPeriodFormatChanged ? " with format change" : ""));
+
+        mCurrentExtractor.release();
+        mCurrentExtractor = extractor;
+        mCurrentPeriod = period;
+    }
+
+    /**
+     * Compares the formats of the selected tracks of two extractors and returns true if the
+     * decoders need to be reinitialized for the new extractor.
+     */
+    private boolean hasFormatChanged(MediaExtractor oldExtractor, MediaExtractor newExtractor) {
+        if(oldExtractor.getTrackCount() != newExtractor.getTrackCount()) {
+            return true;
+        }
+        for(int index : mSelectedTracks) {
+            MediaFormat oldFormat = oldExtractor.getTrackFormat(index);
+            MediaFormat newFormat = newExtractor.getTrackFormat(index);
+            if(!equals(oldFormat, newFormat, MediaFormat.KEY_MIME)
+                    || !equals(oldFormat, newFormat, MediaFormat.KEY_WIDTH)
+                    || !equals(oldFormat, newFormat, MediaFormat.KEY_HEIGHT)
+                    || !equals(oldFormat, newFormat, MediaFormat.KEY_SAMPLE_RATE)
+                    || !equals(oldFormat, newFormat, MediaFormat.KEY_CHANNEL_COUNT)
+                    || !equals(oldFormat, newFormat, "csd-0")
+                    || !equals(oldFormat, newFormat, "csd-1")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(MediaFormat a, MediaFormat b, String key) {
+        if(!a.containsKey(key) || !b.containsKey(key)) {
+            return a.containsKey(key) == b.containsKey(key);
+        }
+        if(key.startsWith("csd-")) {
+            return a.getByteBuffer(key).equals(b.getByteBuffer(key));
+        } else if(key.equals(MediaFormat.KEY_MIME)) {
+            return a.getString(key).equals(b.getString(key));
+        } else {
+            return a.getInteger(key) == b.getInteger(key);
+        }
+    }
+
+    /**
+     * Creates the extractor of a period on the shared preparation pool.
+     */
+    private class PeriodLoader implements Runnable {
+
+        private final int mPeriod;
+        private DashMediaExtractor mExtractor;
+        private IOException mException;
+        private boolean mCancelled;
+        private boolean mDone;
+
+        PeriodLoader(int period) {
+            mPeriod = period;
+            SegmentExecutors.getPreparationExecutor().execute(this);
+        }
+
+        @Override
+        public void run() {
+            DashMediaExtractor extractor = null;
+            IOException exception = null;
+            try {
+                extractor = mExtractorFactory.createExtractor(mMPD.periods.get(mPeriod));
+            } catch (IOException e) {
+                exception = e;
+            }
+            synchronized (this) {
+                if(mCancelled && extractor != null) {
+                    extractor.release();
+                    extractor = null;
+                }
+                mExtractor = extractor;
+                mException = exception;
+                mDone = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Returns the extractor if it has been created, else null.
+         */
+        synchronized DashMediaExtractor getExtractorIfDone() {
+            return mDone ? mExtractor : null;
+        }
+
+        /**
+         * Blocks until the extractor is created and returns it.
+         */
+        synchronized DashMediaExtractor await() throws IOException {
+            while(!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted while loading period " + mPeriod, e);
+                }
+            }
+            if(mException != null) {
+                throw mException;
+            }
+            return mExtractor;
+        }
+
+        /**
+         * Releases the extractor when it is created, without waiting for it.
+         */
+        synchronized void cancel() {
+            mCancelled = true;
+            if(mExtractor != null) {
+                mExtractor.release();
+                mExtractor = null;
+            }
+        }
+    }
+}
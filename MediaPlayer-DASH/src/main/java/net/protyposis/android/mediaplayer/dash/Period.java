@@ -40,6 +40,9 @@ public class Period {
 
     public AdaptationSet getFirstSetOfType(String mime) {
         for(AdaptationSet as : adaptationSets) {
+            if(as.isTrickMode()) {
+                continue; // trick mode sets are not meant for regular playback
+            }
             if(as.mimeType != null && as.mimeType.startsWith(mime)) {
                 return as;
             } else {
@@ -53,6 +56,21 @@ public class Period {
         return null;
     }
 
+    /**
+     * Returns the trick mode set of an adaptation set, or null if it has none.
+     */
+    public AdaptationSet getTrickModeSet(AdaptationSet adaptationSet) {
+        if(adaptationSet.id == null) {
+            return null;
+        }
+        for(AdaptationSet as : adaptationSets) {
+            if(adaptationSet.id.equals(as.trickModeFor)) {
+                return as;
+            }
+        }
+        return null;
+    }
+
     public AdaptationSet getFirstVideoSet() {
         return getFirstSetOfType("video/");
     }
@@ -60,4 +78,11 @@ public class Period {
     public AdaptationSet getFirstAudioSet() {
         return getFirstSetOfType("audio/");
     }
+
+    /**
+     * Returns the first set of thumbnail images, e.g. for seek bar previews.
+     */
+    public AdaptationSet getFirstImageSet() {
+        return getFirstSetOfType("image/");
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+/**
+ * An {@link AdaptationLogic} that additionally implements this interface receives the rendering
+ * health of the video, which tells if the device can decode the current representation in real
+ * time. A rate based logic alone keeps choosing a representation as long as the network can
+ * deliver it, even if the decoder falls behind.
+ */
+public interface RenderingHealthReceiver {
+
+    /**
+     * Receives the rendering stats of a time window at normal playback speed from the
+     * {@link DashMediaExtractor}.
+     *
+     * @param adaptationSet the adaptation set that is rendered
+     * @param representation the representation that was rendered during the window
+     * @param renderedFrames the number of frames rendered in the window
+     * @param lateFrames the number of these frames that were rendered after their presentation time
+     * @param durationMs the duration of the window in milliseconds
+     */
+    void reportRenderingHealth(AdaptationSet adaptationSet, Representation representation,
+                               int renderedFrames, int lateFrames, long durationMs);
+}
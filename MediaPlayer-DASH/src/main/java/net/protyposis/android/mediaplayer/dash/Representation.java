@@ -30,6 +30,8 @@ public class Representation {
     int height; // pixels
     float sar; // storage aspect ratio
     int bandwidth; // bits/sec
+    int tileColumns = 1; // the thumbnail tile grid of an image representation
+    int tileRows = 1;
 
     long segmentDurationUs;
     Segment initSegment;
@@ -68,6 +70,20 @@ public class Representation {
         return sizeRatio * (hasSAR() ? sar : 1);
     }
 
+    /**
+     * Gets the number of thumbnail columns in each image of a thumbnail representation.
+     */
+    public int getTileColumns() {
+        return tileColumns;
+    }
+
+    /**
+     * Gets the number of thumbnail rows in each image of a thumbnail representation.
+     */
+    public int getTileRows() {
+        return tileRows;
+    }
+
     public int getBandwidth() {
         return bandwidth;
     }
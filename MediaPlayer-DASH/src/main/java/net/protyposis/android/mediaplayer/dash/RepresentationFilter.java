@@ -0,0 +1,243 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Excludes video representations that the device cannot or need not play before an
+ * {@link AdaptationLogic} chooses among them. A representation is excluded if
+ * <ul>
+ *     <li>the device has no decoder that supports its resolution (Android 5.0 / API 21 and later),</li>
+ *     <li>it has more pixels than the configured maximum, or</li>
+ *     <li>it is larger than the viewport in both dimensions, except for the smallest such
+ *     representation, so the video is never rendered below the viewport resolution.</li>
+ * </ul>
+ * If all representations are excluded, the representation with the fewest pixels is kept.
+ * Representations without a resolution (e.g. audio) are never excluded.
+ *
+ * A filter is shared by all extractors of a {@link DashSource} and can be changed at any time;
+ * changes apply from the next segment on.
+ */
+public class RepresentationFilter {
+
+    private static final String TAG = RepresentationFilter.class.getSimpleName();
+
+    private int mViewportWidth;
+    private int mViewportHeight;
+    private int mMaxPixels;
+    private boolean mDecoderCapabilitiesEnabled = true;
+    private volatile int mVersion; // incremented on each change to invalidate filtered sets
+    private Map<String, Boolean> mDecoderSupport; // "mime widthxheight" -> supported
+
+    public RepresentationFilter() {
+        mDecoderSupport = new HashMap<>();
+    }
+
+    /**
+     * Sets the size of the view that the video is rendered to, 0 to not filter by size.
+     */
+    public synchronized void setViewportSize(int width, int height) {
+        if(width != mViewportWidth || height != mViewportHeight) {
+            Log.d(TAG, "viewport " + width + "x" + height);
+            mViewportWidth = width;
+            mViewportHeight = height;
+            mVersion++;
+        }
+    }
+
+    /**
+     * Gets the maximum number of pixels of a representation.
+     *
+     * @return the maximum number of pixels, 0 if unlimited
+     */
+    public synchronized int getMaxPixels() {
+        return mMaxPixels;
+    }
+
+    /**
+     * Sets the maximum number of pixels of a representation, e.g. 1280 * 720 to limit playback to
+     * 720p. Unlimited by default.
+     *
+     * @param maxPixels the maximum number of pixels, 0 for unlimited
+     */
+    public synchronized void setMaxPixels(int maxPixels) {
+        mMaxPixels = maxPixels;
+        mVersion++;
+    }
+
+    /**
+     * Enables or disables the exclusion of representations that the decoders of the device do
+     * not support. Enabled by default.
+     */
+    public synchronized void setDecoderCapabilitiesEnabled(boolean enabled) {
+        mDecoderCapabilitiesEnabled = enabled;
+        mVersion++;
+    }
+
+    /**
+     * Returns a number that changes each time the filter criteria change.
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns the representations that pass the filter, in their original order.
+     */
+    synchronized List<Representation> filter(List<Representation> representations) {
+        // Find the smallest representation that covers the viewport, it is kept for full quality
+        Representation smallestCovering = null;
+        Representation smallest = null;
+        for(Representation representation : representations) {
+            if(!hasSize(representation)) {
+                continue;
+            }
+            if(smallest == null || getPixels(representation) < getPixels(smallest)) {
+                smallest = representation;
+            }
+            if(passes(representation) && covers(representation)
+                    && (smallestCovering == null || getPixels(representation) < getPixels(smallestCovering))) {
+                smallestCovering = representation;
+            }
+        }
+
+        List<Representation> filtered = new ArrayList<>(representations.size());
+        boolean sizedRepresentationAdded = false;
+        for(Representation representation : representations) {
+            if(!hasSize(representation)) {
+                filtered.add(representation);
+            } else if(passes(representation)
+                    && (!covers(representation) || representation == smallestCovering)) {
+                filtered.add(representation);
+                sizedRepresentationAdded = true;
+            }
+        }
+
+        if(!sizedRepresentationAdded && smallest != null) {
+            filtered.add(smallest);
+        }
+
+        return filtered;
+    }
+
+    private static boolean hasSize(Representation representation) {
+        return representation.width > 0 && representation.height > 0;
+    }
+
+    /**
+     * Checks the maximum pixels and decoder capabilities.
+     */
+    private boolean passes(Representation representation) {
+        return !(mMaxPixels > 0 && getPixels(representation) > mMaxPixels)
+                && !(mDecoderCapabilitiesEnabled && !isDecoderSupported(representation));
+    }
+
+    /**
+     * Checks if a representation is at least as large as the viewport in both dimensions.
+     */
+    private boolean covers(Representation representation) {
+        return mViewportWidth > 0 && mViewportHeight > 0
+                && representation.width >= mViewportWidth && representation.height >= mViewportHeight;
+    }
+
+    private static long getPixels(Representation representation) {
+        return (long) representation.width * representation.height;
+    }
+
+    /**
+     * Checks if a decoder of the device supports the codec and resolution of a representation.
+     * Returns true if the support cannot be determined.
+     */
+    private boolean isDecoderSupported(Representation representation) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return true;
+        }
+        String mime = getCodecMimeType(representation.codec);
+        if(mime == null) {
+            return true;
+        }
+        String key = mime + " " + representation.width + "x" + representation.height;
+        Boolean supported = mDecoderSupport.get(key);
+        if(supported == null) {
+            supported = querySizeSupported(mime, representation.width, representation.height);
+            mDecoderSupport.put(key, supported);
+            if(!supported) {
+                Log.d(TAG, "no decoder for " + key);
+            }
+        }
+        return supported;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean querySizeSupported(String mime, int width, int height) {
+        boolean decoderFound = false;
+        for(MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if(codecInfo.isEncoder()) {
+                continue;
+            }
+            for(String type : codecInfo.getSupportedTypes()) {
+                if(!type.equalsIgnoreCase(mime)) {
+                    continue;
+                }
+                decoderFound = true;
+                MediaCodecInfo.VideoCapabilities capabilities =
+                        codecInfo.getCapabilitiesForType(type).getVideoCapabilities();
+                if(capabilities == null || capabilities.isSizeSupported(width, height)) {
+                    return true;
+                }
+            }
+        }
+        // If there is no decoder for the type at all, leave it to playback to fail
+        return !decoderFound;
+    }
+
+    /**
+     * Maps an RFC 6381 codec string of a representation (e.g. avc1.64001f) to a decoder MIME type,
+     * or returns null if the codec is unknown.
+     */
+    private static String getCodecMimeType(String codec) {
+        if(codec == null) {
+            return null;
+        }
+        String fourcc = codec.split("\\.")[0].trim();
+        if(fourcc.equals("avc1") || fourcc.equals("avc3")) {
+            return "video/avc";
+        } else if(fourcc.equals("hev1") || fourcc.equals("hvc1")) {
+            return "video/hevc";
+        } else if(fourcc.equals("vp09") || fourcc.equals("vp9")) {
+            return "video/x-vnd.on2.vp9";
+        } else if(fourcc.equals("vp08") || fourcc.equals("vp8")) {
+            return "video/x-vnd.on2.vp8";
+        } else if(fourcc.equals("av01")) {
+            return "video/av01";
+        } else if(fourcc.equals("mp4v")) {
+            return "video/mp4v-es";
+        }
+        return null;
+    }
+}
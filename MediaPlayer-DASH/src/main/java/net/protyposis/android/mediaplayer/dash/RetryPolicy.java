@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.Random;
+
+/**
+ * Defines how often and after which delays failed segment requests are retried. Retries are
+ * spaced by an exponentially growing delay with full jitter, i.e. the delay of each retry is
+ * chosen randomly between zero and the exponential delay, which spreads the retries of many
+ * clients after a common network outage. The delay is capped at a maximum.
+ *
+ * Retries to alternative base URLs that have not been tried yet are made immediately, the
+ * backoff only applies when all base URLs have failed.
+ */
+public class RetryPolicy {
+
+    /**
+     * Retries up to 5 times, with delays growing from up to 500 ms to up to 8 seconds.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 500, 8000);
+
+    /**
+     * Does not retry failed requests.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+    private final int mMaxRetries;
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom = new Random();
+
+    /**
+     * Creates a retry policy.
+     *
+     * @param maxRetries the number of retries after all base URLs have failed
+     * @param initialDelayMs the upper bound of the delay before the first retry, which doubles
+     *                       with every further retry
+     * @param maxDelayMs the upper bound of the delay of any retry
+     */
+    public RetryPolicy(int maxRetries, long initialDelayMs, long maxDelayMs) {
+        if(maxRetries < 0 || initialDelayMs < 0 || maxDelayMs < initialDelayMs) {
+            throw new IllegalArgumentException("invalid retry policy");
+        }
+        mMaxRetries = maxRetries;
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    public long getInitialDelay() {
+        return mInitialDelayMs;
+    }
+
+    public long getMaxDelay() {
+        return mMaxDelayMs;
+    }
+
+    /**
+     * Gets the delay before a retry.
+     *
+     * @param retry the number of the retry, starting at 0
+     * @return the delay in milliseconds, or -1 if the request should not be retried anymore
+     */
+    long getRetryDelay(int retry) {
+        if(retry >= mMaxRetries) {
+            return -1;
+        }
+        // Limit the shift to avoid an overflow, the cap is reached long before
+        long delayMs = Math.min(mMaxDelayMs, mInitialDelayMs << Math.min(retry, 30));
+        synchronized (mRandom) {
+            return (long)(mRandom.nextDouble() * delayMs);
+        }
+    }
+}
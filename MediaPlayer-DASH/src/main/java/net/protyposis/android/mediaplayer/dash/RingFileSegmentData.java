@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.protyposis.android.mediaplayer.MediaExtractor;
+
+/**
+ * Segment data stored in a region of a {@link SegmentRingFile}, which is passed to the extractor
+ * as a file descriptor range.
+ */
+class RingFileSegmentData extends SegmentData {
+
+    private SegmentRingFile mRingFile;
+    private long mOffset;
+    private long mSize;
+
+    RingFileSegmentData(SegmentRingFile ringFile, long offset, long size) {
+        mRingFile = ringFile;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    long getOffset() {
+        return mOffset;
+    }
+
+    long getEnd() {
+        return mOffset + mSize;
+    }
+
+    /**
+     * Returns a buffer that maps the region of this segment for writing.
+     */
+    ByteBuffer map() throws IOException {
+        return mRingFile.map(this);
+    }
+
+    @Override
+    long getSize() {
+        return mSize;
+    }
+
+    @Override
+    void setAsDataSource(MediaExtractor extractor) throws IOException {
+        extractor.setDataSource(mRingFile.getFD(), mOffset, mSize);
+    }
+
+    @Override
+    protected void free() {
+        mRingFile.release(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ring[" + mOffset + "+" + mSize + "]";
+    }
+}
@@ -16,12 +16,20 @@
 
 package net.protyposis.android.mediaplayer.dash;
 
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Created by maguggen on 27.08.2014.
  */
 public class Segment {
     String media;
     String range;
+    String path; // the URL relative to the base URLs, null if the segment has no alternative URLs
+    List<Uri> baseUrls; // the alternative base URLs (e.g. of multiple CDNs), null if there is only one
 
     Segment() {
     }
@@ -47,6 +55,21 @@ public class Segment {
         return range != null;
     }
 
+    /**
+     * Returns the URLs the segment can be requested from, i.e. the media URL and its counterparts
+     * on the alternative base URLs, in the order of the MPD.
+     */
+    List<String> getUrls() {
+        if (baseUrls == null || path == null) {
+            return Collections.singletonList(media);
+        }
+        List<String> urls = new ArrayList<>(baseUrls.size());
+        for (Uri baseUrl : baseUrls) {
+            urls.add(baseUrl.toString() + path);
+        }
+        return urls;
+    }
+
     @Override
     public String toString() {
         return "Segment{" +
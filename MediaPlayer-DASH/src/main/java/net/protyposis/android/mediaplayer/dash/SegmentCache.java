@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.Collection;
+
+/**
+ * A cache for used or in use segments. Removing a segment from the cache, either explicitly or
+ * through eviction, deletes its data. The cache is limited by the size of its segments in bytes.
+ *
+ * The methods follow the semantics of {@link android.util.LruCache}.
+ */
+interface SegmentCache {
+
+    /**
+     * Identifies a segment by its representation and number.
+     */
+    final class Key {
+
+        final Representation representation;
+        final int number;
+
+        Key(Representation representation, int number) {
+            this.representation = representation;
+            this.number = number;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return number == key.number && representation == key.representation;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(representation) + number;
+        }
+
+        @Override
+        public String toString() {
+            return representation.id + "-" + number;
+        }
+    }
+
+    /**
+     * Looks up a segment by its number in a list of representations, and counts the lookup as a
+     * single hit or miss.
+     *
+     * @param number the segment number
+     * @param representations the representations in the order of preference
+     * @return the segment of the first representation that it is cached for, or null if not cached
+     */
+    CachedSegment get(int number, Collection<Representation> representations);
+
+    CachedSegment put(Key key, CachedSegment segment);
+
+    CachedSegment remove(Key key);
+
+    void evictAll();
+
+    /**
+     * Evicts segments until the cache size fits into the given size.
+     */
+    void trimToSize(int maxSize);
+
+    void resize(int maxSize);
+
+    /**
+     * Returns the size of all cached segments in bytes.
+     */
+    int size();
+
+    int maxSize();
+
+    /**
+     * Gets the weight of this cache in relation to other caches that share a
+     * {@link SegmentCacheManager} budget.
+     */
+    int getWeight();
+
+    void setWeight(int weight);
+
+    /**
+     * Returns the number of lookups that found a segment.
+     */
+    int getHitCount();
+
+    /**
+     * Returns the number of lookups that did not find a segment.
+     */
+    int getMissCount();
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enforces a single, process-wide byte budget on the segment caches of all
+ * {@link DashMediaExtractor}s, no matter how many sources and players are active.
+ *
+ * When the budget is exceeded, segments are evicted from the cache that uses the most space
+ * relative to its weight. Caches are weighted by the bitrate of their current representation,
+ * so every extractor gets a share of the budget that covers about the same playback duration.
+ *
+ * The budget is temporarily lowered when the system signals memory pressure through
+ * {@link ComponentCallbacks2#onTrimMemory(int)}. The memory budgets of the {@link SegmentStore}s
+ * are lowered too, so new segments spill to files instead of memory until the pressure has
+ * been gone for a while.
+ */
+public class SegmentCacheManager implements ComponentCallbacks2 {
+
+    private static final String TAG = SegmentCacheManager.class.getSimpleName();
+
+    private static final long DEFAULT_BUDGET = 128 * 1024 * 1024; // 128MB
+    private static final long MEMORY_PRESSURE_TIMEOUT_MS = 60000; // after the last trim signal
+
+    private static SegmentCacheManager sInstance;
+
+    private long mBudget = DEFAULT_BUDGET;
+    private List<SegmentCache> mCaches = new ArrayList<>();
+    private List<SegmentStore> mStores = new ArrayList<>();
+    private float mMemoryFactor = 1; // the share of the memory budgets available under memory pressure
+    private long mMemoryPressureTime; // the time of the last trim signal
+    private long mReleasedHitCount; // hits of the caches that have already been unregistered
+    private long mReleasedMissCount;
+
+    /**
+     * Gets the process-wide cache manager.
+     *
+     * @param context a context to register for memory trim signals
+     * @return the cache manager instance
+     */
+    public static synchronized SegmentCacheManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SegmentCacheManager();
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    private SegmentCacheManager() {
+    }
+
+    /**
+     * Gets the byte budget for all segment caches. Default budget is 128 megabytes.
+     *
+     * @return the budget in bytes
+     */
+    public synchronized long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Sets the byte budget for all segment caches and evicts segments if the caches currently
+     * exceed the new budget.
+     *
+     * @param budgetInBytes the budget in bytes
+     */
+    public synchronized void setBudget(long budgetInBytes) {
+        mBudget = budgetInBytes;
+        trimToSize(mBudget);
+    }
+
+    /**
+     * Gets the total size of all segment caches.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for (SegmentCache cache : mCaches) {
+            size += cache.size();
+        }
+        return size;
+    }
+
+    synchronized void register(SegmentCache cache) {
+        mCaches.add(cache);
+    }
+
+    synchronized void register(SegmentStore store) {
+        mStores.add(store);
+        store.setMemoryFactor(mMemoryFactor);
+    }
+
+    synchronized void unregister(SegmentStore store) {
+        mStores.remove(store);
+    }
+
+    synchronized void unregister(SegmentCache cache) {
+        if (mCaches.remove(cache)) {
+            mReleasedHitCount += cache.getHitCount();
+            mReleasedMissCount += cache.getMissCount();
+        }
+    }
+
+    /**
+     * Gets the number of segment cache lookups that found a segment, summed over all caches
+     * since the start of the process. Lookups are only made for segments that are not prefetched,
+     * e.g. after a seek.
+     *
+     * @return the number of cache hits
+     */
+    public synchronized long getHitCount() {
+        long hitCount = mReleasedHitCount;
+        for (SegmentCache cache : mCaches) {
+            hitCount += cache.getHitCount();
+        }
+        return hitCount;
+    }
+
+    /**
+     * Gets the number of segment cache lookups that did not find a segment, summed over all
+     * caches since the start of the process.
+     *
+     * @return the number of cache misses
+     */
+    public synchronized long getMissCount() {
+        long missCount = mReleasedMissCount;
+        for (SegmentCache cache : mCaches) {
+            missCount += cache.getMissCount();
+        }
+        return missCount;
+    }
+
+    /**
+     * Gets the ratio of segment cache lookups that found a segment.
+     *
+     * @return the hit rate between 0 and 1, or 0 if there have been no lookups
+     */
+    public synchronized float getHitRate() {
+        long hitCount = getHitCount();
+        long lookupCount = hitCount + getMissCount();
+        return lookupCount == 0 ? 0 : (float) hitCount / lookupCount;
+    }
+
+    /**
+     * Evicts segments until the caches fit into the budget. Must be called after a segment
+     * has been added to a cache.
+     */
+    synchronized void enforceBudget() {
+        if (mMemoryFactor < 1 && SystemClock.elapsedRealtime() - mMemoryPressureTime > MEMORY_PRESSURE_TIMEOUT_MS) {
+            Log.d(TAG, "memory pressure is gone, restoring budgets");
+            setMemoryFactor(1);
+        }
+        // While the memory pressure lasts, the caches stay trimmed
+        trimToSize((long) (mBudget * mMemoryFactor));
+    }
+
+    private void setMemoryFactor(float factor) {
+        mMemoryFactor = factor;
+        for (SegmentStore store : mStores) {
+            store.setMemoryFactor(factor);
+        }
+    }
+
+    /**
+     * Evicts segments, one at a time from the cache that exceeds its weighted share the most,
+     * until the total size fits into the given size.
+     */
+    private void trimToSize(long maxSize) {
+        long size = getSize();
+
+        while (size > maxSize) {
+            SegmentCache largestCache = null;
+            double largestWeightedSize = 0;
+            for (SegmentCache cache : mCaches) {
+                double weightedSize = (double) cache.size() / cache.getWeight();
+                if (cache.size() > 0 && weightedSize > largestWeightedSize) {
+                    largestCache = cache;
+                    largestWeightedSize = weightedSize;
+                }
+            }
+
+            if (largestCache == null) {
+                break; // nothing left to evict
+            }
+
+            // Evict the least recently used entry of the cache
+            int cacheSize = largestCache.size();
+            largestCache.trimToSize(cacheSize - 1);
+            size -= cacheSize - largestCache.size();
+        }
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        float factor;
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            factor = 0;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            factor = 0.25f;
+        } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+            factor = 0.5f;
+        } else {
+            return;
+        }
+
+        long maxSize = (long) (mBudget * factor);
+        Log.d(TAG, "trim memory level " + level + ", trimming caches to " + maxSize + " bytes");
+        trimToSize(maxSize);
+
+        // Spill new segments to files while the memory pressure lasts
+        mMemoryPressureTime = SystemClock.elapsedRealtime();
+        setMemoryFactor(Math.min(mMemoryFactor, factor));
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // nothing to do
+    }
+}
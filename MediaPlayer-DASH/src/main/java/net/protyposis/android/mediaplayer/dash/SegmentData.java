@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.io.IOException;
+
+import net.protyposis.android.mediaplayer.MediaExtractor;
+
+/**
+ * The processed, playable data of a segment, held in some storage backend of a {@link SegmentStore}.
+ *
+ * While a segment is set as the data source of an extractor, it must be pinned, which guarantees
+ * that its storage is not freed or overwritten. Deleting a pinned segment defers freeing the
+ * storage until the segment is unpinned.
+ */
+abstract class SegmentData {
+
+    private int mPinCount;
+    private boolean mDeleted;
+
+    /**
+     * Returns the size of the data in bytes.
+     */
+    abstract long getSize();
+
+    /**
+     * Sets the data as data source of an extractor. The data must be pinned beforehand.
+     */
+    abstract void setAsDataSource(MediaExtractor extractor) throws IOException;
+
+    /**
+     * Frees the storage of the data. Called exactly once, when the data is deleted and not pinned.
+     */
+    protected abstract void free();
+
+    /**
+     * Pins the data to protect it from being freed while it is in use.
+     *
+     * @return true if the data has been pinned, false if it is not valid any more
+     */
+    synchronized boolean pin() {
+        if (mDeleted) {
+            return false;
+        }
+        mPinCount++;
+        return true;
+    }
+
+    /**
+     * Unpins the data, and frees it if it has been deleted in the meantime.
+     */
+    void unpin() {
+        boolean free;
+        synchronized (this) {
+            free = --mPinCount == 0 && mDeleted;
+        }
+        // Free outside of the lock because backends lock themselves while reclaiming storage
+        if (free) {
+            free();
+        }
+    }
+
+    synchronized boolean isPinned() {
+        return mPinCount > 0;
+    }
+
+    /**
+     * Deletes the data. The storage is freed immediately if the data is not pinned, else when it
+     * is unpinned.
+     */
+    void delete() {
+        synchronized (this) {
+            if (mDeleted) {
+                return;
+            }
+            mDeleted = true;
+            if (mPinCount > 0) {
+                return;
+            }
+        }
+        free();
+    }
+
+    /**
+     * Invalidates the data if it is not pinned, without calling {@link #free()}. Used by storage
+     * backends that reclaim the storage of unused data by themselves.
+     *
+     * @return true if the data has been invalidated, false if it is pinned
+     */
+    synchronized boolean invalidate() {
+        if (mPinCount > 0) {
+            return false;
+        }
+        mDeleted = true;
+        return true;
+    }
+
+    /**
+     * Tells if the data is still available, i.e. has not been deleted or invalidated.
+     */
+    synchronized boolean isValid() {
+        return !mDeleted;
+    }
+}
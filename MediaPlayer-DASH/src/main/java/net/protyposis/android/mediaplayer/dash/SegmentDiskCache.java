@@ -0,0 +1,366 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * A persistent on-disk cache for downloaded (raw, unprocessed) segment data that survives
+ * playback sessions and app restarts. Entries are content-addressed by the segment URL and
+ * byte range, so the same segment is found again no matter which DASH source or extractor
+ * requests it.
+ *
+ * The cache keeps an index of its entries in least-recently-used order and evicts the least
+ * recently used entries when the configured byte quota is exceeded. Entries and the index are
+ * written to temporary files first and atomically renamed when complete, so a crash never leaves
+ * a truncated entry behind. The index is written at most every few seconds and on
+ * {@link #flush()}; entries that were added after the last index write are dropped at the next
+ * start after a crash.
+ *
+ * Only one instance should be used per cache directory, because instances do not synchronize
+ * their indices. The instance can be shared between multiple {@link DashSource}s.
+ */
+public class SegmentDiskCache {
+
+    private static final String TAG = SegmentDiskCache.class.getSimpleName();
+
+    private static final String DEFAULT_DIRECTORY = "dash-segments";
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_HEADER = "SegmentDiskCache 1";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long INDEX_WRITE_INTERVAL_MS = 10000;
+
+    private File mDirectory;
+    private long mMaxSize;
+    private long mSize;
+    private Map<String, Entry> mEntries; // iterates from least to most recently used
+    private boolean mIndexDirty;
+    private long mIndexWriteTime; // when the index has been written last
+    private AtomicInteger mTempFileCounter = new AtomicInteger();
+
+    /**
+     * Creates a segment cache in the specified directory.
+     *
+     * @param directory the directory to store cache entries in, must not be used for other files
+     * @param maxSizeInBytes the maximum total size of all cached entries
+     */
+    public SegmentDiskCache(File directory, long maxSizeInBytes) {
+        mDirectory = directory;
+        mMaxSize = maxSizeInBytes;
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "cannot create cache directory " + mDirectory);
+        }
+
+        readIndex();
+    }
+
+    /**
+     * Creates a segment cache in the app's default cache directory.
+     *
+     * @param context the context to determine the cache directory
+     * @param maxSizeInBytes the maximum total size of all cached entries
+     */
+    public SegmentDiskCache(Context context, long maxSizeInBytes) {
+        this(new File(context.getCacheDir(), DEFAULT_DIRECTORY), maxSizeInBytes);
+    }
+
+    /**
+     * Gets the current size of all cached entries.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Gets the maximum size of the cache.
+     *
+     * @return the maximum size in bytes
+     */
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Sets the maximum size of the cache and evicts entries if the new size is smaller than the
+     * current size.
+     *
+     * @param maxSizeInBytes the maximum size in bytes
+     */
+    public synchronized void setMaxSize(long maxSizeInBytes) {
+        mMaxSize = maxSizeInBytes;
+        trimToSize(mMaxSize);
+        writeIndexIfDirty();
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+        writeIndexIfDirty();
+    }
+
+    /**
+     * Writes the index to disk if there are pending changes, e.g. an updated LRU order.
+     */
+    public synchronized void flush() {
+        writeIndexIfDirty();
+    }
+
+    /**
+     * Returns the cached data of a segment, or null if it isn't cached. The file is read without
+     * holding the cache lock, so a slow read does not block other cache users.
+     */
+    byte[] get(Segment segment) {
+        String key = getKey(segment);
+        Entry entry;
+
+        synchronized (this) {
+            entry = mEntries.get(key); // a get to update the LRU order
+            if (entry == null) {
+                return null;
+            }
+            mIndexDirty = true; // the LRU order has changed
+        }
+
+        try {
+            BufferedSource source = Okio.buffer(Okio.source(getEntryFile(key)));
+            try {
+                return source.readByteArray();
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            // The entry can also have been evicted while it was read
+            Log.w(TAG, "cannot read cache entry " + key + ", removing it", e);
+            synchronized (this) {
+                // Do not remove an entry that has been written again in the meantime
+                if (mEntries.get(key) == entry) {
+                    remove(key);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores the data of a segment in the cache. Data larger than the cache is not stored. The
+     * entry is written without holding the cache lock, and the index is only written if the
+     * last write is some time ago.
+     */
+    void put(Segment segment, byte[] data) {
+        if (data.length > getMaxSize()) {
+            return;
+        }
+
+        String key = getKey(segment);
+        // A unique temp file, because the same segment can be written concurrently
+        File tempFile = new File(mDirectory, key + "." + mTempFileCounter.incrementAndGet() + TEMP_SUFFIX);
+
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(data);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            synchronized (this) {
+                remove(key);
+                if (!tempFile.renameTo(getEntryFile(key))) {
+                    throw new IOException("cannot rename " + tempFile);
+                }
+                mEntries.put(key, new Entry(data.length));
+                mSize += data.length;
+                mIndexDirty = true;
+
+                trimToSize(mMaxSize);
+                if (SystemClock.elapsedRealtime() - mIndexWriteTime >= INDEX_WRITE_INTERVAL_MS) {
+                    writeIndexIfDirty();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write cache entry " + key, e);
+            tempFile.delete();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSize -= entry.size;
+            getEntryFile(key).delete();
+            mIndexDirty = true;
+        }
+    }
+
+    private void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next(); // least recently used first
+            iterator.remove();
+            mSize -= entry.getValue().size;
+            getEntryFile(entry.getKey()).delete();
+            mIndexDirty = true;
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    /**
+     * Reads the index from disk, drops entries whose files are missing or incomplete, and deletes
+     * all files that do not belong to an indexed entry (e.g. leftovers from a crash).
+     */
+    private void readIndex() {
+        File indexFile = new File(mDirectory, INDEX_FILE);
+
+        if (indexFile.exists()) {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+                try {
+                    if (!INDEX_HEADER.equals(reader.readLine())) {
+                        throw new IOException("unknown index format");
+                    }
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] parts = line.split(" ");
+                        if (parts.length != 2) {
+                            continue;
+                        }
+                        long size = Long.parseLong(parts[1]);
+                        if (getEntryFile(parts[0]).length() == size) {
+                            mEntries.put(parts[0], new Entry(size));
+                            mSize += size;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException | NumberFormatException e) {
+                Log.w(TAG, "cannot read index, resetting cache", e);
+                mEntries.clear();
+                mSize = 0;
+            }
+        }
+
+        Set<String> validFiles = new HashSet<>(mEntries.keySet());
+        validFiles.add(INDEX_FILE);
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!validFiles.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+
+        Log.d(TAG, "cache opened with " + mEntries.size() + " entries, " + mSize + " bytes");
+
+        mIndexDirty = true;
+        trimToSize(mMaxSize);
+        writeIndexIfDirty();
+    }
+
+    private void writeIndexIfDirty() {
+        if (!mIndexDirty) {
+            return;
+        }
+
+        File indexFile = new File(mDirectory, INDEX_FILE);
+        File tempFile = new File(mDirectory, INDEX_FILE + TEMP_SUFFIX);
+
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                Writer writer = new OutputStreamWriter(out, "UTF-8");
+                writer.write(INDEX_HEADER + "\n");
+                for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                    writer.write(entry.getKey() + " " + entry.getValue().size + "\n");
+                }
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("cannot rename " + tempFile);
+            }
+            mIndexDirty = false;
+            mIndexWriteTime = SystemClock.elapsedRealtime();
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write index", e);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Returns the content address of a segment, which is derived from its URL and byte range.
+     */
+    private static String getKey(Segment segment) {
+        String id = segment.media + "|" + (segment.hasRange() ? segment.range : "");
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return ByteString.of(digest.digest(id.getBytes("UTF-8"))).hex();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Both SHA-1 and UTF-8 are guaranteed to be available on every platform
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A cache entry. Each write of a key creates a new entry, which tells apart the entries of
+     * the same key.
+     */
+    private static class Entry {
+
+        private final long size;
+
+        Entry(long size) {
+            this.size = size;
+        }
+    }
+}
@@ -16,16 +16,26 @@
 
 package net.protyposis.android.mediaplayer.dash;
 
+import android.net.Uri;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -33,6 +43,10 @@ import okhttp3.Headers;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
 
 /**
  * Created by Mario on 05.11.2016.
@@ -44,11 +58,25 @@ public class SegmentDownloader {
 
     static final int INITSEGMENT = -1;
 
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final String PART_SUFFIX = ".part";
+    private static final long READ_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_COALESCED_SEGMENTS = 4;
+    private static final long MAX_COALESCED_BYTES = 8 * 1024 * 1024;
+
     private OkHttpClient mHttpClient;
     private Headers mHeaders;
+    private SegmentDiskCache mDiskCache;
     private PriorityQueue<DownloadQueueItem> mDownloadQueue; // segments waiting in line to be requested
-    private Map<String, Call> mDownloadRequests; // segments currently being requested
+    private Map<String, DownloadRequest> mDownloadRequests; // segments currently being requested
     private int mMaxConcurrentDownloadRequests = 3;
+    private BaseUrlSelector mBaseUrlSelector = new BaseUrlSelector();
+    private long mHedgingDelayMs; // 0 if hedging is disabled
+
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+    private static ScheduledExecutorService sScheduler; // for hedged requests and delayed retries
 
     public SegmentDownloader(OkHttpClient httpClient, Map<String, String> headers) {
         if (httpClient == null) {
@@ -81,22 +109,269 @@ public class SegmentDownloader {
         this(httpClient, null);
     }
 
-    Response downloadBlocking(Segment segment, Integer segmentNr) throws IOException {
-        Request request = buildSegmentRequest(segment);
+    /**
+     * Sets a persistent cache that is consulted before segments are requested from the network,
+     * and where downloaded segments are stored.
+     *
+     * @param diskCache the cache to use, or null to disable persistent caching
+     */
+    void setDiskCache(SegmentDiskCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Sets the time after which a segment request that has not received a response yet is
+     * hedged with a second request to the next base URL, if the segment has alternative base
+     * URLs. The first response is used and the other request is canceled.
+     *
+     * @param delayMs the hedging delay in milliseconds, 0 to disable hedging
+     */
+    synchronized void setHedgingDelay(long delayMs) {
+        mHedgingDelayMs = delayMs;
+    }
+
+    /**
+     * Sets the policy that decides how often and after which delays failed segment requests
+     * are retried.
+     */
+    synchronized void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the data of a segment without going to the network, either from a local file if the
+     * segment is stored locally (e.g. a downloaded title), or from the persistent cache.
+     *
+     * @return the segment data, or null if it is not available locally
+     */
+    byte[] getLocalData(Segment segment) throws IOException {
+        if (segment.media.startsWith("file:")) {
+            return readFile(segment);
+        }
+        return mDiskCache != null ? mDiskCache.get(segment) : null;
+    }
+
+    /**
+     * Reads a segment from a local file, or its byte range if it has one.
+     */
+    private byte[] readFile(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(Uri.parse(segment.media).getPath(), "r");
+        try {
+            long start = 0;
+            long length = file.length();
+            if (segment.hasRange()) {
+                String[] range = segment.range.split("-");
+                start = Long.parseLong(range[0]);
+                length = Long.parseLong(range[1]) - start + 1;
+            }
+            byte[] data = new byte[(int) length];
+            file.seek(start);
+            file.readFully(data);
+            return data;
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid segment range " + segment.range, e);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Downloads a segment, retrying failed requests according to the retry policy. An
+     * interrupted transfer is resumed from the received data with a ranged request.
+     */
+    byte[] downloadBlocking(final Segment segment, Integer segmentNr) throws IOException {
+        final Buffer data = new Buffer(); // the received data, kept across retries to resume
+
+        executeWithRetries(segment, "sync dl @ segment " + segmentNr, new Transfer() {
+            @Override
+            public void execute(String url) throws IOException {
+                long offset = data.size();
+                Response response = SegmentDownloader.this.execute(url, segment, offset);
+                if (response == null) {
+                    return; // the data was already complete
+                }
+                try {
+                    if (offset > 0 && response.code() != HTTP_PARTIAL_CONTENT) {
+                        data.clear(); // the server ignored the range, the whole segment is sent again
+                    }
+                    long startSize = data.size();
+                    long startTime = SystemClock.elapsedRealtime();
+                    data.writeAll(response.body().source());
+                    mBaseUrlSelector.reportSuccess(url,
+                            response.receivedResponseAtMillis() - response.sentRequestAtMillis(),
+                            data.size() - startSize, SystemClock.elapsedRealtime() - startTime);
+                } finally {
+                    response.body().close();
+                }
+            }
+        });
+
+        byte[] segmentData = data.readByteArray();
+
+        if (mDiskCache != null) {
+            mDiskCache.put(segment, segmentData);
+        }
+
+        return segmentData;
+    }
+
+    /**
+     * Executes a segment request and returns the response if it is successful.
+     *
+     * @return the response, or null if the request resumes after the end of the data
+     */
+    private Response execute(String url, Segment segment, long offset) throws IOException {
+        Request request = buildSegmentRequest(url, segment, offset);
         Response response = mHttpClient.newCall(request).execute();
 
+        if (offset > 0 && response.code() == HTTP_RANGE_NOT_SATISFIABLE
+                && ("bytes */" + offset).equals(response.header("Content-Range"))) {
+            // The server reports the total length, which equals the data that is already there
+            response.body().close();
+            return null;
+        }
+
         if (!response.isSuccessful()) {
-            throw new IOException("sync dl error @ segment " + segmentNr + ": "
-                    + response.code() + " " + response.message()
+            response.body().close();
+            throw new IOException("dl error: " + response.code() + " " + response.message()
                     + " " + request.url().toString());
         }
 
         return response;
     }
 
-    synchronized void downloadAsync(CachedSegment segment, SegmentDownloadCallback callback) {
-        mDownloadQueue.offer(new DownloadQueueItem(segment, callback));
-        scheduleDownloads();
+    /**
+     * Downloads a segment into a file. The data is written to a partial file first, which is
+     * renamed to the target file when complete. If a partial file from a previous, interrupted
+     * download exists, the download is resumed with a ranged request. The alternative base URLs
+     * serve the same data, so a partial file can be resumed from any of them.
+     */
+    void downloadToFile(final Segment segment, File file) throws IOException {
+        final File partFile = new File(file.getPath() + PART_SUFFIX);
+
+        executeWithRetries(segment, "file dl", new Transfer() {
+            @Override
+            public void execute(String url) throws IOException {
+                long offset = partFile.length(); // 0 if there is no partial file
+                if (offset > 0 && segment.hasRange() && offset >= getRangeLength(segment)) {
+                    return; // complete, the previous download ended before the rename
+                }
+                Response response = SegmentDownloader.this.execute(url, segment, offset);
+                if (response == null) {
+                    return; // complete, the previous download ended before the rename
+                }
+                try {
+                    // If the server ignores the range of a resume request, the whole segment is sent again
+                    boolean resume = offset > 0 && response.code() == HTTP_PARTIAL_CONTENT;
+                    BufferedSink sink = Okio.buffer(resume ? Okio.appendingSink(partFile) : Okio.sink(partFile));
+                    try {
+                        sink.writeAll(response.body().source());
+                    } finally {
+                        sink.close();
+                    }
+                } finally {
+                    response.body().close();
+                }
+            }
+        });
+
+        if (!partFile.renameTo(file)) {
+            throw new IOException("cannot rename " + partFile);
+        }
+    }
+
+    /**
+     * Executes a transfer of a segment, first trying each of its base URLs and then retrying
+     * after backoff delays, until it succeeds or the retry policy gives up.
+     */
+    private void executeWithRetries(Segment segment, String description, Transfer transfer) throws IOException {
+        List<String> urls = mBaseUrlSelector.getUrls(segment);
+
+        for (int attempts = 1; ; attempts++) {
+            String url = urls.get((attempts - 1) % urls.size());
+            try {
+                transfer.execute(url);
+                return;
+            } catch (IOException e) {
+                mBaseUrlSelector.reportFailure(url);
+                long retryDelay = getRetryDelay(attempts, urls.size(), 0);
+                if (retryDelay < 0) {
+                    throw e;
+                }
+                Log.w(TAG, description + " failed, retrying in " + retryDelay + "ms: " + e.getMessage());
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("retry interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the delay before the next attempt of a request.
+     *
+     * @param attempts the number of attempts made so far
+     * @param urlCount the number of base URLs of the segment
+     * @param deadline the time (see {@link SystemClock#elapsedRealtime()}) when the segment is
+     *                 needed for playback, or 0 if unknown
+     * @return the delay in milliseconds, or -1 if there are no attempts left
+     */
+    private long getRetryDelay(int attempts, int urlCount, long deadline) {
+        if (attempts < urlCount) {
+            return 0; // an alternative base url has not been tried yet
+        }
+        long delayMs = mRetryPolicy.getRetryDelay(attempts - urlCount);
+        if (delayMs > 0 && deadline > 0) {
+            // Do not hold back a retry beyond the time the segment is needed. Once that time has
+            // passed, the regular backoff applies again to not hammer a failing server.
+            long remainingMs = deadline - SystemClock.elapsedRealtime();
+            if (remainingMs > 0) {
+                delayMs = Math.min(delayMs, remainingMs);
+            }
+        }
+        return delayMs;
+    }
+
+    /**
+     * Downloads segments. Requesting the upcoming segments together instead of one
+     * by one allows contiguous byte ranges of a file to be coalesced into a single request.
+     * Segments that are available locally are served right away; they are read before taking
+     * the downloader lock, so a slow disk does not stall the download callbacks.
+     */
+    void downloadAsync(List<CachedSegment> segments, SegmentDownloadCallback callback) {
+        List<DownloadQueueItem> items = new ArrayList<>(segments.size());
+
+        for (CachedSegment segment : segments) {
+            // Serve the segment from local storage if possible, without going to the network
+            try {
+                byte[] localData = getLocalData(segment.segment);
+                if (localData != null) {
+                    callback.onSuccess(new DownloadFinishedArgs(segment, localData, 0, true));
+                    continue;
+                }
+            } catch (IOException e) {
+                callback.onFailure(segment, e);
+                continue;
+            }
+            items.add(new DownloadQueueItem(segment, callback));
+        }
+
+        if (!items.isEmpty()) {
+            synchronized (this) {
+                mDownloadQueue.addAll(items);
+                scheduleDownloads();
+            }
+        }
+    }
+
+    /**
+     * Writes pending changes of the persistent cache to disk.
+     */
+    void flushDiskCache() {
+        if (mDiskCache != null) {
+            mDiskCache.flush();
+        }
     }
 
     synchronized boolean isDownloading(AdaptationSet adaptationSet, int segmentNr) {
@@ -116,10 +391,21 @@ public class SegmentDownloader {
     }
 
     synchronized void cancelDownloads(AdaptationSet adaptationSet) {
+        cancelDownloads(adaptationSet, Integer.MAX_VALUE, Integer.MIN_VALUE); // keep nothing
+    }
+
+    /**
+     * Cancels the downloads of an adaptation set except those of a range of segments.
+     *
+     * @param keepFromSegmentNr the first segment whose download is kept
+     * @param keepToSegmentNr the last segment whose download is kept
+     */
+    synchronized void cancelDownloads(AdaptationSet adaptationSet, int keepFromSegmentNr, int keepToSegmentNr) {
         // Clear waiting queue
         List<DownloadQueueItem> queueItemsToDelete = new ArrayList<>();
         for (DownloadQueueItem item : mDownloadQueue) {
-            if (item.segment.adaptationSet == adaptationSet) {
+            if (item.segment.adaptationSet == adaptationSet
+                    && (item.segment.number < keepFromSegmentNr || item.segment.number > keepToSegmentNr)) {
                 queueItemsToDelete.add(item);
             }
         }
@@ -128,30 +414,180 @@ public class SegmentDownloader {
         }
 
         // Cancel requests
-        List<String> requestItemsToDelete = new ArrayList<>();
+        Set<DownloadRequest> requestsToCancel = new HashSet<>();
+        String keyPrefix = getKeyPrefix(adaptationSet);
         for (String key : mDownloadRequests.keySet()) {
-            if (key.startsWith(adaptationSet.group + "-")) {
-                requestItemsToDelete.add(key);
-                mDownloadRequests.get(key).cancel();
+            if (!key.startsWith(keyPrefix)) {
+                continue;
+            }
+            int segmentNr = Integer.parseInt(key.substring(keyPrefix.length()));
+            if (segmentNr < keepFromSegmentNr || segmentNr > keepToSegmentNr) {
+                requestsToCancel.add(mDownloadRequests.get(key));
             }
         }
-        for(String key : requestItemsToDelete) {
-            mDownloadRequests.remove(key);
+        boolean requeued = false;
+        for (DownloadRequest request : requestsToCancel) {
+            request.finish();
+            for (int i = request.delivered; i < request.items.size(); i++) {
+                DownloadQueueItem item = request.items.get(i);
+                mDownloadRequests.remove(getKey(item.segment.adaptationSet, item.segment.number));
+                if (item.segment.number >= keepFromSegmentNr && item.segment.number <= keepToSegmentNr) {
+                    // A kept segment has been coalesced with a canceled one, request it again
+                    mDownloadQueue.offer(item);
+                    requeued = true;
+                }
+            }
+        }
+        if (requeued) {
+            scheduleDownloads();
         }
     }
 
     private synchronized void scheduleDownloads() {
-        int downloadsToRequest = mMaxConcurrentDownloadRequests - mDownloadRequests.size();
+        // Count the requests, coalesced requests are registered with each of their segments
+        int downloadsToRequest = mMaxConcurrentDownloadRequests
+                - new HashSet<>(mDownloadRequests.values()).size();
 
         for(int i = 0; i < downloadsToRequest && !mDownloadQueue.isEmpty(); i++) {
-            DownloadQueueItem item = mDownloadQueue.poll();
+            List<DownloadQueueItem> items = coalesce(mDownloadQueue.poll());
+            Segment segment = items.get(0).segment.segment;
+            if (items.size() > 1) {
+                // Request the combined range of the segments
+                Segment lastSegment = items.get(items.size() - 1).segment.segment;
+                Segment combinedSegment = new Segment(segment.media, parseRange(segment.range)[0]
+                        + "-" + parseRange(lastSegment.range)[1]);
+                combinedSegment.path = segment.path;
+                combinedSegment.baseUrls = segment.baseUrls;
+                segment = combinedSegment;
+                Log.d(TAG, "coalescing " + items.size() + " segments from "
+                        + items.get(0).segment.number + " into range " + segment.range);
+            }
+
+            DownloadRequest request = new DownloadRequest(items, segment, mBaseUrlSelector.getUrls(segment));
+            for (DownloadQueueItem item : items) {
+                mDownloadRequests.put(getKey(item.segment.adaptationSet, item.segment.number), request);
+            }
+            request.requestNextUrl();
+
+            if (mHedgingDelayMs > 0 && request.hasUntriedUrl()) {
+                scheduleHedging(request);
+            }
+        }
+    }
+
+    /**
+     * Takes the queued segments that directly follow a segment as contiguous byte ranges of the
+     * same file (e.g. a SegmentList with mediaRanges), so they can be requested together. This
+     * saves the overhead and latency of separate requests.
+     *
+     * @return the segment and its following segments
+     */
+    private List<DownloadQueueItem> coalesce(DownloadQueueItem first) {
+        List<DownloadQueueItem> items = new ArrayList<>(MAX_COALESCED_SEGMENTS);
+        items.add(first);
+
+        long[] range = parseRange(first.segment.segment.range);
+        if (range == null) {
+            return items;
+        }
+        long size = range[1] - range[0] + 1;
+
+        DownloadQueueItem previous = first;
+        while (items.size() < MAX_COALESCED_SEGMENTS) {
+            DownloadQueueItem next = null;
+            for (DownloadQueueItem item : mDownloadQueue) {
+                if (item.segment.representation == previous.segment.representation
+                        && item.segment.number == previous.segment.number + 1
+                        && item.callback == previous.callback) {
+                    next = item;
+                    break;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+
+            long[] nextRange = parseRange(next.segment.segment.range);
+            if (nextRange == null || nextRange[0] != range[1] + 1
+                    || !next.segment.segment.media.equals(first.segment.segment.media)
+                    || size + nextRange[1] - nextRange[0] + 1 > MAX_COALESCED_BYTES) {
+                break;
+            }
+
+            mDownloadQueue.remove(next);
+            items.add(next);
+            range[1] = nextRange[1];
+            size += nextRange[1] - nextRange[0] + 1;
+            previous = next;
+        }
+
+        return items;
+    }
+
+    /**
+     * Parses a byte range in the "first-last" format.
+     *
+     * @return the first and last byte, or null if there is no valid range
+     */
+    private static long[] parseRange(String range) {
+        if (range == null) {
+            return null;
+        }
+        String[] bytes = range.split("-");
+        try {
+            return bytes.length == 2 ? new long[] { Long.parseLong(bytes[0]), Long.parseLong(bytes[1]) } : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-            Request request = buildSegmentRequest(item.segment.segment);
+    /**
+     * Requests the segment from the next base URL if the request has not received a response
+     * within the hedging delay.
+     */
+    private void scheduleHedging(final DownloadRequest request) {
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SegmentDownloader.this) {
+                    if (!request.finished && !request.responded && request.hasUntriedUrl()) {
+                        Log.d(TAG, "hedging request for segment " + request.getCurrentItem().segment.number);
+                        request.requestNextUrl();
+                    }
+                }
+            }
+        }, mHedgingDelayMs, TimeUnit.MILLISECONDS);
+    }
 
-            Call call = mHttpClient.newCall(request);
-            mDownloadRequests.put(getKey(item.segment.adaptationSet, item.segment.number), call);
-            call.enqueue(new ResponseCallback(item.segment, item.callback));
+    /**
+     * Requests the segment again after a backoff delay, unless the request has been canceled
+     * in the meantime.
+     */
+    private void scheduleRetry(final DownloadRequest request, long delayMs) {
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SegmentDownloader.this) {
+                    if (!request.finished) {
+                        request.requestNextUrl();
+                    }
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            sScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SegmentDownloader-Scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return sScheduler;
     }
 
     /**
@@ -160,62 +596,195 @@ public class SegmentDownloader {
      * segment numbers.
      */
     private String getKey(AdaptationSet adaptationSet, int segmentNr) {
-        return adaptationSet.group + "-" + segmentNr;
+        return getKeyPrefix(adaptationSet) + segmentNr;
+    }
+
+    /**
+     * Returns the key prefix of an adaptation set. The group alone does not identify an adaptation
+     * set, because the adaptation sets of different periods can have the same group.
+     */
+    private String getKeyPrefix(AdaptationSet adaptationSet) {
+        return adaptationSet.group + "@" + System.identityHashCode(adaptationSet) + "-";
     }
 
     /**
-     * Builds a request object for a segment.
+     * Builds a request object for a segment at one of its URLs that skips a number of bytes at
+     * the start of the segment, which is used to resume interrupted downloads.
      */
-    private Request buildSegmentRequest(Segment segment) {
+    private Request buildSegmentRequest(String url, Segment segment, long offset) {
         // Replace illegal special chars
-        String url = segment.media
+        url = url
                 .replace(" ", "%20") // space
                 .replace("^", "%5E"); // circumflex
 
         Request.Builder builder = new Request.Builder().url(url).headers(mHeaders);
 
         if (segment.hasRange()) {
-            builder.addHeader("Range", "bytes=" + segment.range);
+            if (offset > 0) {
+                String[] range = segment.range.split("-");
+                builder.addHeader("Range", "bytes=" + (Long.parseLong(range[0]) + offset) + "-" + range[1]);
+            } else {
+                builder.addHeader("Range", "bytes=" + segment.range);
+            }
+        } else if (offset > 0) {
+            builder.addHeader("Range", "bytes=" + offset + "-");
         }
 
         return builder.build();
     }
 
+    /**
+     * Returns the length of the byte range of a segment.
+     */
+    private static long getRangeLength(Segment segment) {
+        long[] range = parseRange(segment.range);
+        return range[1] - range[0] + 1;
+    }
+
     class DownloadFinishedArgs {
 
         CachedSegment cachedSegment;
         byte[] data;
         long duration;
+        boolean local; // true if the data has not been downloaded but read from the disk cache or a local file
 
-        DownloadFinishedArgs(CachedSegment cachedSegment, byte[] data, long duration) {
+        DownloadFinishedArgs(CachedSegment cachedSegment, byte[] data, long duration, boolean local) {
             this.cachedSegment = cachedSegment;
             this.data = data;
             this.duration = duration;
+            this.local = local;
         }
     }
 
+    /**
+     * A transfer of a segment from one of its URLs.
+     */
+    private interface Transfer {
+        void execute(String url) throws IOException;
+    }
+
     interface SegmentDownloadCallback {
         void onFailure(CachedSegment cachedSegment, IOException e);
         void onSuccess(DownloadFinishedArgs args) throws IOException;
     }
 
+    /**
+     * The request of one segment, or of multiple segments that are contiguous byte ranges of a
+     * file, which can consist of multiple calls to the alternative URLs of the segment: a call to
+     * the next URL when the previous failed, a hedged call while the previous is still running,
+     * or a retry after a backoff delay. A retry resumes from the data received by the previous
+     * calls. Coalesced segments are delivered one by one as soon as their data is complete. All
+     * fields are guarded by the downloader, except that the call that has responded reads into
+     * the data buffer.
+     */
+    private class DownloadRequest {
+
+        private List<DownloadQueueItem> items; // the requested segments, in the order of their ranges
+        private Segment segment; // the requested segment, or the combined range of the segments
+        private List<String> urls; // in the order of preference
+        private int attempts; // the number of calls started
+        private List<Call> calls = new ArrayList<>(2); // the running calls
+        private boolean responded; // true when a call has received a successful response
+        private boolean finished; // true when the request has been delivered, failed, or canceled
+        private int delivered; // the number of delivered segments
+        private long deliveredBytes; // the size of the delivered segments
+        private Buffer data = new Buffer(); // the received data of the undelivered segments
+        private long transferTime; // the transfer time of the current segment in previous calls
+        private long transferStart; // when the current segment started transferring in the current call
+
+        DownloadRequest(List<DownloadQueueItem> items, Segment segment, List<String> urls) {
+            this.items = items;
+            this.segment = segment;
+            this.urls = urls;
+        }
+
+        boolean hasUntriedUrl() {
+            return attempts < urls.size();
+        }
+
+        DownloadQueueItem getCurrentItem() {
+            return items.get(delivered);
+        }
+
+        void requestNextUrl() {
+            String url = urls.get(attempts++ % urls.size());
+            long offset = deliveredBytes + data.size();
+            Call call = mHttpClient.newCall(buildSegmentRequest(url, segment, offset));
+            calls.add(call);
+            call.enqueue(new ResponseCallback(this, url, offset));
+        }
+
+        /**
+         * Finishes the request and cancels all of its running calls.
+         */
+        void finish() {
+            finished = true;
+            for (Call call : calls) {
+                call.cancel();
+            }
+            calls.clear();
+        }
+    }
+
     private class ResponseCallback implements Callback {
 
-        private CachedSegment mCachedSegment;
-        private SegmentDownloadCallback mCallback;
+        private DownloadRequest mRequest;
+        private String mUrl;
+        private long mOffset;
 
-        ResponseCallback(CachedSegment cachedSegment, SegmentDownloadCallback callback) {
-            mCachedSegment = cachedSegment;
-            mCallback = callback;
+        ResponseCallback(DownloadRequest request, String url, long offset) {
+            mRequest = request;
+            mUrl = url;
+            mOffset = offset;
         }
 
         @Override
         public void onFailure(Call call, IOException e) {
-            mDownloadRequests.remove(getKey(mCachedSegment.adaptationSet, mCachedSegment.number));
+            handleFailure(call, e);
+        }
+
+        /**
+         * Retries the request if no other call of the request is running, either immediately at
+         * a base URL that has not been tried yet, or after a backoff delay at the next base URL
+         * in turn, cycling through the base URLs in the order of preference.
+         * Reports the failure of the undelivered segments when the retry policy gives up.
+         */
+        private void handleFailure(Call call, IOException e) {
+            List<DownloadQueueItem> failedItems = null;
+
+            synchronized (SegmentDownloader.this) {
+                mRequest.calls.remove(call);
+                if (!mRequest.finished && !call.isCanceled()) {
+                    mBaseUrlSelector.reportFailure(mUrl);
+                    if (mRequest.calls.isEmpty()) {
+                        // Retry unless a hedged call is still running and may succeed
+                        CachedSegment cachedSegment = mRequest.getCurrentItem().segment;
+                        long retryDelay = getRetryDelay(mRequest.attempts, mRequest.urls.size(),
+                                cachedSegment.deadline);
+                        if (retryDelay < 0) {
+                            mRequest.finish();
+                            failedItems = mRequest.items.subList(mRequest.delivered, mRequest.items.size());
+                            for (DownloadQueueItem item : failedItems) {
+                                mDownloadRequests.remove(getKey(item.segment.adaptationSet, item.segment.number));
+                            }
+                        } else {
+                            Log.d(TAG, "segment " + cachedSegment.number + " failed, retrying in "
+                                    + retryDelay + "ms from byte " + mRequest.data.size() + ": " + e.getMessage());
+                            if (retryDelay == 0) {
+                                mRequest.requestNextUrl();
+                            } else {
+                                scheduleRetry(mRequest, retryDelay);
+                            }
+                        }
+                    }
+                }
+            }
 
-            if(!call.isCanceled()) {
+            if (failedItems != null) {
                 // Call back only if a request 'really' failed, i.e. if it hasn't been canceled on purpose
-                mCallback.onFailure(mCachedSegment, e);
+                for (DownloadQueueItem item : failedItems) {
+                    item.callback.onFailure(item.segment, e);
+                }
             }
 
             scheduleDownloads();
@@ -223,33 +792,153 @@ public class SegmentDownloader {
 
         @Override
         public void onResponse(Call call, Response response) throws IOException {
-            mDownloadRequests.remove(getKey(mCachedSegment.adaptationSet, mCachedSegment.number));
+            if (!response.isSuccessful()) {
+                response.body().close();
+                handleFailure(call, new IOException("async dl error: " + response.code() + " "
+                        + response.message() + " " + call.request().url().toString()));
+                return;
+            }
+
+            /* The time it takes to send the request header to the server until the response
+             * headers arrive. Can be custom implemented through an Interceptor too, in case
+             * this should ever fail in the future. */
+            long headerTime = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+            long startTime = SystemClock.elapsedRealtime();
+
+            boolean canceled;
+            long skipBytes = 0;
+            long remainingBytes = -1; // the bytes of the requested range left to read, -1 for all
+            synchronized (SegmentDownloader.this) {
+                canceled = mRequest.finished || call.isCanceled();
+                if (!canceled) {
+                    // The first response wins, a hedged call that is still running is canceled
+                    mRequest.responded = true;
+                    for (Call otherCall : new ArrayList<>(mRequest.calls)) {
+                        if (otherCall != call) {
+                            otherCall.cancel();
+                            mRequest.calls.remove(otherCall);
+                        }
+                    }
+                    if (response.code() != HTTP_PARTIAL_CONTENT && (mOffset > 0 || mRequest.segment.hasRange())) {
+                        /* The server ignored the range and sends the whole file, which includes
+                         * the bytes before the requested range and the coalesced segments that
+                         * have already been delivered. */
+                        mRequest.data.clear();
+                        long[] range = parseRange(mRequest.segment.range);
+                        skipBytes = (range != null ? range[0] : 0) + mRequest.deliveredBytes;
+                        if (range != null) {
+                            remainingBytes = range[1] - range[0] + 1 - mRequest.deliveredBytes;
+                        }
+                    }
+                    mRequest.transferTime += headerTime;
+                    mRequest.transferStart = startTime;
+                }
+            }
 
-            if (call.isCanceled()) {
+            if (canceled) {
                 Log.d(TAG, "skipping processing of canceled download");
-            } else if (response.isSuccessful()) {
-                try {
-                    long startTime = SystemClock.elapsedRealtime();
-                    byte[] segmentData = response.body().bytes();
+                response.body().close();
+                scheduleDownloads();
+                return;
+            }
+
+            long receivedBytes = 0;
+            try {
+                BufferedSource source = response.body().source();
+                source.skip(skipBytes);
+                receivedBytes += skipBytes;
+                long read;
+                while (remainingBytes != 0 && (read = source.read(mRequest.data,
+                        remainingBytes < 0 ? READ_CHUNK_SIZE : Math.min(READ_CHUNK_SIZE, remainingBytes))) != -1) {
+                    receivedBytes += read;
+                    if (remainingBytes > 0) {
+                        remainingBytes -= read;
+                    }
+                    if (!deliverSegments(false)) {
+                        Log.d(TAG, "skipping processing of canceled download");
+                        return;
+                    }
+                }
+                deliverSegments(true);
+            } catch (IOException e) {
+                // Resume the interrupted transfer from the received data
+                synchronized (SegmentDownloader.this) {
+                    mRequest.transferTime += SystemClock.elapsedRealtime() - mRequest.transferStart;
+                }
+                handleFailure(call, e);
+                return;
+            } finally {
+                response.body().close();
+            }
 
-                    /* The time it takes to send the request header to the server until the response
-                     * headers arrive. Can be custom implemented through an Interceptor too, in case
-                     * this should ever fail in the future. */
-                    long headerTime = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+            /* The time it takes to read the result body, which is the actual segment data.
+             * The sum of this time together with the header time is the total segment download time. */
+            long payloadTime = SystemClock.elapsedRealtime() - startTime;
+            mBaseUrlSelector.reportSuccess(mUrl, headerTime, receivedBytes, payloadTime);
 
-                    /* The time it takes to read the result body, which is the actual segment data.
-                     * The sum of this time together with the header time is the total segment download time. */
-                    long payloadTime = SystemClock.elapsedRealtime() - startTime;
+            scheduleDownloads();
+        }
+
+        /**
+         * Splits the received data into the requested segments and delivers those that are
+         * complete. The last segment is complete at the end of the response. The progress of the
+         * current segment is counted in the segment, so it can be taken into account while it is
+         * still in transfer.
+         *
+         * @param endOfResponse true if the whole response has been received
+         * @return false if the request has been canceled
+         * @throws IOException if the response ends before all segments are complete
+         */
+        private boolean deliverSegments(boolean endOfResponse) throws IOException {
+            while (true) {
+                DownloadQueueItem item;
+                byte[] segmentData;
+                long transferTime;
+                boolean last;
+
+                synchronized (SegmentDownloader.this) {
+                    if (mRequest.finished) {
+                        return false;
+                    }
+                    item = mRequest.getCurrentItem();
+                    last = mRequest.delivered == mRequest.items.size() - 1;
+                    long length = last ? -1 : getRangeLength(item.segment.segment);
+                    if (last ? !endOfResponse : mRequest.data.size() < length) {
+                        if (endOfResponse) {
+                            throw new IOException("response ended before segment " + item.segment.number);
+                        }
+                        item.segment.loadedBytes = mRequest.data.size();
+                        return true;
+                    }
+
+                    segmentData = last ? mRequest.data.readByteArray() : mRequest.data.readByteArray(length);
+                    mRequest.delivered++;
+                    mRequest.deliveredBytes += segmentData.length;
+                    long now = SystemClock.elapsedRealtime();
+                    transferTime = mRequest.transferTime + now - mRequest.transferStart;
+                    mRequest.transferTime = 0;
+                    mRequest.transferStart = now;
+                    if (last) {
+                        mRequest.finished = true;
+                        mRequest.calls.clear();
+                    }
+                    mDownloadRequests.remove(getKey(item.segment.adaptationSet, item.segment.number));
+                }
+
+                try {
+                    if (mDiskCache != null) {
+                        mDiskCache.put(item.segment.segment, segmentData);
+                    }
 
-                    mCallback.onSuccess(new DownloadFinishedArgs(mCachedSegment, segmentData, headerTime + payloadTime));
+                    item.callback.onSuccess(new DownloadFinishedArgs(item.segment, segmentData, transferTime, false));
                 } catch (IOException e) {
-                    mCallback.onFailure(mCachedSegment, e);
-                } finally {
-                    response.body().close();
+                    item.callback.onFailure(item.segment, e);
                 }
-            }
 
-            scheduleDownloads();
+                if (last) {
+                    return true;
+                }
+            }
         }
     }
 
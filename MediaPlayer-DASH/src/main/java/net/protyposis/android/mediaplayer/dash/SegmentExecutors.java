@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the thread pools that are shared by all {@link DashMediaExtractor}s of the process.
+ *
+ * Segment processing (merging a downloaded segment with its init segment) runs on a fixed pool,
+ * so the number of processing threads stays constant no matter how many extractors (e.g. players)
+ * are active. Segment switching (setting up the next segment for the extractor) runs on a
+ * separate pool, because a switch blocks until its segment is downloaded and processed; sharing
+ * a pool could deadlock when all its threads wait for switches. The switching pool is not capped,
+ * because a switch that waits for a slow download must not hold up the switch of another
+ * extractor whose segment is ready; since the switches of an extractor run one at a time, it
+ * holds at most one thread per extractor. The creation of extractors ahead of their use (e.g. for
+ * the next period) runs on another uncapped pool, because it also blocks on downloads. Idle
+ * threads time out, so the pools do not hold threads while nothing is played.
+ */
+final class SegmentExecutors {
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    // Processing is CPU bound, so use all cores but one, which is left to the decoders and UI
+    private static final int PROCESSING_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static ThreadPoolExecutor sProcessingExecutor;
+    private static ThreadPoolExecutor sSwitchingExecutor;
+    private static ThreadPoolExecutor sPreparationExecutor;
+    private static ScheduledExecutorService sTimer;
+
+    private SegmentExecutors() {
+        // static helper class
+    }
+
+    /**
+     * Returns the shared executor for segment processing, which processes segments in parallel.
+     */
+    static synchronized Executor getProcessingExecutor() {
+        if(sProcessingExecutor == null) {
+            sProcessingExecutor = createExecutor(PROCESSING_THREADS, "DashMediaExtractor-SegmentProcessor");
+        }
+        return sProcessingExecutor;
+    }
+
+    /**
+     * Returns a new executor for the segment switching of an extractor, which executes the tasks
+     * in the order of submission and one at a time on the shared switching pool.
+     */
+    static synchronized Executor newSwitchingExecutor() {
+        if(sSwitchingExecutor == null) {
+            sSwitchingExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    createThreadFactory("DashMediaExtractor-SegmentSwitcher"));
+        }
+        return new SerialExecutor(sSwitchingExecutor);
+    }
+
+    /**
+     * Returns the shared executor for creating extractors in the background before they are
+     * needed, which blocks until their first segments are loaded.
+     */
+    static synchronized Executor getPreparationExecutor() {
+        if(sPreparationExecutor == null) {
+            sPreparationExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    createThreadFactory("DashMediaExtractor-Preparation"));
+        }
+        return sPreparationExecutor;
+    }
+
+    /**
+     * Returns the shared timer for periodic checks, whose tasks must be short and not block.
+     */
+    static synchronized ScheduledExecutorService getTimer() {
+        if(sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DashMediaExtractor-Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                createThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + mCount.getAndIncrement());
+            }
+        };
+    }
+
+    /**
+     * Executes tasks one after another in the order of submission on another executor.
+     */
+    private static class SerialExecutor implements Executor {
+
+        private final Executor mExecutor;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private Runnable mActive;
+
+        SerialExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable runnable) {
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if(mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            if((mActive = mTasks.poll()) != null) {
+                mExecutor.execute(mActive);
+            }
+        }
+    }
+}
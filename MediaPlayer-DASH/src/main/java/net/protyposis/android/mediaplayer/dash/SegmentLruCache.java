@@ -18,30 +18,92 @@ package net.protyposis.android.mediaplayer.dash;
 
 import android.util.LruCache;
 
+import java.util.Collection;
+import java.util.Iterator;
+
 /**
  * Created by maguggen on 28.08.2014.
  */
-class SegmentLruCache extends LruCache<Integer, CachedSegment> {
+class SegmentLruCache extends LruCache<SegmentCache.Key, CachedSegment> implements SegmentCache {
+
+    private int mWeight = 1;
+    private int mHitCount;
+    private int mMissCount;
 
     public SegmentLruCache(int maxBytes) {
         super(maxBytes);
     }
 
     @Override
-    protected void entryRemoved(boolean evicted, Integer key, CachedSegment oldValue, CachedSegment newValue) {
+    public CachedSegment get(int number, Collection<Representation> representations) {
+        for (Representation representation : representations) {
+            CachedSegment segment = get(new Key(representation, number));
+            if (segment != null) {
+                countLookup(true);
+                return segment;
+            }
+        }
+        countLookup(false);
+        return null;
+    }
+
+    private synchronized void countLookup(boolean hit) {
+        if (hit) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+    }
+
+    @Override
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    @Override
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized int getWeight() {
+        return mWeight;
+    }
+
+    @Override
+    public synchronized void setWeight(int weight) {
+        mWeight = Math.max(weight, 1);
+    }
+
+    /**
+     * Evicts the least recently used segments until the cache fits into the given size.
+     * {@link LruCache#trimToSize(int)} is only public since API 17, so it is reimplemented with the
+     * public API; on API 17+, this also replaces the eviction after a put.
+     */
+    @Override
+    public void trimToSize(int maxSize) {
+        // The snapshot iterates from the least to the most recently used entry
+        Iterator<Key> iterator = snapshot().keySet().iterator();
+        while (size() > maxSize && iterator.hasNext()) {
+            remove(iterator.next());
+        }
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Key key, CachedSegment oldValue, CachedSegment newValue) {
         if(newValue != null && newValue == oldValue) {
             // When a value replaces itself, do nothing
             return;
         }
 
-        // Delete the file upon cache removal, no matter if through a put or eviction
-        oldValue.file.delete();
+        // Delete the data upon cache removal, no matter if through a put or eviction
+        oldValue.data.delete();
     }
 
     @Override
-    protected int sizeOf(Integer key, CachedSegment value) {
-        // Return the size of the file
+    protected int sizeOf(Key key, CachedSegment value) {
+        // Return the size of the data
         // NOTE an alternative would be to operate on time units and return the length of the segment
-        return (int)value.file.length();
+        return (int)value.data.getSize();
     }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A single preallocated, memory-mapped file that stores segments in a ring. New segments are
+ * written at the current write position, which wraps around to the start of the file when the
+ * end is reached, and overwrite the oldest segments. Overwritten segments are invalidated and
+ * appear as missing to the caches that hold them; pinned segments are never overwritten but
+ * skipped.
+ *
+ * The file is unlinked right after it has been opened, so it does not need to be cleaned up
+ * after a crash; its disk space is reclaimed when the file descriptor gets closed by
+ * {@link #close()}.
+ */
+class SegmentRingFile {
+
+    private static final String TAG = SegmentRingFile.class.getSimpleName();
+
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mMap;
+    private long mCapacity;
+    private long mWritePosition;
+    private TreeMap<Long, RingFileSegmentData> mSegments; // offset -> segment
+    private boolean mClosed;
+
+    /**
+     * Creates and preallocates a ring file.
+     *
+     * @param directory the directory to create the file in
+     * @param capacity the size of the file in bytes, at most 2GB
+     */
+    SegmentRingFile(File directory, long capacity) throws IOException {
+        if (capacity <= 0 || capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid ring file size " + capacity);
+        }
+
+        File file = File.createTempFile("segments", ".ring", directory);
+        try {
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(capacity);
+            mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            if (mFile != null) {
+                mFile.close();
+            }
+            throw e;
+        } finally {
+            // The open descriptor keeps the data accessible
+            file.delete();
+        }
+
+        mCapacity = capacity;
+        mSegments = new TreeMap<>();
+        Log.d(TAG, "ring file created with " + capacity + " bytes");
+    }
+
+    long getCapacity() {
+        return mCapacity;
+    }
+
+    FileDescriptor getFD() throws IOException {
+        return mFile.getFD();
+    }
+
+    /**
+     * Reserves a region for a segment and evicts the unpinned segments that it overlaps. The
+     * returned segment is pinned and must be unpinned when its data has been written.
+     *
+     * @param size the size of the segment in bytes
+     * @return the reserved segment, or null if there is no region that is free of pinned segments
+     */
+    synchronized RingFileSegmentData allocate(long size) {
+        if (mClosed || size > mCapacity) {
+            return null;
+        }
+
+        long position = mWritePosition;
+        boolean wrapped = false;
+        List<RingFileSegmentData> overlapped = new ArrayList<>();
+
+        while (true) {
+            if (position + size > mCapacity) {
+                if (wrapped) {
+                    return null;
+                }
+                position = 0;
+                wrapped = true;
+            }
+
+            // Collect the segments in the region and skip past the last pinned one
+            overlapped.clear();
+            RingFileSegmentData pinned = null;
+            Map.Entry<Long, RingFileSegmentData> previous = mSegments.lowerEntry(position);
+            if (previous != null && previous.getValue().getEnd() > position) {
+                overlapped.add(previous.getValue());
+            }
+            overlapped.addAll(mSegments.subMap(position, position + size).values());
+            for (RingFileSegmentData segment : overlapped) {
+                if (segment.isPinned()) {
+                    pinned = segment;
+                }
+            }
+
+            if (pinned == null) {
+                break;
+            }
+            position = pinned.getEnd();
+        }
+
+        for (RingFileSegmentData segment : overlapped) {
+            if (!segment.invalidate()) {
+                // Pinned in the meantime, which can only happen for a segment that was valid
+                return null;
+            }
+            mSegments.remove(segment.getOffset());
+        }
+
+        RingFileSegmentData segment = new RingFileSegmentData(this, position, size);
+        segment.pin();
+        mSegments.put(position, segment);
+        mWritePosition = position + size;
+
+        return segment;
+    }
+
+    /**
+     * Returns a buffer that maps the region of a segment into memory. The buffer stays valid
+     * when the file is closed.
+     *
+     * @throws IOException if the file has been closed
+     */
+    synchronized ByteBuffer map(RingFileSegmentData segment) throws IOException {
+        if (mClosed) {
+            throw new IOException("ring file is closed");
+        }
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position((int) segment.getOffset());
+        buffer.limit((int) segment.getEnd());
+        return buffer.slice();
+    }
+
+    /**
+     * Closes the file, which frees its disk space, and invalidates all segments, which then
+     * appear as missing. The mapping is unmapped when it gets garbage collected.
+     */
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        for (RingFileSegmentData segment : mSegments.values()) {
+            segment.invalidate();
+        }
+        mSegments.clear();
+        mMap = null;
+
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "cannot close ring file", e);
+        }
+        Log.d(TAG, "ring file closed");
+    }
+
+    /**
+     * Releases the region of a deleted segment.
+     */
+    synchronized void release(RingFileSegmentData segment) {
+        if (mSegments.get(segment.getOffset()) == segment) {
+            mSegments.remove(segment.getOffset());
+        }
+    }
+}
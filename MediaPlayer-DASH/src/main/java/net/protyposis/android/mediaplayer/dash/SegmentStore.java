@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stores processed segments for playback. Segments are kept in memory if the platform supports
+ * extracting from memory (API 23+) and they fit into the memory budget, else they are written to
+ * a {@link SegmentRingFile}, or to temporary files if the ring file is disabled or has no space.
+ * Keeping segments in memory avoids the file system writes, reads and deletes of every segment,
+ * which are costly on devices with slow flash storage; the ring file at least avoids creating and
+ * deleting a file per segment. Under memory pressure, the {@link SegmentCacheManager} lowers the
+ * memory budget, so new segments spill to files.
+ *
+ * A store can be shared by multiple extractors, which then share the memory budget. Each
+ * extractor acquires the store while it uses it; when the last one releases it, the ring file is
+ * closed, and created again if the store is used again later.
+ */
+class SegmentStore {
+
+    private static final String TAG = SegmentStore.class.getSimpleName();
+
+    static final long DEFAULT_MAX_MEMORY_SIZE = 32 * 1024 * 1024; // 32MB
+    static final long DEFAULT_RING_FILE_SIZE = 64 * 1024 * 1024; // 64MB
+
+    /**
+     * Writes the data of a segment into a channel.
+     */
+    interface SegmentWriter {
+        void writeTo(WritableByteChannel channel) throws IOException;
+    }
+
+    private Context mContext;
+    private ByteBufferPool mBufferPool;
+    private long mMaxMemorySize;
+    private float mMemoryFactor = 1; // lowered under memory pressure
+    private long mMemorySize;
+    private long mRingFileSize;
+    private SegmentRingFile mRingFile;
+    private int mUsers;
+
+    /**
+     * @param context the context to determine the temporary file directory
+     * @param maxMemorySize the maximum size of all segments held in memory, 0 to always use files
+     * @param ringFileSize the size of the ring file, 0 to use a temporary file per segment
+     */
+    SegmentStore(Context context, long maxMemorySize, long ringFileSize) {
+        mContext = context;
+        mMaxMemorySize = maxMemorySize;
+        mBufferPool = new ByteBufferPool(maxMemorySize / 4);
+        mRingFileSize = ringFileSize;
+    }
+
+    /**
+     * Lowers the memory budget to a fraction of the configured size, 1 for the full budget.
+     * Segments that are already in memory stay there, but new segments go to files until the
+     * budget is available again.
+     */
+    synchronized void setMemoryFactor(float factor) {
+        mMemoryFactor = factor;
+        mBufferPool.trimToSize(getMemoryBudget() / 4);
+    }
+
+    private long getMemoryBudget() {
+        return (long) (mMaxMemorySize * mMemoryFactor);
+    }
+
+    /**
+     * Registers a user of the store, which must call {@link #release()} when it is done.
+     */
+    void acquire() {
+        boolean first;
+        synchronized (this) {
+            first = mUsers++ == 0;
+        }
+        // Outside of the lock, because the manager calls into the store while holding its own lock
+        if (first) {
+            SegmentCacheManager.getInstance(mContext).register(this);
+        }
+    }
+
+    /**
+     * Unregisters a user of the store, and frees the ring file when there are no users left.
+     */
+    void release() {
+        boolean last = false;
+        synchronized (this) {
+            if (mUsers > 0 && --mUsers == 0) {
+                last = true;
+                if (mRingFile != null) {
+                    mRingFile.close();
+                    mRingFile = null;
+                }
+            }
+        }
+        if (last) {
+            SegmentCacheManager.getInstance(mContext).unregister(this);
+        }
+    }
+
+    /**
+     * Stores a segment.
+     *
+     * @param name a name that describes the segment, used for naming temporary files
+     * @param size the exact size of the data that the writer writes
+     * @param writer the writer that writes the segment data into the storage
+     * @return the stored segment data
+     */
+    SegmentData store(String name, long size, SegmentWriter writer) throws IOException {
+        ByteBuffer buffer = acquireBuffer(size);
+
+        if (buffer != null) {
+            try {
+                writer.writeTo(new ByteBufferChannel(buffer));
+                if (buffer.hasRemaining()) {
+                    throw new IOException("segment data is smaller than the announced size");
+                }
+                buffer.flip();
+                return new MemorySegmentData(this, buffer);
+            } catch (IOException e) {
+                releaseBuffer(buffer);
+                throw e;
+            }
+        }
+
+        RingFileSegmentData ringFileSegment = allocateRingFileSegment(size);
+
+        if (ringFileSegment != null) {
+            try {
+                ByteBuffer region = ringFileSegment.map();
+                writer.writeTo(new ByteBufferChannel(region));
+                if (region.hasRemaining()) {
+                    throw new IOException("segment data is smaller than the announced size");
+                }
+            } catch (IOException e) {
+                ringFileSegment.delete();
+                throw e;
+            } finally {
+                ringFileSegment.unpin(); // pinned by the ring file during the write
+            }
+            return ringFileSegment;
+        }
+
+        File file = getTempFile(name);
+        boolean written = false;
+        try {
+            FileOutputStream fos = new FileOutputStream(file, false);
+            try {
+                writer.writeTo(fos.getChannel());
+            } finally {
+                fos.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                file.delete();
+            }
+        }
+        return new FileSegmentData(file, size);
+    }
+
+    /**
+     * Returns a buffer for a segment if it can be stored in memory, else null.
+     */
+    private synchronized ByteBuffer acquireBuffer(long size) {
+        /* Memory storage needs MediaDataSource support in MediaExtractor, and a single segment
+         * must not occupy more than a quarter of the budget to keep it for short segments. */
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || size > getMemoryBudget() / 4
+                || mMemorySize + size > getMemoryBudget()) {
+            return null;
+        }
+
+        mMemorySize += size;
+        return mBufferPool.acquire((int) size);
+    }
+
+    /**
+     * Returns a pinned region of the ring file for a segment, or null if the ring file is disabled
+     * or cannot hold the segment. The ring file is created on first use.
+     */
+    private synchronized RingFileSegmentData allocateRingFileSegment(long size) {
+        if (mRingFile == null && mRingFileSize > 0) {
+            try {
+                mRingFile = new SegmentRingFile(mContext.getCacheDir(), mRingFileSize);
+            } catch (IOException e) {
+                Log.w(TAG, "cannot create ring file, falling back to temporary files", e);
+                mRingFileSize = 0;
+            }
+        }
+
+        return mRingFile != null ? mRingFile.allocate(size) : null;
+    }
+
+    /**
+     * Returns the buffer of a freed segment to the pool.
+     */
+    synchronized void releaseBuffer(ByteBuffer buffer) {
+        mMemorySize -= buffer.limit();
+        mBufferPool.release(buffer);
+    }
+
+    /**
+     * http://developer.android.com/training/basics/data-storage/files.html
+     */
+    private File getTempFile(String fileName) throws IOException {
+        fileName = fileName.replaceAll("\\W+", ""); // remove all special chars to get a valid filename
+        return File.createTempFile(fileName, null, mContext.getCacheDir());
+    }
+
+    /**
+     * A channel that writes into a fixed-size byte buffer.
+     */
+    private static class ByteBufferChannel implements WritableByteChannel {
+
+        private ByteBuffer mBuffer;
+        private boolean mOpen = true;
+
+        ByteBufferChannel(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            if (count > mBuffer.remaining()) {
+                throw new IOException("segment data exceeds the announced size");
+            }
+            mBuffer.put(src);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mOpen;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOpen = false;
+        }
+    }
+}
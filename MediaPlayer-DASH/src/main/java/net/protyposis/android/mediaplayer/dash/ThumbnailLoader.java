@@ -0,0 +1,348 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Loads the thumbnails of a thumbnail image adaptation set, e.g. for seek bar previews.
+ *
+ * Thumbnails are usually packed into tiled images (sprites) that each cover the duration of a
+ * segment, with the tiles in row-major order. The loader fetches these images on its own
+ * background thread with the lowest priority and keeps the decoded images in a small LRU memory
+ * cache. It uses its own segment downloader, so thumbnail requests never delay the media segments
+ * of the playback.
+ *
+ * Requested thumbnails are loaded first; in the idle time, the loader prefetches the remaining
+ * images in order until the cache is full, so previews appear instantly while scrubbing.
+ */
+public class ThumbnailLoader {
+
+    private static final String TAG = ThumbnailLoader.class.getSimpleName();
+
+    /**
+     * A thumbnail, which is a region of a tiled image.
+     */
+    public static class Thumbnail {
+
+        private Bitmap mBitmap;
+        private Rect mCrop;
+        private long mStartTimeUs;
+        private long mDurationUs;
+
+        Thumbnail(Bitmap bitmap, Rect crop, long startTimeUs, long durationUs) {
+            mBitmap = bitmap;
+            mCrop = crop;
+            mStartTimeUs = startTimeUs;
+            mDurationUs = durationUs;
+        }
+
+        /**
+         * Gets the tiled image that contains the thumbnail. The image is shared by all thumbnails
+         * of the tile grid and must not be modified or recycled.
+         */
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+
+        /**
+         * Gets the region of the thumbnail in the tiled image.
+         */
+        public Rect getCrop() {
+            return mCrop;
+        }
+
+        /**
+         * Gets the presentation time from which on the thumbnail is shown.
+         */
+        public long getStartTimeUs() {
+            return mStartTimeUs;
+        }
+
+        /**
+         * Gets the duration of the presentation that the thumbnail covers.
+         */
+        public long getDurationUs() {
+            return mDurationUs;
+        }
+    }
+
+    /**
+     * Receives the notification that a requested thumbnail has been loaded.
+     */
+    public interface OnThumbnailLoadedListener {
+        /**
+         * Called on the main thread when the image of a thumbnail that has been requested through
+         * {@link #getThumbnail(long)} has been loaded. The thumbnail can now be retrieved from
+         * {@link #getThumbnail(long)} without delay.
+         *
+         * @param loader the loader that has loaded the thumbnail
+         * @param timeUs the requested presentation time
+         */
+        void onThumbnailLoaded(ThumbnailLoader loader, long timeUs);
+    }
+
+    private Representation mRepresentation;
+    private long mPeriodStartUs;
+    private long mImageDurationUs; // the duration that an image covers, 0 if unknown
+    private SegmentDownloader mSegmentDownloader;
+    private LruCache<Integer, Bitmap> mCache;
+    private LinkedList<Request> mRequests; // requested images, loaded first
+    private int mNextPrefetch; // the next image to prefetch
+    private OnThumbnailLoadedListener mOnThumbnailLoadedListener;
+    private Handler mEventHandler;
+    private Thread mLoaderThread;
+    private volatile boolean mReleased;
+
+    /**
+     * Creates a loader for the thumbnails of an MPD.
+     *
+     * @param mpd the MPD to load the thumbnails from, see {@link #hasThumbnails(MPD)}
+     * @param httpClient the http client for the image requests, or null to use the shared
+     *                   client of {@link HttpClientProvider}
+     * @param headers additional http headers for the image requests, or null
+     * @param cacheSizeInBytes the size of the memory cache for the decoded images
+     * @throws IllegalArgumentException if the MPD does not contain thumbnails
+     */
+    public ThumbnailLoader(MPD mpd, OkHttpClient httpClient, Map<String, String> headers, int cacheSizeInBytes) {
+        Period period = findThumbnailPeriod(mpd);
+        if (period == null) {
+            throw new IllegalArgumentException("MPD does not contain thumbnails");
+        }
+
+        // Thumbnails are small, so take the representation with the smallest images
+        for (Representation representation : period.getFirstImageSet().representations) {
+            if (mRepresentation == null || representation.bandwidth < mRepresentation.bandwidth) {
+                mRepresentation = representation;
+            }
+        }
+        mPeriodStartUs = period.startUs;
+        // A representation without a segment duration has a single image for the whole period
+        mImageDurationUs = mRepresentation.segmentDurationUs > 0 ? mRepresentation.segmentDurationUs
+                : period.durationUs > 0 ? period.durationUs
+                : Math.max(0, mpd.mediaPresentationDurationUs - period.startUs);
+        mSegmentDownloader = new SegmentDownloader(httpClient != null ? httpClient : HttpClientProvider.getHttpClient(), headers);
+        mCache = new LruCache<Integer, Bitmap>(cacheSizeInBytes) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mRequests = new LinkedList<>();
+        mEventHandler = new Handler(Looper.getMainLooper());
+
+        mLoaderThread = new Thread(mLoader, "ThumbnailLoader");
+        mLoaderThread.start();
+    }
+
+    /**
+     * Creates a loader with a memory cache of 4 megabytes.
+     */
+    public ThumbnailLoader(MPD mpd, OkHttpClient httpClient, Map<String, String> headers) {
+        this(mpd, httpClient, headers, 4 * 1024 * 1024);
+    }
+
+    /**
+     * Tells if an MPD contains thumbnails.
+     *
+     * @param mpd the MPD to check
+     * @return true if a thumbnail loader can be created for the MPD
+     */
+    public static boolean hasThumbnails(MPD mpd) {
+        return findThumbnailPeriod(mpd) != null;
+    }
+
+    private static Period findThumbnailPeriod(MPD mpd) {
+        for (Period period : mpd.periods) {
+            AdaptationSet imageSet = period.getFirstImageSet();
+            if (imageSet != null && !imageSet.representations.isEmpty()) {
+                return period;
+            }
+        }
+        return null;
+    }
+
+    public void setOnThumbnailLoadedListener(OnThumbnailLoadedListener listener) {
+        mOnThumbnailLoadedListener = listener;
+    }
+
+    /**
+     * Gets the thumbnail of a presentation time. If the image that contains the thumbnail is not
+     * loaded yet, it is loaded with precedence over prefetched images, and the
+     * {@link OnThumbnailLoadedListener} is notified when it is available.
+     *
+     * @param timeUs the presentation time in microseconds
+     * @return the thumbnail, or null if it is not loaded yet
+     */
+    public Thumbnail getThumbnail(long timeUs) {
+        long imageDurationUs = mImageDurationUs;
+        int index = imageDurationUs == 0 ? 0 : (int) Math.max(0, Math.min(
+                (timeUs - mPeriodStartUs) / imageDurationUs, mRepresentation.segments.size() - 1));
+
+        Bitmap bitmap = mCache.get(index);
+        if (bitmap == null) {
+            synchronized (this) {
+                // Most recent request first, older requests are probably not needed any more
+                Iterator<Request> iterator = mRequests.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().index == index) {
+                        iterator.remove(); // replaced by this request, so scrubbing does not pile them up
+                    }
+                }
+                mRequests.addFirst(new Request(index, timeUs));
+                notify();
+            }
+            return null;
+        }
+
+        int columns = mRepresentation.tileColumns;
+        int rows = mRepresentation.tileRows;
+        long tileDurationUs = imageDurationUs / (columns * rows);
+        long imageStartTimeUs = mPeriodStartUs + index * imageDurationUs;
+        int tile = tileDurationUs == 0 ? 0 : (int) Math.max(0, Math.min(
+                (timeUs - imageStartTimeUs) / tileDurationUs, columns * rows - 1));
+
+        // Take the tile size from the decoded image, the size in the MPD is optional
+        int tileWidth = bitmap.getWidth() / columns;
+        int tileHeight = bitmap.getHeight() / rows;
+        int left = (tile % columns) * tileWidth;
+        int top = (tile / columns) * tileHeight;
+
+        return new Thumbnail(bitmap, new Rect(left, top, left + tileWidth, top + tileHeight),
+                imageStartTimeUs + tile * tileDurationUs, tileDurationUs);
+    }
+
+    /**
+     * Stops loading and clears the cache.
+     */
+    public void release() {
+        mReleased = true;
+        mLoaderThread.interrupt();
+        mCache.evictAll();
+    }
+
+    /**
+     * Blocks until there is an image to load and returns its index, or -1 to stop. Requested
+     * images are returned first, then the images that are not cached yet, as long as the cache
+     * has room left.
+     */
+    private synchronized int takeNextImage() throws InterruptedException {
+        while (!mReleased) {
+            while (!mRequests.isEmpty()) {
+                int index = mRequests.getFirst().index;
+                if (mCache.get(index) == null) {
+                    return index;
+                }
+                mRequests.removeFirst();
+            }
+            while (mNextPrefetch < mRepresentation.segments.size() && mCache.size() < mCache.maxSize()) {
+                int index = mNextPrefetch++;
+                if (mCache.get(index) == null) {
+                    return index;
+                }
+            }
+            wait();
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the requests of an image and, if it has been loaded, notifies the listener about
+     * them.
+     */
+    private synchronized void completeRequests(int index, boolean loaded) {
+        Iterator<Request> iterator = mRequests.iterator();
+        while (iterator.hasNext()) {
+            final Request request = iterator.next();
+            if (request.index != index) {
+                continue;
+            }
+            iterator.remove();
+            if (loaded) {
+                mEventHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mOnThumbnailLoadedListener != null && !mReleased) {
+                            mOnThumbnailLoadedListener.onThumbnailLoaded(ThumbnailLoader.this, request.timeUs);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static class Request {
+
+        private final int index;
+        private final long timeUs;
+
+        Request(int index, long timeUs) {
+            this.index = index;
+            this.timeUs = timeUs;
+        }
+    }
+
+    private Runnable mLoader = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            try {
+                int index;
+                while ((index = takeNextImage()) != -1) {
+                    Segment segment = mRepresentation.segments.get(index);
+                    Bitmap bitmap = null;
+                    try {
+                        byte[] data = mSegmentDownloader.getLocalData(segment);
+                        if (data == null) {
+                            data = mSegmentDownloader.downloadBlocking(segment, index);
+                        }
+                        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                        if (bitmap == null) {
+                            Log.w(TAG, "cannot decode thumbnail image " + segment);
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "cannot load thumbnail image " + segment, e);
+                    }
+
+                    if (bitmap != null) {
+                        mCache.put(index, bitmap);
+                    }
+                    // Failed requests are dropped too, else the loader would retry them endlessly
+                    completeRequests(index, bitmap != null);
+                }
+            } catch (InterruptedException e) {
+                // released
+            }
+            Log.d(TAG, "loader stopped");
+        }
+    };
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A segment cache with a scan-resistant Window TinyLFU policy. New segments enter a small LRU
+ * window; segments that fall out of the window are only admitted to the main cache if they have
+ * been accessed more frequently than the segment they would displace, as estimated by a
+ * {@link FrequencySketch} that also remembers segments that are not cached any more. The main
+ * cache is a segmented LRU, where segments that are accessed again are promoted from the
+ * probation to the protected segment.
+ *
+ * This keeps segments that are repeatedly jumped back to (e.g. intros or highlights) in the cache,
+ * while a linear playback or a long seek that touches many segments once cannot flush them.
+ */
+class TinyLfuSegmentCache implements SegmentCache {
+
+    private static final float WINDOW_RATIO = 0.2f; // window share of the total size
+    private static final float PROTECTED_RATIO = 0.8f; // protected share of the main cache size
+    private static final int EXPECTED_SEGMENT_SIZE = 512 * 1024;
+
+    // Access ordered from least to most recently used
+    private LinkedHashMap<Key, CachedSegment> mWindow = new LinkedHashMap<>(16, 0.75f, true);
+    private LinkedHashMap<Key, CachedSegment> mProbation = new LinkedHashMap<>(16, 0.75f, true);
+    private LinkedHashMap<Key, CachedSegment> mProtected = new LinkedHashMap<>(16, 0.75f, true);
+    private int mWindowSize;
+    private int mProbationSize;
+    private int mProtectedSize;
+
+    private FrequencySketch mSketch;
+    private int mMaxSize;
+    private int mWeight = 1;
+    private int mHitCount;
+    private int mMissCount;
+
+    public TinyLfuSegmentCache(int maxBytes) {
+        mMaxSize = maxBytes;
+        mSketch = new FrequencySketch(Math.max(maxBytes / EXPECTED_SEGMENT_SIZE, 16) * 4);
+    }
+
+    @Override
+    public synchronized CachedSegment get(int number, Collection<Representation> representations) {
+        Key firstKey = null;
+        for (Representation representation : representations) {
+            Key key = new Key(representation, number);
+            CachedSegment segment = get(key);
+            if (segment != null) {
+                mSketch.increment(key);
+                mHitCount++;
+                return segment;
+            }
+            if (firstKey == null) {
+                firstKey = key;
+            }
+        }
+
+        // Record the access of the preferred representation to build up its frequency
+        if (firstKey != null) {
+            mSketch.increment(firstKey);
+        }
+        mMissCount++;
+        return null;
+    }
+
+    private CachedSegment get(Key key) {
+        CachedSegment segment = mWindow.get(key); // moves to the MRU position
+        if (segment == null) {
+            segment = mProtected.get(key);
+        }
+        if (segment == null && (segment = mProbation.remove(key)) != null) {
+            // A second access promotes a segment to the protected segment
+            mProbationSize -= sizeOf(segment);
+            mProtected.put(key, segment);
+            mProtectedSize += sizeOf(segment);
+            demoteProtected();
+        }
+        return segment;
+    }
+
+    @Override
+    public synchronized CachedSegment put(Key key, CachedSegment segment) {
+        mSketch.increment(key);
+
+        CachedSegment previous = removeEntry(key);
+        if (previous != null && previous != segment) {
+            previous.data.delete();
+        }
+
+        mWindow.put(key, segment);
+        mWindowSize += sizeOf(segment);
+        evict();
+
+        return previous;
+    }
+
+    @Override
+    public synchronized CachedSegment remove(Key key) {
+        CachedSegment segment = removeEntry(key);
+        if (segment != null) {
+            segment.data.delete();
+        }
+        return segment;
+    }
+
+    @Override
+    public void evictAll() {
+        trimToSize(-1); // -1 also evicts 0-sized entries
+    }
+
+    @Override
+    public synchronized void trimToSize(int maxSize) {
+        // Evict in the order of least value: probation, window, protected
+        while (size() > maxSize) {
+            if (!evictFirst(mProbation) && !evictFirst(mWindow) && !evictFirst(mProtected)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void resize(int maxSize) {
+        mMaxSize = maxSize;
+        demoteProtected();
+        evict();
+    }
+
+    @Override
+    public synchronized int size() {
+        return mWindowSize + mProbationSize + mProtectedSize;
+    }
+
+    @Override
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public synchronized int getWeight() {
+        return mWeight;
+    }
+
+    @Override
+    public synchronized void setWeight(int weight) {
+        mWeight = Math.max(weight, 1);
+    }
+
+    @Override
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    @Override
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private CachedSegment removeEntry(Key key) {
+        CachedSegment segment;
+        if ((segment = mWindow.remove(key)) != null) {
+            mWindowSize -= sizeOf(segment);
+        } else if ((segment = mProbation.remove(key)) != null) {
+            mProbationSize -= sizeOf(segment);
+        } else if ((segment = mProtected.remove(key)) != null) {
+            mProtectedSize -= sizeOf(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Moves segments that exceed the window size into the main cache if they win the admission
+     * against the segments they displace, and evicts the losers.
+     */
+    private void evict() {
+        int maxWindowSize = (int) (mMaxSize * WINDOW_RATIO);
+        int maxMainSize = mMaxSize - maxWindowSize;
+
+        while (mWindowSize > maxWindowSize && !mWindow.isEmpty()) {
+            Map.Entry<Key, CachedSegment> candidate = mWindow.entrySet().iterator().next();
+            Key candidateKey = candidate.getKey();
+            CachedSegment candidateSegment = candidate.getValue();
+            int candidateSize = sizeOf(candidateSegment);
+            mWindow.remove(candidateKey);
+            mWindowSize -= candidateSize;
+
+            boolean admitted = candidateSize <= maxMainSize;
+            while (admitted && mProbationSize + mProtectedSize + candidateSize > maxMainSize) {
+                LinkedHashMap<Key, CachedSegment> victims = mProbation.isEmpty() ? mProtected : mProbation;
+                Key victimKey = victims.keySet().iterator().next();
+                if (mSketch.frequency(candidateKey) > mSketch.frequency(victimKey)) {
+                    evictFirst(victims);
+                } else {
+                    admitted = false;
+                }
+            }
+
+            if (admitted) {
+                mProbation.put(candidateKey, candidateSegment);
+                mProbationSize += candidateSize;
+            } else {
+                candidateSegment.data.delete();
+            }
+        }
+
+        // The window may exceed its share while the main cache is not full
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Demotes the least recently used protected segments to probation when the protected
+     * segment exceeds its size.
+     */
+    private void demoteProtected() {
+        int maxProtectedSize = (int) ((mMaxSize - (int) (mMaxSize * WINDOW_RATIO)) * PROTECTED_RATIO);
+
+        Iterator<Map.Entry<Key, CachedSegment>> iterator = mProtected.entrySet().iterator();
+        while (mProtectedSize > maxProtectedSize && iterator.hasNext()) {
+            Map.Entry<Key, CachedSegment> entry = iterator.next();
+            iterator.remove();
+            mProtectedSize -= sizeOf(entry.getValue());
+            mProbation.put(entry.getKey(), entry.getValue());
+            mProbationSize += sizeOf(entry.getValue());
+        }
+    }
+
+    /**
+     * Evicts the least recently used segment of a cache segment.
+     *
+     * @return true if a segment has been evicted, false if the cache segment is empty
+     */
+    private boolean evictFirst(LinkedHashMap<Key, CachedSegment> segments) {
+        if (segments.isEmpty()) {
+            return false;
+        }
+        Key key = segments.keySet().iterator().next();
+        CachedSegment segment = removeEntry(key);
+        segment.data.delete();
+        return true;
+    }
+
+    private static int sizeOf(CachedSegment segment) {
+        return (int) segment.data.getSize();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs with Robolectric, whose SystemClock is advanced by {@link SystemClock#sleep(long)}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class BandwidthArbiterTest {
+
+    private BandwidthArbiter mArbiter;
+    private AdaptationSet mAdaptationSet;
+
+    @Before
+    public void setUp() {
+        mArbiter = new BandwidthArbiter();
+
+        mAdaptationSet = new AdaptationSet();
+        mAdaptationSet.mimeType = "video/mp4";
+        for (int bandwidth : new int[] { 1000000, 3000000, 6000000 }) {
+            Representation representation = new Representation();
+            representation.id = String.valueOf(bandwidth);
+            representation.mimeType = "video/mp4";
+            representation.bandwidth = bandwidth;
+            mAdaptationSet.representations.add(representation);
+        }
+    }
+
+    private ArbitratedAdaptationLogic createLogic(float priority) {
+        return new ArbitratedAdaptationLogic(mArbiter, new HighestLogic(), priority);
+    }
+
+    @Test
+    public void getShare_isUnlimitedWithoutEstimate() {
+        ArbitratedAdaptationLogic logic = createLogic(1);
+
+        assertEquals(0, mArbiter.getEstimatedBandwidth());
+        assertEquals(Long.MAX_VALUE, mArbiter.getShare(logic));
+    }
+
+    @Test
+    public void getEstimatedBandwidth_measuresTransfers() {
+        ArbitratedAdaptationLogic logic = createLogic(1);
+
+        mArbiter.reportTransfer(logic, 1000000, 1000);
+
+        assertEquals(8000000, mArbiter.getEstimatedBandwidth());
+    }
+
+    @Test
+    public void getEstimatedBandwidth_countsConcurrentTransfersOnce() {
+        ArbitratedAdaptationLogic a = createLogic(1);
+        ArbitratedAdaptationLogic b = createLogic(1);
+
+        // Both transfers take the same second, so the link carried both in that time
+        mArbiter.reportTransfer(a, 1000000, 1000);
+        mArbiter.reportTransfer(b, 1000000, 1000);
+
+        assertEquals(16000000, mArbiter.getEstimatedBandwidth());
+    }
+
+    @Test
+    public void getShare_splitsCapacityByPriority() {
+        ArbitratedAdaptationLogic a = createLogic(3);
+        ArbitratedAdaptationLogic b = createLogic(1);
+
+        mArbiter.reportTransfer(a, 500000, 1000);
+        mArbiter.reportTransfer(b, 500000, 1000);
+
+        assertEquals(6000000, mArbiter.getShare(a));
+        assertEquals(2000000, mArbiter.getShare(b));
+
+        b.setPriority(3);
+
+        assertEquals(4000000, mArbiter.getShare(a));
+        assertEquals(4000000, mArbiter.getShare(b));
+    }
+
+    @Test
+    public void getShare_givesShareOfInactivePlayerToOthers() {
+        ArbitratedAdaptationLogic a = createLogic(1);
+        ArbitratedAdaptationLogic b = createLogic(1);
+        mArbiter.reportTransfer(a, 500000, 1000);
+        mArbiter.reportTransfer(b, 500000, 1000);
+
+        SystemClock.sleep(16000); // longer than the activity timeout, shorter than the estimation window
+
+        assertEquals(8000000, mArbiter.getShare(a));
+    }
+
+    @Test
+    public void getShare_givesShareOfReleasedPlayerToOthers() {
+        ArbitratedAdaptationLogic a = createLogic(1);
+        ArbitratedAdaptationLogic b = createLogic(1);
+        mArbiter.reportTransfer(a, 500000, 1000);
+        mArbiter.reportTransfer(b, 500000, 1000);
+
+        b.release();
+
+        assertEquals(8000000, mArbiter.getShare(a));
+        assertEquals(Long.MAX_VALUE, mArbiter.getShare(b));
+    }
+
+    @Test
+    public void getEstimatedBandwidth_forgetsOldTransfers() {
+        ArbitratedAdaptationLogic logic = createLogic(1);
+        mArbiter.reportTransfer(logic, 1000000, 1000);
+
+        SystemClock.sleep(21000);
+
+        assertEquals(0, mArbiter.getEstimatedBandwidth());
+    }
+
+    @Test
+    public void getRecommendedRepresentation_staysWithinShare() {
+        ArbitratedAdaptationLogic a = createLogic(1);
+        ArbitratedAdaptationLogic b = createLogic(1);
+        mArbiter.reportTransfer(a, 500000, 1000);
+        mArbiter.reportTransfer(b, 500000, 1000);
+
+        // Each player gets 4 Mbps, which fits the 3 Mbps but not the 6 Mbps representation
+        assertEquals(3000000, a.getRecommendedRepresentation(mAdaptationSet).bandwidth);
+        assertEquals(3000000, b.getRecommendedRepresentation(mAdaptationSet).bandwidth);
+
+        b.release();
+
+        assertEquals(6000000, a.getRecommendedRepresentation(mAdaptationSet).bandwidth);
+    }
+
+    /**
+     * Always recommends the highest representation, so the recommendations show the limit.
+     */
+    private static class HighestLogic implements AdaptationLogic {
+
+        @Override
+        public Representation initialize(AdaptationSet adaptationSet) {
+            return getRecommendedRepresentation(adaptationSet);
+        }
+
+        @Override
+        public void reportSegmentDownload(AdaptationSet adaptationSet, Representation representation,
+                                          Segment segment, int byteSize, long downloadTimeMs) {
+        }
+
+        @Override
+        public Representation getRecommendedRepresentation(AdaptationSet adaptationSet) {
+            return adaptationSet.getHighestRepresentationWithin(Long.MAX_VALUE);
+        }
+    }
+}
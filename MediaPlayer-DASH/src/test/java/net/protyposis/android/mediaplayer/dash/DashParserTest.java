@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.net.Uri;
+
+import net.protyposis.android.mediaplayer.UriSource;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses MPDs from local files, which the parser reads without the http client. Runs with
+ * Robolectric because the parser uses the Android XML parser and Uri.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class DashParserTest {
+
+    private static final String TEMPLATE = "<SegmentTemplate timescale=\"1000\" duration=\"2000\" startNumber=\"1\""
+            + " initialization=\"$RepresentationID$/init.mp4\" media=\"$RepresentationID$/$Number$.m4s\"/>";
+
+    private static final String VIDEO_SET = "<AdaptationSet mimeType=\"video/mp4\">" + TEMPLATE
+            + "<Representation id=\"v1\" bandwidth=\"1000000\" width=\"640\" height=\"360\" codecs=\"avc1.4d401e\"/>"
+            + "</AdaptationSet>";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MPD parse(String mpd) throws IOException, DashParserException {
+        File file = mFolder.newFile("test.mpd");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + mpd).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return new DashParser().parse(new UriSource(null, Uri.fromFile(file)));
+    }
+
+    private static String mpd(String duration, String periods) {
+        return "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\" minBufferTime=\"PT2S\""
+                + " mediaPresentationDuration=\"" + duration + "\">" + periods + "</MPD>";
+    }
+
+    @Test
+    public void parse_readsExplicitPeriodStarts() throws Exception {
+        MPD mpd = parse(mpd("PT20S",
+                "<Period id=\"1\" start=\"PT0S\" duration=\"PT10S\">" + VIDEO_SET + "</Period>"
+                + "<Period id=\"2\" start=\"PT10S\">" + VIDEO_SET + "</Period>"));
+
+        assertEquals(2, mpd.periods.size());
+        assertEquals(0, mpd.periods.get(0).startUs);
+        assertEquals(10000000, mpd.periods.get(1).startUs);
+        assertEquals(5, mpd.periods.get(1).adaptationSets.get(0).representations.get(0).segments.size());
+    }
+
+    @Test
+    public void parse_startsPeriodWithoutStartAfterPreviousPeriod() throws Exception {
+        MPD mpd = parse(mpd("PT20S",
+                "<Period id=\"1\" duration=\"PT8S\">" + VIDEO_SET + "</Period>"
+                + "<Period id=\"2\">" + VIDEO_SET + "</Period>"));
+
+        assertEquals(0, mpd.periods.get(0).startUs);
+        assertEquals(8000000, mpd.periods.get(1).startUs);
+        // The last period lasts until the end of the presentation
+        assertEquals(6, mpd.periods.get(1).adaptationSets.get(0).representations.get(0).segments.size());
+    }
+
+    @Test
+    public void parse_startsPeriodAfterSegmentsOfPreviousPeriodWithoutDuration() throws Exception {
+        String segmentList = "<AdaptationSet mimeType=\"video/mp4\">"
+                + "<Representation id=\"v1\" bandwidth=\"1000000\" width=\"640\" height=\"360\">"
+                + "<SegmentList timescale=\"1000\" duration=\"2000\">"
+                + "<Initialization sourceURL=\"init.mp4\"/>"
+                + "<SegmentURL media=\"1.m4s\"/><SegmentURL media=\"2.m4s\"/><SegmentURL media=\"3.m4s\"/>"
+                + "</SegmentList></Representation></AdaptationSet>";
+        MPD mpd = parse(mpd("PT20S",
+                "<Period id=\"1\">" + segmentList + "</Period>"
+                + "<Period id=\"2\">" + VIDEO_SET + "</Period>"));
+
+        assertEquals(6000000, mpd.periods.get(0).durationUs);
+        assertEquals(6000000, mpd.periods.get(1).startUs);
+    }
+
+    @Test(expected = DashParserException.class)
+    public void parse_rejectsPeriodWhoseStartIsUnknown() throws Exception {
+        // The template of the first period covers the whole presentation, leaving no time for the second
+        parse(mpd("PT20S",
+                "<Period id=\"1\">" + VIDEO_SET + "</Period>"
+                + "<Period id=\"2\">" + VIDEO_SET + "</Period>"));
+    }
+
+    @Test
+    public void parse_linksTrickModeSetToMainSet() throws Exception {
+        MPD mpd = parse(mpd("PT20S", "<Period>"
+                + "<AdaptationSet id=\"1\" mimeType=\"video/mp4\">" + TEMPLATE
+                + "<Representation id=\"v1\" bandwidth=\"1000000\" width=\"640\" height=\"360\"/>"
+                + "</AdaptationSet>"
+                + "<AdaptationSet id=\"2\" mimeType=\"video/mp4\">"
+                + "<EssentialProperty schemeIdUri=\"http://dashif.org/guidelines/trickmode\" value=\"1\"/>"
+                + TEMPLATE
+                + "<Representation id=\"t1\" bandwidth=\"100000\" width=\"320\" height=\"180\"/>"
+                + "</AdaptationSet></Period>"));
+        Period period = mpd.getFirstPeriod();
+
+        AdaptationSet trickModeSet = period.adaptationSets.get(1);
+        assertTrue(trickModeSet.isTrickMode());
+        assertEquals("1", trickModeSet.trickModeFor);
+        // Trick mode sets are not used for regular playback
+        assertSame(period.adaptationSets.get(0), period.getFirstVideoSet());
+        assertSame(trickModeSet, period.getTrickModeSet(period.getFirstVideoSet()));
+        assertNull(period.getTrickModeSet(trickModeSet));
+    }
+
+    @Test
+    public void parse_readsThumbnailTileGrids() throws Exception {
+        MPD mpd = parse(mpd("PT20S", "<Period>" + VIDEO_SET
+                + "<AdaptationSet id=\"3\" mimeType=\"image/jpeg\" contentType=\"image\">"
+                + "<EssentialProperty schemeIdUri=\"http://dashif.org/thumbnail_tile\" value=\"10x1\"/>"
+                + "<SegmentTemplate timescale=\"1\" duration=\"10\" startNumber=\"1\" media=\"$RepresentationID$/$Number$.jpg\"/>"
+                + "<Representation id=\"i1\" bandwidth=\"10000\" width=\"1600\" height=\"90\"/>"
+                + "<Representation id=\"i2\" bandwidth=\"20000\" width=\"1600\" height=\"360\">"
+                + "<EssentialProperty schemeIdUri=\"http://dashif.org/guidelines/thumbnail_tile\" value=\"5x2\"/>"
+                + "</Representation></AdaptationSet></Period>"));
+        AdaptationSet imageSet = mpd.getFirstPeriod().getFirstImageSet();
+
+        assertNotNull(imageSet);
+        Representation inherited = imageSet.representations.get(0);
+        assertEquals(10, inherited.getTileColumns());
+        assertEquals(1, inherited.getTileRows());
+        Representation own = imageSet.representations.get(1);
+        assertEquals(5, own.getTileColumns());
+        assertEquals(2, own.getTileRows());
+        // Images do not have an init segment
+        assertNull(inherited.initSegment);
+        assertEquals(2, inherited.segments.size());
+        assertTrue(inherited.segments.get(0).media.endsWith("i1/1.jpg"));
+    }
+
+    @Test(expected = DashParserException.class)
+    public void parse_rejectsInvalidThumbnailTileGrid() throws Exception {
+        parse(mpd("PT20S", "<Period>"
+                + "<AdaptationSet mimeType=\"image/jpeg\">"
+                + "<EssentialProperty schemeIdUri=\"http://dashif.org/thumbnail_tile\" value=\"10\"/>"
+                + "</AdaptationSet></Period>"));
+    }
+
+    @Test
+    public void parse_resolvesSegmentsAgainstAlternativeBaseUrls() throws Exception {
+        MPD mpd = parse(mpd("PT4S", "<BaseURL>http://cdn1.example.com/</BaseURL>"
+                + "<BaseURL>http://cdn2.example.com/</BaseURL>"
+                + "<Period><AdaptationSet mimeType=\"video/mp4\"><BaseURL>video/</BaseURL>" + TEMPLATE
+                + "<Representation id=\"v1\" bandwidth=\"1000000\" width=\"640\" height=\"360\"/>"
+                + "</AdaptationSet></Period>"));
+        Representation representation = mpd.getFirstPeriod().getFirstVideoSet().representations.get(0);
+
+        Segment segment = representation.segments.get(0);
+        assertEquals("http://cdn1.example.com/video/v1/1.m4s", segment.media);
+        assertEquals(Arrays.asList("http://cdn1.example.com/video/v1/1.m4s", "http://cdn2.example.com/video/v1/1.m4s"),
+                segment.getUrls());
+        assertEquals(Arrays.asList("http://cdn1.example.com/video/v1/init.mp4", "http://cdn2.example.com/video/v1/init.mp4"),
+                representation.initSegment.getUrls());
+    }
+
+    @Test
+    public void parse_keepsAbsoluteSegmentUrlsWithoutAlternatives() throws Exception {
+        MPD mpd = parse(mpd("PT4S", "<BaseURL>http://cdn1.example.com/</BaseURL>"
+                + "<BaseURL>http://cdn2.example.com/</BaseURL>"
+                + "<Period><AdaptationSet mimeType=\"video/mp4\">"
+                + "<Representation id=\"v1\" bandwidth=\"1000000\" width=\"640\" height=\"360\">"
+                + "<SegmentList timescale=\"1000\" duration=\"2000\">"
+                + "<SegmentURL media=\"http://origin.example.com/1.m4s\"/><SegmentURL media=\"2.m4s\"/>"
+                + "</SegmentList></Representation></AdaptationSet></Period>"));
+        Representation representation = mpd.getFirstPeriod().getFirstVideoSet().representations.get(0);
+
+        assertEquals(Collections.singletonList("http://origin.example.com/1.m4s"),
+                representation.segments.get(0).getUrls());
+        assertEquals(2, representation.segments.get(1).getUrls().size());
+    }
+
+    @Test
+    public void parse_replacesInheritedBaseUrlsWithOwnBaseUrl() throws Exception {
+        MPD mpd = parse(mpd("PT4S", "<BaseURL>http://cdn1.example.com/</BaseURL>"
+                + "<BaseURL>http://cdn2.example.com/</BaseURL>"
+                + "<Period><AdaptationSet mimeType=\"video/mp4\">" + TEMPLATE
+                + "<Representation id=\"v1\" bandwidth=\"1000000\" width=\"640\" height=\"360\">"
+                + "<BaseURL>http://other.example.com/</BaseURL>"
+                + "</Representation></AdaptationSet></Period>"));
+        Segment segment = mpd.getFirstPeriod().getFirstVideoSet().representations.get(0).segments.get(0);
+
+        assertEquals(Collections.singletonList("http://other.example.com/v1/1.m4s"), segment.getUrls());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void frequency_isZeroForUnseenKey() {
+        FrequencySketch sketch = new FrequencySketch(64);
+
+        assertEquals(0, sketch.frequency("a"));
+    }
+
+    @Test
+    public void increment_countsAccessesPerKey() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+
+        assertEquals(5, sketch.frequency("a"));
+        assertEquals(1, sketch.frequency("b"));
+    }
+
+    @Test
+    public void increment_saturatesAtMaxCount() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("a");
+        }
+
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    @Test
+    public void increment_halvesFrequenciesAfterSamplePeriod() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("hot");
+        }
+
+        // Other keys fill the sketch until it ages the counters
+        int key = 0;
+        while (sketch.frequency("hot") == 15 && key < 100000) {
+            sketch.increment(key++);
+        }
+
+        assertEquals(7, sketch.frequency("hot"));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    private static final int SAMPLES = 1000;
+
+    @Test
+    public void getRetryDelay_givesUpAfterMaxRetries() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+
+        assertTrue(policy.getRetryDelay(2) >= 0);
+        assertEquals(-1, policy.getRetryDelay(3));
+        assertEquals(-1, policy.getRetryDelay(10));
+        assertEquals(-1, RetryPolicy.NONE.getRetryDelay(0));
+    }
+
+    @Test
+    public void getRetryDelay_growsExponentiallyUpToMaxDelay() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+        long[] bounds = { 100, 200, 400, 800, 1000, 1000 };
+
+        for (int retry = 0; retry < bounds.length; retry++) {
+            long max = 0;
+            for (int i = 0; i < SAMPLES; i++) {
+                long delay = policy.getRetryDelay(retry);
+                assertTrue("retry " + retry + " delay " + delay, delay >= 0 && delay < bounds[retry]);
+                max = Math.max(max, delay);
+            }
+            // The full jitter reaches into the upper half of the range
+            assertTrue("retry " + retry + " max " + max, max >= bounds[retry] / 2);
+        }
+    }
+
+    @Test
+    public void getRetryDelay_spreadsDelays() {
+        Set<Long> delays = new HashSet<>();
+        for (int i = 0; i < SAMPLES; i++) {
+            delays.add(RetryPolicy.DEFAULT.getRetryDelay(2));
+        }
+
+        assertTrue(delays.size() > SAMPLES / 10);
+    }
+
+    @Test
+    public void getRetryDelay_doesNotOverflowForLateRetries() {
+        RetryPolicy policy = new RetryPolicy(Integer.MAX_VALUE, 500, 8000);
+
+        for (int retry : new int[] { 30, 31, 63, 64, 1000 }) {
+            long delay = policy.getRetryDelay(retry);
+            assertTrue("retry " + retry + " delay " + delay, delay >= 0 && delay < 8000);
+        }
+    }
+
+    @Test
+    public void getRetryDelay_isZeroWithoutDelay() {
+        RetryPolicy policy = new RetryPolicy(2, 0, 0);
+
+        assertEquals(0, policy.getRetryDelay(0));
+        assertEquals(0, policy.getRetryDelay(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsMaxDelayBelowInitialDelay() {
+        new RetryPolicy(3, 1000, 500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsNegativeRetries() {
+        new RetryPolicy(-1, 100, 1000);
+    }
+}
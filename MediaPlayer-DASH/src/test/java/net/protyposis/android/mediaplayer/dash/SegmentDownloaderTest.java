@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads segments that are byte ranges of a single file from a local server, to check how
+ * contiguous ranges are coalesced into requests and how the responses are split into segments.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class SegmentDownloaderTest {
+
+    private static final int SEGMENT_SIZE = 100;
+    private static final int SEGMENT_COUNT = 10;
+
+    private byte[] mFile;
+    private MockWebServer mServer;
+    private RangeDispatcher mDispatcher;
+    private AdaptationSet mAdaptationSet;
+    private Representation mRepresentation;
+    private SegmentDownloader mDownloader;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new byte[SEGMENT_SIZE * SEGMENT_COUNT];
+        for (int i = 0; i < mFile.length; i++) {
+            mFile[i] = (byte) (i % 251);
+        }
+
+        mDispatcher = new RangeDispatcher();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mDispatcher);
+        mServer.start();
+
+        mRepresentation = new Representation();
+        mRepresentation.id = "r";
+        mRepresentation.segmentDurationUs = 2000000;
+        String url = mServer.url("/file.mp4").toString();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            mRepresentation.segments.add(new Segment(url, (i * SEGMENT_SIZE) + "-" + ((i + 1) * SEGMENT_SIZE - 1)));
+        }
+        mAdaptationSet = new AdaptationSet();
+        mAdaptationSet.representations.add(mRepresentation);
+
+        mDownloader = new SegmentDownloader(new OkHttpClient());
+        mDownloader.setRetryPolicy(new RetryPolicy(2, 0, 0)); // retry immediately
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void downloadAsync_coalescesContiguousRanges() throws Exception {
+        Map<Integer, byte[]> segments = download(0, 1, 2, 3);
+
+        assertEquals(Arrays.asList("bytes=0-399"), mDispatcher.getRanges());
+        assertSegments(segments, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void downloadAsync_limitsSegmentsPerRequest() throws Exception {
+        Map<Integer, byte[]> segments = download(0, 1, 2, 3, 4, 5);
+
+        assertEquals(new HashSet<>(Arrays.asList("bytes=0-399", "bytes=400-599")),
+                new HashSet<>(mDispatcher.getRanges()));
+        assertSegments(segments, 0, 1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void downloadAsync_doesNotCoalesceGaps() throws Exception {
+        Map<Integer, byte[]> segments = download(0, 2);
+
+        assertEquals(new HashSet<>(Arrays.asList("bytes=0-99", "bytes=200-299")),
+                new HashSet<>(mDispatcher.getRanges()));
+        assertSegments(segments, 0, 2);
+    }
+
+    @Test
+    public void downloadAsync_resumesInterruptedCoalescedRequest() throws Exception {
+        mDispatcher.mInterruptFirstResponse = true;
+
+        Map<Integer, byte[]> segments = download(0, 1, 2, 3);
+
+        // Half of the response arrives before the interruption, the rest is requested again
+        assertEquals(Arrays.asList("bytes=0-399", "bytes=200-399"), mDispatcher.getRanges());
+        assertSegments(segments, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void downloadAsync_takesRangesFromResponsesThatIgnoreTheRange() throws Exception {
+        mDispatcher.mIgnoreRange = true;
+
+        Map<Integer, byte[]> segments = download(4, 5, 6);
+
+        assertSegments(segments, 4, 5, 6);
+    }
+
+    @Test
+    public void downloadAsync_resumesWithResponseThatIgnoresTheRange() throws Exception {
+        mDispatcher.mInterruptFirstResponse = true;
+        mDispatcher.mIgnoreRangeAfterInterruption = true;
+
+        Map<Integer, byte[]> segments = download(2, 3, 4, 5);
+
+        assertSegments(segments, 2, 3, 4, 5);
+    }
+
+    /**
+     * Downloads segments and waits until all have been delivered.
+     *
+     * @return the data of the segments by their number
+     */
+    private Map<Integer, byte[]> download(int... numbers) throws InterruptedException {
+        final Map<Integer, byte[]> results = new ConcurrentHashMap<>();
+        final List<IOException> failures = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(numbers.length);
+
+        List<CachedSegment> segments = new ArrayList<>();
+        for (int number : numbers) {
+            segments.add(new CachedSegment(number, mRepresentation.segments.get(number), mRepresentation, mAdaptationSet));
+        }
+
+        mDownloader.downloadAsync(segments, new SegmentDownloader.SegmentDownloadCallback() {
+            @Override
+            public void onFailure(CachedSegment cachedSegment, IOException e) {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+                latch.countDown();
+            }
+
+            @Override
+            public void onSuccess(SegmentDownloader.DownloadFinishedArgs args) {
+                results.put(args.cachedSegment.number, args.data);
+                latch.countDown();
+            }
+        });
+
+        assertTrue("downloads timed out", latch.await(10, TimeUnit.SECONDS));
+        assertTrue("downloads failed: " + failures, failures.isEmpty());
+        return results;
+    }
+
+    private void assertSegments(Map<Integer, byte[]> segments, int... numbers) {
+        assertEquals(numbers.length, segments.size());
+        for (int number : numbers) {
+            byte[] expected = Arrays.copyOfRange(mFile, number * SEGMENT_SIZE, (number + 1) * SEGMENT_SIZE);
+            assertArrayEquals("segment " + number, expected, segments.get(number));
+        }
+    }
+
+    /**
+     * Serves the byte ranges of the file, optionally ignoring the range like some servers do, or
+     * interrupting the first response halfway through the body.
+     */
+    private class RangeDispatcher extends Dispatcher {
+
+        private volatile boolean mIgnoreRange;
+        private volatile boolean mIgnoreRangeAfterInterruption;
+        private volatile boolean mInterruptFirstResponse;
+        private final List<String> mRanges = new ArrayList<>();
+
+        synchronized List<String> getRanges() {
+            return new ArrayList<>(mRanges);
+        }
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            String range = request.getHeader("Range");
+            boolean first = mRanges.isEmpty();
+            mRanges.add(range);
+
+            if (range == null || mIgnoreRange || (mIgnoreRangeAfterInterruption && !first)) {
+                return new MockResponse().setBody(new Buffer().write(mFile));
+            }
+
+            String[] bytes = range.substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(bytes[0]);
+            int end = Integer.parseInt(bytes[1]);
+            MockResponse response = new MockResponse()
+                    .setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + mFile.length)
+                    .setBody(new Buffer().write(mFile, start, end - start + 1));
+            if (first && mInterruptFirstResponse) {
+                response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SegmentRingFileTest {
+
+    private static final long CAPACITY = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SegmentRingFile mRingFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mRingFile = new SegmentRingFile(mFolder.getRoot(), CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        mRingFile.close();
+    }
+
+    @Test
+    public void allocate_placesSegmentsOneAfterAnother() {
+        RingFileSegmentData a = mRingFile.allocate(300);
+        RingFileSegmentData b = mRingFile.allocate(300);
+
+        assertEquals(0, a.getOffset());
+        assertEquals(300, b.getOffset());
+        assertTrue(a.isPinned());
+        assertTrue(b.isPinned());
+    }
+
+    @Test
+    public void allocate_wrapsAroundAndOverwritesOldestSegment() {
+        RingFileSegmentData a = mRingFile.allocate(400);
+        RingFileSegmentData b = mRingFile.allocate(400);
+        a.unpin();
+        b.unpin();
+
+        // Does not fit behind b, so it wraps to the start of the file
+        RingFileSegmentData c = mRingFile.allocate(400);
+
+        assertEquals(0, c.getOffset());
+        assertFalse(a.isValid());
+        assertTrue(b.isValid());
+    }
+
+    @Test
+    public void allocate_skipsPinnedSegments() {
+        RingFileSegmentData a = mRingFile.allocate(400); // stays pinned
+        RingFileSegmentData b = mRingFile.allocate(400);
+        b.unpin();
+
+        RingFileSegmentData c = mRingFile.allocate(400);
+
+        assertEquals(400, c.getOffset());
+        assertTrue(a.isValid());
+        assertFalse(b.isValid());
+    }
+
+    @Test
+    public void allocate_failsWithoutUnpinnedRegion() {
+        mRingFile.allocate(500);
+        mRingFile.allocate(500);
+
+        assertNull(mRingFile.allocate(100));
+        assertNull(mRingFile.allocate(CAPACITY + 1));
+    }
+
+    @Test
+    public void allocate_reusesRegionOfDeletedSegment() {
+        RingFileSegmentData a = mRingFile.allocate(600);
+        RingFileSegmentData b = mRingFile.allocate(400);
+        a.unpin();
+        a.delete();
+
+        RingFileSegmentData c = mRingFile.allocate(600);
+
+        assertEquals(0, c.getOffset());
+        assertTrue(b.isValid());
+    }
+
+    @Test
+    public void map_accessesRegionOfSegment() throws IOException {
+        RingFileSegmentData a = mRingFile.allocate(4);
+        RingFileSegmentData b = mRingFile.allocate(4);
+
+        a.map().put(new byte[] { 1, 2, 3, 4 });
+        b.map().put(new byte[] { 5, 6, 7, 8 });
+
+        ByteBuffer buffer = a.map();
+        assertEquals(4, buffer.remaining());
+        assertEquals(1, buffer.get(0));
+        assertEquals(4, buffer.get(3));
+        assertEquals(5, b.map().get(0));
+    }
+
+    @Test
+    public void close_invalidatesSegments() {
+        RingFileSegmentData a = mRingFile.allocate(100);
+        a.unpin();
+
+        mRingFile.close();
+
+        assertFalse(a.isValid());
+        assertNull(mRingFile.allocate(100));
+    }
+
+    @Test(expected = IOException.class)
+    public void map_failsAfterClose() throws IOException {
+        RingFileSegmentData a = mRingFile.allocate(100);
+        mRingFile.close();
+        a.map();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TinyLfuSegmentCacheTest {
+
+    private static final int SEGMENT_SIZE = 100;
+
+    private Representation mRepresentation;
+    private List<Representation> mRepresentations;
+    private TinyLfuSegmentCache mCache;
+
+    @Before
+    public void setUp() {
+        mRepresentation = new Representation();
+        mRepresentation.id = "r";
+        mRepresentations = Collections.singletonList(mRepresentation);
+        mCache = new TinyLfuSegmentCache(10 * SEGMENT_SIZE); // 2 in the window, 8 in the main cache
+    }
+
+    private CachedSegment createSegment(int number) {
+        CachedSegment segment = new CachedSegment(number, new Segment("s" + number), mRepresentation, null);
+        segment.data = new FileSegmentData(new File("s" + number), SEGMENT_SIZE);
+        return segment;
+    }
+
+    private CachedSegment put(int number) {
+        CachedSegment segment = createSegment(number);
+        mCache.put(new SegmentCache.Key(mRepresentation, number), segment);
+        return segment;
+    }
+
+    @Test
+    public void get_countsHitsAndMisses() {
+        CachedSegment segment = put(1);
+
+        assertSame(segment, mCache.get(1, mRepresentations));
+        assertNull(mCache.get(2, mRepresentations));
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    @Test
+    public void put_replacesAndDeletesPreviousSegment() {
+        CachedSegment previous = put(1);
+        CachedSegment segment = put(1);
+
+        assertSame(segment, mCache.get(1, mRepresentations));
+        assertFalse(previous.data.isValid());
+        assertEquals(SEGMENT_SIZE, mCache.size());
+    }
+
+    @Test
+    public void put_staysWithinMaxSize() {
+        for (int i = 0; i < 50; i++) {
+            put(i);
+            assertTrue(mCache.size() <= mCache.maxSize());
+        }
+    }
+
+    @Test
+    public void evictAll_deletesAllSegments() {
+        CachedSegment a = put(1);
+        CachedSegment b = put(2);
+
+        mCache.evictAll();
+
+        assertEquals(0, mCache.size());
+        assertFalse(a.data.isValid());
+        assertFalse(b.data.isValid());
+    }
+
+    @Test
+    public void scan_doesNotEvictFrequentlyUsedSegments() {
+        for (int i = 0; i < 4; i++) {
+            put(i);
+        }
+        for (int access = 0; access < 5; access++) {
+            for (int i = 0; i < 4; i++) {
+                assertNotNull(mCache.get(i, mRepresentations));
+            }
+        }
+
+        // A linear pass over many segments that are used once, e.g. a long seek
+        for (int i = 100; i < 150; i++) {
+            put(i);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertNotNull("segment " + i + " evicted", mCache.get(i, mRepresentations));
+        }
+        assertTrue(mCache.size() <= mCache.maxSize());
+    }
+
+    @Test
+    public void resize_evictsToNewSize() {
+        for (int i = 0; i < 10; i++) {
+            put(i);
+        }
+
+        mCache.resize(3 * SEGMENT_SIZE);
+
+        assertTrue(mCache.size() <= 3 * SEGMENT_SIZE);
+    }
+}
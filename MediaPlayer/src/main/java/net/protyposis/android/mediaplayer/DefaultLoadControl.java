@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+/**
+ * A load control with fixed thresholds. Below the minimum buffer duration, sources always
+ * continue loading; between the minimum and maximum buffer duration, they load as long as the
+ * buffered data does not exceed the bytes limit; at the maximum buffer duration, they stop.
+ *
+ * In burst mode, sources that have stopped loading only start again when the buffer has drained
+ * to the minimum buffer duration, and then load up to the maximum in one go.
+ */
+public class DefaultLoadControl implements LoadControl {
+
+    /**
+     * Keeps a short buffer and starts playback as early as possible, for quick starts and seeks
+     * on fast and stable networks.
+     */
+    public static final DefaultLoadControl LOW_LATENCY = new DefaultLoadControl(
+            4000000, 8000000, 500000, 1000000, 0, 100000);
+
+    /**
+     * Buffers 10 seconds ahead, and starts playback when 2 seconds are buffered.
+     */
+    public static final DefaultLoadControl DEFAULT = new DefaultLoadControl(
+            10000000, 10000000, 2000000, 2000000, 0, 200000);
+
+    /**
+     * Keeps a short buffer limited to 8 megabytes, which wastes less data when playback is
+     * stopped early, and waits longer after the buffer ran empty to avoid repeated stalls.
+     */
+    public static final DefaultLoadControl DATA_SAVER = new DefaultLoadControl(
+            6000000, 10000000, 2000000, 3000000, 8 * 1024 * 1024, 200000);
+
+    /**
+     * Loads in bursts from 10 up to 40 seconds of buffer, which keeps the cellular radio idle most
+     * of the time and saves battery compared to loading each segment when it is needed.
+     */
+    public static final DefaultLoadControl BURST = new DefaultLoadControl(
+            10000000, 40000000, 2000000, 2000000, 0, 200000, true);
+
+    private final long mMinBufferUs;
+    private final long mMaxBufferUs;
+    private final long mBufferForPlaybackUs;
+    private final long mBufferForPlaybackAfterRebufferUs;
+    private final long mMaxBufferBytes;
+    private final long mMaxAudioQueueUs;
+    private final boolean mBurstLoading;
+
+    /**
+     * Creates a load control with custom thresholds that loads continuously.
+     *
+     * @see #DefaultLoadControl(long, long, long, long, long, long, boolean)
+     */
+    public DefaultLoadControl(long minBufferUs, long maxBufferUs, long bufferForPlaybackUs,
+                              long bufferForPlaybackAfterRebufferUs, long maxBufferBytes,
+                              long maxAudioQueueUs) {
+        this(minBufferUs, maxBufferUs, bufferForPlaybackUs, bufferForPlaybackAfterRebufferUs,
+                maxBufferBytes, maxAudioQueueUs, false);
+    }
+
+    /**
+     * Creates a load control with custom thresholds.
+     *
+     * @param minBufferUs the duration that is always buffered
+     * @param maxBufferUs the duration that is buffered at most
+     * @param bufferForPlaybackUs the duration that must be buffered to start playback
+     * @param bufferForPlaybackAfterRebufferUs the duration that must be buffered to resume
+     *                                         playback after the buffer ran empty
+     * @param maxBufferBytes the size that is buffered at most beyond the minimum buffer
+     *                       duration, 0 for no limit
+     * @param maxAudioQueueUs the duration of decoded audio that is queued at most
+     * @param burstLoading true to load in bursts between the min and max buffer duration
+     */
+    public DefaultLoadControl(long minBufferUs, long maxBufferUs, long bufferForPlaybackUs,
+                              long bufferForPlaybackAfterRebufferUs, long maxBufferBytes,
+                              long maxAudioQueueUs, boolean burstLoading) {
+        if(minBufferUs > maxBufferUs) {
+            throw new IllegalArgumentException("min buffer duration exceeds max buffer duration");
+        }
+        if(bufferForPlaybackUs > minBufferUs || bufferForPlaybackAfterRebufferUs > minBufferUs) {
+            // Playback would never start if sources stopped loading below the threshold
+            throw new IllegalArgumentException("playback threshold exceeds min buffer duration");
+        }
+        mMinBufferUs = minBufferUs;
+        mMaxBufferUs = maxBufferUs;
+        mBufferForPlaybackUs = bufferForPlaybackUs;
+        mBufferForPlaybackAfterRebufferUs = bufferForPlaybackAfterRebufferUs;
+        mMaxBufferBytes = maxBufferBytes;
+        mMaxAudioQueueUs = maxAudioQueueUs;
+        mBurstLoading = burstLoading;
+    }
+
+    public long getMinBufferDuration() {
+        return mMinBufferUs;
+    }
+
+    @Override
+    public long getMaxBufferDuration() {
+        return mMaxBufferUs;
+    }
+
+    public long getBufferForPlaybackDuration() {
+        return mBufferForPlaybackUs;
+    }
+
+    public long getBufferForPlaybackAfterRebufferDuration() {
+        return mBufferForPlaybackAfterRebufferUs;
+    }
+
+    public long getMaxBufferBytes() {
+        return mMaxBufferBytes;
+    }
+
+    @Override
+    public long getMaxAudioQueueDuration() {
+        return mMaxAudioQueueUs;
+    }
+
+    public boolean isBurstLoading() {
+        return mBurstLoading;
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long bufferedDurationUs, long bufferedBytes) {
+        if(bufferedDurationUs < mMinBufferUs) {
+            return true;
+        }
+        return bufferedDurationUs < mMaxBufferUs
+                && (mMaxBufferBytes <= 0 || bufferedBytes < mMaxBufferBytes);
+    }
+
+    @Override
+    public boolean shouldStartLoading(long bufferedDurationUs, long bufferedBytes) {
+        if(mBurstLoading) {
+            return bufferedDurationUs <= mMinBufferUs;
+        }
+        return shouldContinueLoading(bufferedDurationUs, bufferedBytes);
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, boolean rebuffering) {
+        return bufferedDurationUs >= (rebuffering ? mBufferForPlaybackAfterRebufferUs : mBufferForPlaybackUs);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+/**
+ * Controls how much media data the player buffers, i.e. how far streaming sources load ahead of
+ * the playback position and when playback starts or resumes after the buffer ran empty. A load
+ * control can be shared by multiple players. {@link DefaultLoadControl} provides presets for
+ * common use cases.
+ */
+public interface LoadControl {
+
+    /**
+     * Decides whether a streaming source should load more data.
+     *
+     * @param bufferedDurationUs the duration of the data that is buffered ahead of the playback
+     *                           position, including data that has been requested
+     * @param bufferedBytes the size of that data, partially estimated for requested data
+     * @return true to continue loading, false to wait until the playback has consumed data
+     */
+    boolean shouldContinueLoading(long bufferedDurationUs, long bufferedBytes);
+
+    /**
+     * Decides whether a streaming source that has stopped loading should start loading again.
+     * Returning false while the buffer is between a low and a high mark lets a source load in
+     * bursts up to the high mark and then idle until the buffer has drained to the low mark,
+     * which allows the network radio to power down in between.
+     *
+     * @param bufferedDurationUs the duration of the data that is buffered ahead of the playback
+     *                           position, including data that has been requested
+     * @param bufferedBytes the size of that data, partially estimated for requested data
+     * @return true to start loading
+     */
+    boolean shouldStartLoading(long bufferedDurationUs, long bufferedBytes);
+
+    /**
+     * Decides whether playback can start (or resume) with the currently buffered data.
+     *
+     * @param bufferedDurationUs the duration of the data that is buffered ahead of the playback
+     *                           position
+     * @param rebuffering true if the buffer has run empty during playback, false if playback
+     *                    starts (e.g. after preparing, pausing, or seeking)
+     * @return true to start playback, false to keep buffering
+     */
+    boolean shouldStartPlayback(long bufferedDurationUs, boolean rebuffering);
+
+    /**
+     * Gets the maximum duration that a streaming source buffers ahead of the playback position.
+     * Data within this range is kept when seeking.
+     *
+     * @return the maximum buffer duration in microseconds
+     */
+    long getMaxBufferDuration();
+
+    /**
+     * Gets the maximum duration of decoded audio that is queued for playback. A small queue
+     * keeps the audio decoder from running far ahead of the playback and pulling data from the
+     * source too fast.
+     *
+     * @return the maximum audio queue duration in microseconds
+     */
+    long getMaxAudioQueueDuration();
+}
@@ -27,6 +27,7 @@ import java.io.IOException;
 class MediaCodecAudioDecoder extends MediaCodecDecoder {
 
     private AudioPlayback mAudioPlayback;
+    private volatile LoadControl mLoadControl = DefaultLoadControl.DEFAULT;
 
     public MediaCodecAudioDecoder(MediaExtractor extractor, boolean passive, int trackIndex,
                                   OnDecoderEventListener listener, AudioPlayback audioPlayback)
@@ -36,6 +37,10 @@ class MediaCodecAudioDecoder extends MediaCodecDecoder {
         reinitCodec();
     }
 
+    void setLoadControl(LoadControl loadControl) {
+        mLoadControl = loadControl;
+    }
+
     @Override
     protected void configureCodec(MediaCodec codec, MediaFormat format) {
         super.configureCodec(codec, format);
@@ -44,11 +49,11 @@ class MediaCodecAudioDecoder extends MediaCodecDecoder {
 
     @Override
     protected boolean shouldDecodeAnotherFrame() {
-        // If this is an active audio track, decode and buffer only as much as this arbitrarily
-        // chosen threshold time to avoid filling up the memory with buffered audio data and
+        // If this is an active audio track, decode and buffer only as much as the load control
+        // allows to avoid filling up the memory with buffered audio data and
         // requesting too much data from the network too fast (e.g. DASH segments).
         if(!isPassive()) {
-            return mAudioPlayback.getQueueBufferTimeUs() < 200000;
+            return mAudioPlayback.getQueueBufferTimeUs() < mLoadControl.getMaxAudioQueueDuration();
         }
         else {
             return super.shouldDecodeAnotherFrame();
@@ -417,6 +417,15 @@ abstract class MediaCodecDecoder {
         return mExtractor.getCachedDuration();
     }
 
+    /**
+     * Returns the size of the cached data in the extractor, or -1 if the extractor does not
+     * support or does not need caching (e.g. local files).
+     * @return the size of the cached data in bytes or -1 if caching is not active
+     */
+    public long getCachedBytes() {
+        return mExtractor.getCachedBytes();
+    }
+
     /**
      * Returns true iff we are caching data and the cache has reached the
      * end of the data stream.
@@ -19,6 +19,7 @@ package net.protyposis.android.mediaplayer;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.media.MediaCodec;
+import android.media.MediaDataSource;
 import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Build;
@@ -81,6 +82,22 @@ public class MediaExtractor {
         mApiExtractor = new android.media.MediaExtractor();
     }
 
+    /**
+     * Takes over the data source of another extractor, e.g. one that has been set up in the
+     * background for the next part of a stream, and releases the current data source. Track
+     * selections are not taken over. The other extractor must not be used afterwards.
+     *
+     * @param extractor the extractor to take the data source from
+     */
+    protected void takeDataSource(MediaExtractor extractor) {
+        android.media.MediaExtractor apiExtractor = extractor.mApiExtractor;
+        extractor.mApiExtractor = null;
+        if(mApiExtractor != null) {
+            mApiExtractor.release();
+        }
+        mApiExtractor = apiExtractor;
+    }
+
     /**
      * Sets the data source as a content Uri.
      *
@@ -145,6 +162,16 @@ public class MediaExtractor {
         mApiExtractor.setDataSource(fd, offset, length);
     }
 
+    /**
+     * Sets the data source (MediaDataSource) to use.
+     *
+     * @param dataSource the MediaDataSource for the media you want to extract from
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public final void setDataSource(MediaDataSource dataSource) throws IOException {
+        mApiExtractor.setDataSource(dataSource);
+    }
+
 
     /**
      * Make sure you call this when you're done to free up any resources
@@ -152,13 +179,15 @@ public class MediaExtractor {
      * some point in the future.
      */
     public void release() {
-        mApiExtractor.release();
+        if(mApiExtractor != null) { // null if the data source has been taken over by another extractor
+            mApiExtractor.release();
+        }
     }
 
     /**
      * Count the number of tracks found in the data source.
      */
-    public final int getTrackCount() {
+    public int getTrackCount() {
         return mApiExtractor.getTrackCount();
     }
 
@@ -314,6 +343,15 @@ public class MediaExtractor {
         return mApiExtractor.getCachedDuration();
     }
 
+    /**
+     * Returns the amount of data that is presently cached ahead of the current position, including
+     * data that is still being downloaded, expressed in bytes. Returns -1 if that information is
+     * unavailable or not applicable (no cache), which is the default.
+     */
+    public long getCachedBytes() {
+        return -1;
+    }
+
     /**
      * Returns true iff we are caching data and the cache has reached the
      * end of the data stream (for now, a future seek may of course restart
@@ -325,6 +363,54 @@ public class MediaExtractor {
         return mApiExtractor.hasCacheReachedEndOfStream();
     }
 
+    /**
+     * Informs the extractor about the current playback speed. Extractors of adaptive media can
+     * use it to switch to streams that are more suitable for fast playback (e.g. I-frame only
+     * trick mode streams). The default implementation does nothing.
+     *
+     * @param speed the playback speed, see {@link MediaPlayer#setPlaybackSpeed(float)}
+     */
+    public void setPlaybackSpeed(float speed) {
+        // nothing to do here
+    }
+
+    /**
+     * Informs the extractor about the size of the view that the video is rendered to. Extractors
+     * of adaptive media can use it to skip streams with a resolution far above the view size.
+     * The default implementation does nothing.
+     *
+     * @param width the width of the view in pixels
+     * @param height the height of the view in pixels
+     */
+    public void setViewportSize(int width, int height) {
+        // nothing to do here
+    }
+
+    /**
+     * Sets the load control that decides how far streaming extractors load ahead of the playback
+     * position. The default implementation does nothing.
+     *
+     * @param loadControl the load control, see {@link MediaPlayer#setLoadControl(LoadControl)}
+     */
+    public void setLoadControl(LoadControl loadControl) {
+        // nothing to do here
+    }
+
+    /**
+     * Informs the extractor about how well the video frames are rendered in real time. The player
+     * reports the frames of a time window at normal playback speed; late frames are frames that
+     * were rendered after their presentation time, which indicates that the decoder cannot keep
+     * up. Extractors of adaptive media can use it to switch to a stream that is cheaper to
+     * decode. The default implementation does nothing.
+     *
+     * @param renderedFrames the number of frames rendered in the window
+     * @param lateFrames the number of these frames that were rendered late
+     * @param durationMs the duration of the window in milliseconds
+     */
+    public void reportRenderingStats(int renderedFrames, int lateFrames, long durationMs) {
+        // nothing to do here
+    }
+
     /**
      * Returns true iff the extracted media supports intra-stream switching of formats (e.g. resolution)
      * and the format has changed. It only returns true at the first call when the format has changed,
@@ -38,7 +38,7 @@ public class MediaPlayer {
 
     private static final String TAG = MediaPlayer.class.getSimpleName();
 
-    private static final long BUFFER_LOW_WATER_MARK_US = 2000000; // 2 seconds; NOTE: make sure this is below DashMediaExtractor's mMinBufferTimeUs
+    private static final long RENDERING_STATS_WINDOW_MS = 2000; // the window of the rendering stats reported to the video extractor
 
     /**
      * Pass as track index to tell the player that no track should be selected.
@@ -175,6 +175,8 @@ public class MediaPlayer {
     private boolean mSeeking;
     private int mBufferPercentage;
     private TimeBase mTimeBase;
+    private int mViewportWidth;
+    private int mViewportHeight;
 
     private EventHandler mEventHandler;
     private OnPreparedListener mOnPreparedListener;
@@ -194,6 +196,12 @@ public class MediaPlayer {
     private AudioPlayback mAudioPlayback;
     private Decoders mDecoders;
     private boolean mBuffering;
+    private boolean mRebuffering; // true if the buffering has been entered because the buffer ran empty
+    private volatile LoadControl mLoadControl = DefaultLoadControl.DEFAULT;
+    private volatile long mVideoCachedDurationUs = -1; // updated by the playback thread, -1 if unknown
+    private volatile long mVideoCachedBytes = -1;
+    private volatile long mAudioCachedDurationUs = -1;
+    private volatile long mAudioCachedBytes = -1;
     private VideoRenderTimingMode mVideoRenderTimingMode;
 
     private State mCurrentState;
@@ -241,6 +249,12 @@ public class MediaPlayer {
             mAudioExtractor = mVideoExtractor;
         }
 
+        setExtractorPlaybackSpeed((float) mTimeBase.getSpeed());
+        setExtractorLoadControl(mLoadControl);
+        if(mVideoExtractor != null && mViewportWidth > 0 && mViewportHeight > 0) {
+            mVideoExtractor.setViewportSize(mViewportWidth, mViewportHeight);
+        }
+
         switch (videoTrackIndex) {
             case TRACK_INDEX_AUTO:
                 mVideoTrackIndex = getTrackIndex(mVideoExtractor, "video/");
@@ -362,11 +376,8 @@ public class MediaPlayer {
                 // entered when playback is started and buffer is too empty).
                 if(mPlaybackThread != null && !mPlaybackThread.isPaused()
                         && !mBuffering
-                        && mDecoders.getCachedDuration() < BUFFER_LOW_WATER_MARK_US
-                        && !mDecoders.hasCacheReachedEndOfStream()) {
-                    mBuffering = true;
-                    mEventHandler.sendMessage(mEventHandler.obtainMessage(MEDIA_INFO,
-                            MEDIA_INFO_BUFFERING_START, 0));
+                        && !isBufferedForPlayback(true)) {
+                    startBuffering(true);
                 }
             }
         };
@@ -396,8 +407,9 @@ public class MediaPlayer {
 
             try {
                 boolean passive = (mAudioExtractor == mVideoExtractor || mAudioExtractor == null);
-                MediaCodecDecoder ad = new MediaCodecAudioDecoder(mAudioExtractor != null ? mAudioExtractor : mVideoExtractor,
+                MediaCodecAudioDecoder ad = new MediaCodecAudioDecoder(mAudioExtractor != null ? mAudioExtractor : mVideoExtractor,
                         passive, mAudioTrackIndex, decoderEventListener, mAudioPlayback);
+                ad.setLoadControl(mLoadControl);
                 mDecoders.addDecoder(ad);
             } catch (Exception e) {
                 Log.e(TAG, "cannot create audio decoder: " + e.getMessage());
@@ -618,6 +630,96 @@ public class MediaPlayer {
 
         mTimeBase.setSpeed(speed);
         mTimeBase.startAt(mCurrentPosition);
+        setExtractorPlaybackSpeed(speed);
+    }
+
+    /**
+     * Sets the size of the view that the video is rendered to. Adaptive sources (e.g. DASH) use it
+     * to avoid loading and decoding streams with a resolution far above what the view can display.
+     * Can be called at any time, e.g. when the view is resized; {@link VideoView} calls it
+     * automatically.
+     *
+     * @param width the width of the view in pixels
+     * @param height the height of the view in pixels
+     */
+    public void setViewportSize(int width, int height) {
+        mViewportWidth = width;
+        mViewportHeight = height;
+        if(mVideoExtractor != null) {
+            mVideoExtractor.setViewportSize(width, height);
+        }
+    }
+
+    /**
+     * Sets the load control that decides how much media data is buffered, i.e. how far streaming
+     * sources (e.g. DASH) load ahead, and how much data must be buffered before playback starts
+     * or resumes after the buffer ran empty. Can be called at any time.
+     * Default is {@link DefaultLoadControl#DEFAULT}.
+     *
+     * @param loadControl the load control, e.g. one of the {@link DefaultLoadControl} presets
+     */
+    public void setLoadControl(LoadControl loadControl) {
+        if(loadControl == null) {
+            throw new IllegalArgumentException("load control must be set");
+        }
+        mLoadControl = loadControl;
+        setExtractorLoadControl(loadControl);
+        Decoders decoders = mDecoders;
+        if(decoders != null && decoders.getAudioDecoder() != null) {
+            decoders.getAudioDecoder().setLoadControl(loadControl);
+        }
+    }
+
+    /**
+     * Gets the load control. See {@link #setLoadControl(LoadControl)} for details.
+     * @return the current load control
+     */
+    public LoadControl getLoadControl() {
+        return mLoadControl;
+    }
+
+    private void setExtractorLoadControl(LoadControl loadControl) {
+        if(mVideoExtractor != null) {
+            mVideoExtractor.setLoadControl(loadControl);
+        }
+        if(mAudioExtractor != null && mAudioExtractor != mVideoExtractor) {
+            mAudioExtractor.setLoadControl(loadControl);
+        }
+    }
+
+    /**
+     * Tells if enough data is buffered to start or resume playback according to the load control.
+     * Sources without a cache (e.g. local files) and sources whose buffer has reached the end of
+     * the stream are always ready.
+     */
+    private boolean isBufferedForPlayback(boolean rebuffering) {
+        long cachedDuration = mDecoders.getCachedDuration();
+        return cachedDuration == -1
+                || mDecoders.hasCacheReachedEndOfStream()
+                || mLoadControl.shouldStartPlayback(cachedDuration, rebuffering);
+    }
+
+    /**
+     * Enters buffering mode, which pauses playback until the load control decides to start it.
+     */
+    private void startBuffering(boolean rebuffering) {
+        mBuffering = true;
+        mRebuffering = rebuffering;
+        mEventHandler.sendMessage(mEventHandler.obtainMessage(MEDIA_INFO,
+                MEDIA_INFO_BUFFERING_START, 0));
+    }
+
+    /**
+     * Informs the extractors about the playback speed, so they can switch to streams that are
+     * suitable for fast playback if available.
+     */
+    private void setExtractorPlaybackSpeed(float speed) {
+        if(mVideoExtractor != null) {
+            mVideoExtractor.setPlaybackSpeed(speed);
+        }
+        if(mAudioExtractor != null && mAudioExtractor != mVideoExtractor) {
+            mAudioExtractor.setPlaybackSpeed(speed);
+        }
     }
 
     /**
@@ -797,6 +899,49 @@ public class MediaPlayer {
         return mBufferPercentage;
     }
 
+    /**
+     * Gets the duration of the video data that is buffered ahead of the current playback position.
+     * The value is updated by the playback loop and can be queried from any thread.
+     *
+     * @return the buffered duration in microseconds, or -1 if the source is not buffered (e.g. a
+     *         local file) or has no video track
+     */
+    public long getVideoCachedDuration() {
+        return mVideoCachedDurationUs;
+    }
+
+    /**
+     * Gets the size of the video data that is buffered ahead of the current playback position,
+     * including data that is still being downloaded.
+     *
+     * @return the buffered size in bytes, or -1 if unknown
+     * @see #getVideoCachedDuration()
+     */
+    public long getVideoCachedBytes() {
+        return mVideoCachedBytes;
+    }
+
+    /**
+     * Gets the duration of the audio data that is buffered ahead of the current playback position.
+     *
+     * @return the buffered duration in microseconds, or -1 if unknown
+     * @see #getVideoCachedDuration()
+     */
+    public long getAudioCachedDuration() {
+        return mAudioCachedDurationUs;
+    }
+
+    /**
+     * Gets the size of the audio data that is buffered ahead of the current playback position,
+     * including data that is still being downloaded.
+     *
+     * @return the buffered size in bytes, or -1 if unknown
+     * @see #getVideoCachedDuration()
+     */
+    public long getAudioCachedBytes() {
+        return mAudioCachedBytes;
+    }
+
     public int getVideoWidth() {
         if(mCurrentState.ordinal() >= State.RELEASING.ordinal()) {
             mCurrentState = State.ERROR;
@@ -915,6 +1060,9 @@ public class MediaPlayer {
         private double mPlaybackSpeed;
         private boolean mAVLocked;
         private long mLastBufferingUpdateTime;
+        private long mRenderingStatsStartTime; // start of the current rendering stats window, 0 if none
+        private int mRenderedFrames;
+        private int mLateFrames;
 
         public PlaybackThread() {
             // Give this thread a high priority for more precise event timing
@@ -1086,6 +1234,11 @@ public class MediaPlayer {
                 mAudioPlayback.setPlaybackSpeed((float) mPlaybackSpeed);
             }
 
+            // Wait until enough data is buffered to start playback, e.g. after a seek
+            if(!mBuffering && !isBufferedForPlayback(false)) {
+                startBuffering(false);
+            }
+
             mHandler.removeMessages(PLAYBACK_LOOP);
             loopInternal();
         }
@@ -1111,6 +1264,18 @@ public class MediaPlayer {
             pauseInternal(false);
         }
 
+        /**
+         * Publishes the per-track buffer levels for {@link #getVideoCachedDuration()} and friends.
+         */
+        private void updateCachedStats() {
+            MediaCodecDecoder videoDecoder = mDecoders.getVideoDecoder();
+            MediaCodecDecoder audioDecoder = mDecoders.getAudioDecoder();
+            mVideoCachedDurationUs = videoDecoder != null ? videoDecoder.getCachedDuration() : -1;
+            mVideoCachedBytes = videoDecoder != null ? videoDecoder.getCachedBytes() : -1;
+            mAudioCachedDurationUs = audioDecoder != null ? audioDecoder.getCachedDuration() : -1;
+            mAudioCachedBytes = audioDecoder != null ? audioDecoder.getCachedBytes() : -1;
+        }
+
         private void pauseInternalAudio() {
             if (mAudioPlayback != null) {
                 mAudioPlayback.pause();
@@ -1118,6 +1283,8 @@ public class MediaPlayer {
         }
 
         private void loopInternal() throws IOException, InterruptedException {
+            updateCachedStats();
+
             // If this is an online stream, notify the client of the buffer fill level.
             long cachedDuration = mDecoders.getCachedDuration();
             if(cachedDuration != -1) {
@@ -1130,11 +1297,11 @@ public class MediaPlayer {
                 updateBufferPercentage((int) (100d / (getDuration() * 1000) * (mCurrentPosition + cachedDuration)));
             }
 
-            // If we are in buffering mode, check if the buffer has been filled until the low water
-            // mark or the end of the stream has been reached, and pause playback if it isn't filled
-            // high enough yet.
-            if(mBuffering && cachedDuration > -1 && cachedDuration < BUFFER_LOW_WATER_MARK_US && !mDecoders.hasCacheReachedEndOfStream()) {
-                //Log.d(TAG, "buffering... " + mDecoders.getCachedDuration() + " / " + BUFFER_LOW_WATER_MARK_US);
+            // If we are in buffering mode, check if the buffer has been filled until the load control
+            // allows playback or the end of the stream has been reached, and pause playback if it
+            // isn't filled high enough yet.
+            if(mBuffering && !isBufferedForPlayback(mRebuffering)) {
+                //Log.d(TAG, "buffering... " + cachedDuration);
                 // To pause playback for buffering, we simply skip this loop and call it again later
                 mHandler.sendEmptyMessageDelayed(PLAYBACK_LOOP, 100);
                 return;
@@ -1265,6 +1432,9 @@ public class MediaPlayer {
             // (otherwise it's too fast on back seeks and waits for the PTS time on fw seeks)
             mTimeBase.startAt(mDecoders.getCurrentDecodingPTS());
 
+            // Frames around a seek are late by design, start a new rendering stats window
+            mRenderingStatsStartTime = 0;
+
             // Check if another seek has been issued in the meantime
             boolean newSeekWaiting = mHandler.hasMessages(PLAYBACK_SEEK);
 
@@ -1361,6 +1531,39 @@ public class MediaPlayer {
             }
             // Release the current frame and render it to the surface
             mDecoders.getVideoDecoder().renderFrame(videoFrameInfo, waitingTime);
+
+            updateRenderingStats(waitingTime < -1000);
+        }
+
+        /**
+         * Counts rendered and late frames and periodically reports them to the video extractor.
+         */
+        private void updateRenderingStats(boolean late) {
+            if(mTimeBase.getSpeed() > 1) {
+                // Fast playback is expected to lag, it says nothing about the decoding performance
+                mRenderingStatsStartTime = 0;
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if(mRenderingStatsStartTime == 0) {
+                mRenderingStatsStartTime = now;
+                mRenderedFrames = 0;
+                mLateFrames = 0;
+            }
+
+            mRenderedFrames++;
+            if(late) {
+                mLateFrames++;
+            }
+
+            long durationMs = now - mRenderingStatsStartTime;
+            if(durationMs >= RENDERING_STATS_WINDOW_MS) {
+                if(mVideoExtractor != null) {
+                    mVideoExtractor.reportRenderingStats(mRenderedFrames, mLateFrames, durationMs);
+                }
+                mRenderingStatsStartTime = 0;
+            }
         }
 
         private void setVideoSurface(Surface surface) throws IOException {
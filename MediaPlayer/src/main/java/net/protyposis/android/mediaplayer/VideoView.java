@@ -162,6 +162,7 @@ public class VideoView extends SurfaceView implements SurfaceHolder.Callback,
 
         mPlayer = new MediaPlayer();
         mPlayer.setDisplay(mSurfaceHolder);
+        mPlayer.setViewportSize(getWidth(), getHeight());
         mPlayer.setScreenOnWhilePlaying(true);
         mPlayer.setOnPreparedListener(mPreparedListener);
         mPlayer.setOnSeekListener(mSeekListener);
@@ -413,7 +414,9 @@ public class VideoView extends SurfaceView implements SurfaceHolder.Callback,
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        // nothing yet
+        if(mPlayer != null) {
+            mPlayer.setViewportSize(width, height);
+        }
     }
 
     @Override
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.protyposis.android.mediaplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DefaultLoadControlTest {
+
+    private static final long MB = 1024 * 1024;
+
+    // 2s..10s buffer, playback at 1s or 1.5s after a rebuffer, at most 4MB beyond the minimum
+    private final DefaultLoadControl mLoadControl = new DefaultLoadControl(
+            2000000, 10000000, 1000000, 1500000, 4 * MB, 200000);
+
+    @Test
+    public void shouldContinueLoading_belowMinBufferRegardlessOfBytes() {
+        assertTrue(mLoadControl.shouldContinueLoading(0, 0));
+        assertTrue(mLoadControl.shouldContinueLoading(1999999, 100 * MB));
+    }
+
+    @Test
+    public void shouldContinueLoading_betweenMinAndMaxBufferWithinBytesLimit() {
+        assertTrue(mLoadControl.shouldContinueLoading(5000000, 4 * MB - 1));
+        assertFalse(mLoadControl.shouldContinueLoading(5000000, 4 * MB));
+    }
+
+    @Test
+    public void shouldContinueLoading_stopsAtMaxBuffer() {
+        assertFalse(mLoadControl.shouldContinueLoading(10000000, 0));
+    }
+
+    @Test
+    public void shouldContinueLoading_withoutBytesLimit() {
+        DefaultLoadControl loadControl = new DefaultLoadControl(2000000, 10000000, 1000000, 1000000, 0, 200000);
+
+        assertTrue(loadControl.shouldContinueLoading(9999999, 1000 * MB));
+        assertFalse(loadControl.shouldContinueLoading(10000000, 0));
+    }
+
+    @Test
+    public void shouldStartPlayback_usesHigherThresholdAfterRebuffer() {
+        assertFalse(mLoadControl.shouldStartPlayback(999999, false));
+        assertTrue(mLoadControl.shouldStartPlayback(1000000, false));
+        assertFalse(mLoadControl.shouldStartPlayback(1000000, true));
+        assertTrue(mLoadControl.shouldStartPlayback(1500000, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsMinBufferAboveMaxBuffer() {
+        new DefaultLoadControl(10000000, 2000000, 1000000, 1000000, 0, 200000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsPlaybackThresholdAboveMinBuffer() {
+        new DefaultLoadControl(2000000, 10000000, 3000000, 1000000, 0, 200000);
+    }
+
+    @Test
+    public void presets_areConsistent() {
+        for (DefaultLoadControl loadControl : new DefaultLoadControl[] {
+                DefaultLoadControl.LOW_LATENCY, DefaultLoadControl.DEFAULT, DefaultLoadControl.DATA_SAVER }) {
+            assertTrue(loadControl.shouldContinueLoading(0, 0));
+            assertTrue(loadControl.shouldStartPlayback(loadControl.getMinBufferDuration(), true));
+            assertFalse(loadControl.shouldContinueLoading(loadControl.getMaxBufferDuration(), 0));
+        }
+    }
+
+    @Test
+    public void shouldStartLoading_continuousModeFollowsContinueDecision() {
+        assertTrue(mLoadControl.shouldStartLoading(5000000, 0));
+        assertFalse(mLoadControl.shouldStartLoading(5000000, 4 * MB));
+        assertFalse(mLoadControl.shouldStartLoading(10000000, 0));
+    }
+
+    @Test
+    public void shouldStartLoading_burstModeWaitsForLowWatermark() {
+        DefaultLoadControl loadControl = DefaultLoadControl.BURST;
+        long low = loadControl.getMinBufferDuration();
+        long high = loadControl.getMaxBufferDuration();
+
+        assertTrue(loadControl.isBurstLoading());
+        // A stopped source idles until the buffer has drained to the low watermark
+        assertFalse(loadControl.shouldStartLoading(high - 1, 0));
+        assertFalse(loadControl.shouldStartLoading(low + 1, 0));
+        assertTrue(loadControl.shouldStartLoading(low, 0));
+        // A loading source continues up to the high watermark
+        assertTrue(loadControl.shouldContinueLoading(high - 1, 0));
+        assertFalse(loadControl.shouldContinueLoading(high, 0));
+    }
+}
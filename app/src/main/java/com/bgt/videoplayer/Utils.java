@@ -28,6 +28,7 @@ import android.widget.TextView;
 import net.protyposis.android.mediaplayer.MediaSource;
 import net.protyposis.android.mediaplayer.UriSource;
 import net.protyposis.android.mediaplayer.dash.AdaptationLogic;
+import net.protyposis.android.mediaplayer.dash.BandwidthArbiter;
 import net.protyposis.android.mediaplayer.dash.DashSource;
 import net.protyposis.android.mediaplayer.dash.SimpleRateBasedAdaptationLogic;
 
@@ -43,6 +44,9 @@ public class Utils {
 
     private static final String TAG = Utils.class.getSimpleName();
 
+    // Shares the bandwidth among the DASH players of the app
+    private static final BandwidthArbiter sBandwidthArbiter = new BandwidthArbiter();
+
     public static MediaSource uriToMediaSource(Context context, Uri uri) {
         MediaSource source = null;
 
@@ -59,7 +63,10 @@ public class Utils {
             //adaptationLogic = new ConstantPropertyBasedLogic(ConstantPropertyBasedLogic.Mode.HIGHEST_BITRATE);
             adaptationLogic = new SimpleRateBasedAdaptationLogic();
 
-            source = new DashSource(context, uri, adaptationLogic);
+            DashSource dashSource = new DashSource(context, uri, adaptationLogic);
+            dashSource.setDecoderLagCappingEnabled(true);
+            dashSource.setBandwidthArbiter(sBandwidthArbiter, 1);
+            source = dashSource;
         } else {
             source = new UriSource(context, uri);
         }
@@ -18,6 +18,7 @@ import android.widget.Toast;
 import net.protyposis.android.mediaplayer.MediaPlayer;
 import net.protyposis.android.mediaplayer.MediaSource;
 import net.protyposis.android.mediaplayer.VideoView;
+import net.protyposis.android.mediaplayer.dash.DashSource;
 
 public class VideoViewActivity extends AppCompatActivity {
 
@@ -233,6 +234,14 @@ public class VideoViewActivity extends AppCompatActivity {
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mMediaSource instanceof DashSource) {
+            ((DashSource) mMediaSource).release();
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);